@@ -0,0 +1,80 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.appender;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.ala.client.util.LogEventJsonValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The work {@link RestfulAppender} does on the logging thread for each event before it is sent:
+ * validating String messages and building the request headers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppendBenchmark {
+
+    @Param({"3", "1000"})
+    public int recordCountSize;
+
+    private String message;
+
+    @Setup
+    public void setUp() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"eventTypeId\": 1002, \"comment\": \"For doing some research with..\", ");
+        sb.append("\"userEmail\": \"someone@example.org\", \"userIP\": \"123.123.123.123\", \"recordCounts\": {");
+        for (int i = 0; i < recordCountSize; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append("\"dr").append(i).append("\": ").append(i + 1);
+        }
+        sb.append("}}");
+        message = sb.toString();
+    }
+
+    /**
+     * The check sendRestRequest makes of String messages unless trustedMessages is set.
+     */
+    @Benchmark
+    public String validateMessage() throws IOException {
+        LogEventJsonValidator.validate(message);
+        return message;
+    }
+
+    @Benchmark
+    public Map<String, String> constructHttpHeaders() {
+        return RestfulAppender.constructHttpHeaders("benchmark");
+    }
+}
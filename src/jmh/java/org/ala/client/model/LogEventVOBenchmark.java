@@ -0,0 +1,107 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ala.client.util.JsonStreamRequestEntity;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building a {@link LogEventVO} and writing it as JSON, the way {@code RestfulClient} streams it
+ * into a request body.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogEventVOBenchmark {
+
+    //number of uids in recordCounts, a search page or a large download
+    @Param({"3", "1000"})
+    public int recordCountSize;
+
+    private ObjectMapper mapper;
+    private ConcurrentMap<String, AtomicInteger> concurrentCounts;
+    private LogEventVO event;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+
+    @Setup
+    public void setUp() {
+        //configured as in RestfulClient
+        mapper = new ObjectMapper();
+        mapper.getSerializationConfig().setSerializationInclusion(JsonSerialize.Inclusion.NON_NULL);
+
+        concurrentCounts = new ConcurrentHashMap<String, AtomicInteger>();
+        for (int i = 0; i < recordCountSize; i++) {
+            concurrentCounts.put("dr" + i, new AtomicInteger(i + 1));
+        }
+        event = newEvent();
+    }
+
+    private LogEventVO newEvent() {
+        return new LogEventVO(1002, 10, 1, "someone@example.org", "For doing some research with..",
+                "123.123.123.123", "benchmark", "202610", concurrentCounts);
+    }
+
+    @Benchmark
+    public LogEventVO constructFromConcurrentMap() {
+        return newEvent();
+    }
+
+    @Benchmark
+    public int serialize() throws IOException {
+        out.reset();
+        JsonStreamRequestEntity.forObject(mapper, event).writeRequest(out);
+        return out.size();
+    }
+
+    /**
+     * Jackson's reflective serialisation, which the encoder replaced, for comparison.
+     */
+    @Benchmark
+    public int serializeWithObjectMapper() throws IOException {
+        out.reset();
+        mapper.writeValue(out, event);
+        return out.size();
+    }
+
+    @Benchmark
+    public int constructAndSerialize() throws IOException {
+        out.reset();
+        JsonStreamRequestEntity.forObject(mapper, newEvent()).writeRequest(out);
+        return out.size();
+    }
+}
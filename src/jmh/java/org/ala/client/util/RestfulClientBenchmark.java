@@ -0,0 +1,117 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.ala.client.model.LogEventVO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * {@link RestfulClient#restPost(String, LogEventVO, Map)} against a logger service stub on the
+ * loopback interface, so the figures cover the client and its connection handling rather than
+ * the network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RestfulClientBenchmark {
+
+    @Param({"httpclient", "nio"})
+    public String transport;
+
+    @Param({"3", "1000"})
+    public int recordCountSize;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private RestfulClient client;
+    private String url;
+    private LogEventVO event;
+    private Map<String, String> headers;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[8192];
+                while (in.read(buffer) >= 0) {
+                    // drain the body so the connection can be reused
+                }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverExecutor);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+
+        ConnectionPoolConfig pool = new ConnectionPoolConfig();
+        client = new RestfulClient("nio".equals(transport)
+                ? new NioTransport(5000, 5000, pool)
+                : new HttpClientTransport(5000, 5000, pool));
+
+        Map<String, Integer> recordCounts = new HashMap<String, Integer>();
+        for (int i = 0; i < recordCountSize; i++) {
+            recordCounts.put("dr" + i, i + 1);
+        }
+        event = new LogEventVO(1002, 10, 1, "someone@example.org", "For doing some research with..",
+                "123.123.123.123", "benchmark", "202610", recordCounts);
+        headers = new HashMap<String, String>();
+        headers.put(Constants.USER_AGENT_PARAM, "benchmark");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.shutdown();
+        server.stop(0);
+        serverExecutor.shutdown();
+    }
+
+    @Benchmark
+    public Object[] restPost() throws IOException {
+        return client.restPost(url, event, headers);
+    }
+}
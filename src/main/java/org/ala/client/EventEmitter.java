@@ -0,0 +1,101 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import org.ala.client.appender.RestfulAppender;
+import org.ala.client.model.LogEventVO;
+
+/**
+ * Sends events to the logger service without going through a logging framework, eg:
+ * <pre>
+ * EventEmitter emitter = EventEmitter.forAppender("ALA_LOGGER");
+ * emitter.emit(new LogEventVO(...));
+ * </pre>
+ * There is no level check, no logging event and no MDC lookup: the event goes straight to the
+ * buffer, batches, rate limits and connections of a {@link RestfulAppender}, which may also be in
+ * use by log4j. The user agent is the one of the event, or the one given.
+ * <p>
+ * The emitter does not own the appender, which is activated and closed by whoever created it.
+ * Emitters are thread safe.
+ */
+public class EventEmitter {
+    private final RestfulAppender appender;
+
+    /**
+     * @param appender an active appender, eg: made and activated in code
+     */
+    public EventEmitter(RestfulAppender appender) {
+        if (appender == null) {
+            throw new IllegalArgumentException("No appender");
+        }
+        this.appender = appender;
+    }
+
+    /**
+     * @param name the name of a RestfulAppender configured for log4j 1.2 or log4j 2
+     * @throws IllegalStateException if there is no active appender of that name, eg: log4j is not configured yet
+     */
+    public static EventEmitter forAppender(String name) {
+        RestfulAppender appender = RestfulAppender.getActive(name);
+        if (appender == null) {
+            throw new IllegalStateException("No active RestfulAppender [" + name + "]");
+        }
+        return new EventEmitter(appender);
+    }
+
+    /**
+     * Sends an event, waiting for buffer space if the fullBufferPolicy of the appender says so.
+     *
+     * @return true if the event was buffered or sent, false if it was dropped or shed by a rate limit
+     */
+    public boolean emit(LogEventVO event) {
+        return emit(event, null);
+    }
+
+    /**
+     * @param userAgent used if the event has none
+     */
+    public boolean emit(LogEventVO event, String userAgent) {
+        return event != null && appender.append(event, userAgent);
+    }
+
+    /**
+     * Sends an event if there is room in the buffer of the appender, never waiting for it.
+     *
+     * @return true if the event was buffered or sent, false if it was dropped or shed by a rate limit
+     */
+    public boolean offer(LogEventVO event) {
+        return offer(event, null);
+    }
+
+    /**
+     * @param userAgent used if the event has none
+     */
+    public boolean offer(LogEventVO event, String userAgent) {
+        return event != null && appender.offer(event, userAgent);
+    }
+
+    /**
+     * Sends the buffered and batched events, see {@link RestfulAppender#flush(long)}.
+     */
+    public boolean flush(long timeout) {
+        return appender.flush(timeout);
+    }
+
+    public RestfulAppender getAppender() {
+        return appender;
+    }
+}
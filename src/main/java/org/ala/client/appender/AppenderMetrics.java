@@ -0,0 +1,265 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.appender;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.ala.client.util.ConnectionPoolStats;
+import org.ala.client.util.LatencyHistogram;
+import org.ala.client.util.RequestListener;
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Metrics of a {@link RestfulAppender}.
+ * <p>
+ * Counters are {@link LongAdder}s, so recording from many logging threads does not contend on a
+ * single value. Queue depths and connection pool figures are read from the appender when asked for.
+ */
+public class AppenderMetrics implements AppenderMetricsMBean, RequestListener {
+    public static final String JMX_DOMAIN = "org.ala.client";
+
+    private final RestfulAppender appender;
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder spooled = new LongAdder();
+    private final LongAdder requestErrors = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final ConcurrentMap<Integer, LongAdder> statusCounts = new ConcurrentHashMap<Integer, LongAdder>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private ObjectName objectName;
+
+    public AppenderMetrics(RestfulAppender appender) {
+        this.appender = appender;
+    }
+
+    void recordAppended() {
+        appended.increment();
+    }
+
+    void recordSent(int events) {
+        sent.add(events);
+    }
+
+    void recordFailed(int events) {
+        failed.add(events);
+    }
+
+    void recordSpooled(int events) {
+        spooled.add(events);
+    }
+
+    public void requestCompleted(int statusCode, long latencyNanos, long bytes) {
+        LongAdder count = statusCounts.get(statusCode);
+        if (count == null) {
+            LongAdder created = new LongAdder();
+            count = statusCounts.putIfAbsent(statusCode, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.increment();
+        latency.record(latencyNanos);
+        bytesSent.add(bytes);
+    }
+
+    public void requestFailed(Throwable cause, long latencyNanos, long bytes) {
+        requestErrors.increment();
+        latency.record(latencyNanos);
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server.
+     *
+     * @param name the appender name
+     */
+    synchronized void register(String name) {
+        unregister();
+        try {
+            ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=RestfulAppender,name=" + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                //eg: the configuration was reloaded and the previous appender was not closed
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (JMException e) {
+            LogLog.warn("Could not register the metrics of RestfulAppender [" + name + "] with JMX", e);
+        }
+    }
+
+    synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            LogLog.debug("Could not unregister " + objectName, e);
+        }
+        objectName = null;
+    }
+
+    /**
+     * @return the appender name these metrics belong to
+     */
+    public String getName() {
+        return appender.getName();
+    }
+
+    public long getAppendedCount() {
+        return appended.sum();
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    public long getSpooledCount() {
+        return spooled.sum();
+    }
+
+    public long getDroppedCount() {
+        return appender.getDroppedCount() + appender.getSpoolDroppedCount();
+    }
+
+    public long getDiscardedCount() {
+        return appender.getDiscardedCount();
+    }
+
+    public long getShedCount() {
+        return appender.getShedCount();
+    }
+
+    public SortedMap<Integer, Long> getShedCountMap() {
+        return appender.getShedCounts();
+    }
+
+    public String getShedCounts() {
+        return format(getShedCountMap());
+    }
+
+    public long getCoalescedCount() {
+        return appender.getCoalescedCount();
+    }
+
+    public long getRequestCount() {
+        return latency.getCount();
+    }
+
+    public long getRequestErrorCount() {
+        return requestErrors.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * @return the number of responses per HTTP status, in status order
+     */
+    public SortedMap<Integer, Long> getStatusCountMap() {
+        SortedMap<Integer, Long> counts = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, LongAdder> entry : statusCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    public String getStatusCounts() {
+        return format(getStatusCountMap());
+    }
+
+    private static String format(SortedMap<Integer, Long> counts) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Integer, Long> entry : counts.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public double getLatencyMeanMillis() {
+        return latency.getMeanMillis();
+    }
+
+    public long getLatencyP50Millis() {
+        return latency.getPercentileMillis(0.5);
+    }
+
+    public long getLatencyP99Millis() {
+        return latency.getPercentileMillis(0.99);
+    }
+
+    public long getLatencyMaxMillis() {
+        return latency.getMaxMillis();
+    }
+
+    public int getQueueDepth() {
+        return appender.getQueueDepth();
+    }
+
+    public int getPendingCount() {
+        return appender.getPendingCount();
+    }
+
+    public long getSpoolSize() {
+        return appender.getSpoolSize();
+    }
+
+    public int getRequestsInFlight() {
+        return appender.getRequestsInFlight();
+    }
+
+    public int getConnectionsLeased() {
+        ConnectionPoolStats stats = appender.getPoolStats();
+        return stats != null ? stats.getLeased() : 0;
+    }
+
+    public int getConnectionsAvailable() {
+        ConnectionPoolStats stats = appender.getPoolStats();
+        return stats != null ? stats.getAvailable() : 0;
+    }
+
+    public int getConnectionsPending() {
+        ConnectionPoolStats stats = appender.getPoolStats();
+        return stats != null ? stats.getPending() : 0;
+    }
+}
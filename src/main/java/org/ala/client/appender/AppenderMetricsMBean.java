@@ -0,0 +1,91 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.appender;
+
+/**
+ * JMX view of the metrics of a {@link RestfulAppender}, registered as
+ * {@code org.ala.client:type=RestfulAppender,name=<appender name>}.
+ */
+public interface AppenderMetricsMBean {
+
+    /** @return events accepted by the appender */
+    long getAppendedCount();
+
+    /** @return events the logger service accepted */
+    long getSentCount();
+
+    /** @return events the logger service rejected or that could not be sent and were not spooled */
+    long getFailedCount();
+
+    /** @return events written to the spool */
+    long getSpooledCount();
+
+    /** @return events dropped because the buffer or the spool was full */
+    long getDroppedCount();
+
+    /** @return events an enclosing AsyncAppender reported as discarded */
+    long getDiscardedCount();
+
+    /** @return events shed by the per event type rate limits */
+    long getShedCount();
+
+    /** @return events shed per event type id, eg: {@code 2000=1520} */
+    String getShedCounts();
+
+    /** @return events merged into an earlier event */
+    long getCoalescedCount();
+
+    /** @return POST requests made, each including its retries */
+    long getRequestCount();
+
+    /** @return POST requests that failed without a response */
+    long getRequestErrorCount();
+
+    /** @return request body bytes written, after compression */
+    long getBytesSent();
+
+    /** @return the number of responses per HTTP status, eg: {@code 200=1520, 503=3} */
+    String getStatusCounts();
+
+    double getLatencyMeanMillis();
+
+    long getLatencyP50Millis();
+
+    long getLatencyP99Millis();
+
+    long getLatencyMaxMillis();
+
+    /** @return events waiting for the sender thread */
+    int getQueueDepth();
+
+    /** @return events waiting for their batch to fill or their merge window to end */
+    int getPendingCount();
+
+    /** @return bytes of spooled events not yet replayed */
+    long getSpoolSize();
+
+    /** @return asynchronous requests in flight */
+    int getRequestsInFlight();
+
+    /** @return connections in use by a request */
+    int getConnectionsLeased();
+
+    /** @return idle connections kept open for reuse */
+    int getConnectionsAvailable();
+
+    /** @return requests waiting for a connection */
+    int getConnectionsPending();
+}
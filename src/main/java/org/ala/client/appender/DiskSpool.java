@@ -0,0 +1,421 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.appender;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Write-ahead spool that keeps log events on disk while the logger service is unreachable.
+ * <p>
+ * Events are appended to memory-mapped segment files named {@code spool-<sequence>.seg}. Each record
+ * is {@code [int length][int userAgentLength][userAgent][json]} in UTF-8 and the length is written last,
+ * so a zero length marks the end of the written part of a segment. A new segment is started when the
+ * current one is full and segments are deleted once every record in them has been replayed.
+ * <p>
+ * The read offset is kept in {@code spool.offset} together with a checksum and is only advanced after
+ * the replayer has delivered the records before it. After a crash replay resumes from the last committed
+ * offset, so events may be delivered twice but are not lost. Data that the operating system had not
+ * yet written out when the host itself crashed can still be lost.
+ */
+public class DiskSpool {
+
+    /**
+     * Delivers replayed events back to the logger service.
+     */
+    public interface ReplaySender {
+        /**
+         * @param events    JSON encoded events, in the order they were spooled
+         * @param userAgent the user agent shared by all events
+         * @return true if the events were delivered, or were rejected and should not be retried
+         */
+        boolean send(List<String> events, String userAgent);
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String OFFSET_FILE = "spool.offset";
+    private static final long OFFSET_MAGIC = 0x414c415370L;
+    private static final int HEADER_SIZE = 8;
+
+    private static final long REPLAY_IDLE_MILLIS = 1000;
+    private static final long REPLAY_MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final File directory;
+    private final int segmentSize;
+    private final long maxSize;
+
+    private long writeSequence;
+    private MappedByteBuffer writeBuffer;
+    private long readSequence;
+    private ByteBuffer readBuffer;
+    private int readPosition;
+    private final MappedByteBuffer offsetBuffer;
+    private long totalSize;
+
+    private volatile boolean empty;
+    private final LongAdder droppedCount = new LongAdder();
+    private Thread replayer;
+    private volatile boolean running;
+
+    /**
+     * Opens the spool in the given directory, recovering any events left by a previous run.
+     *
+     * @param directory   where the segment files are kept, created if needed
+     * @param segmentSize size in bytes of each segment file
+     * @param maxSize     maximum total size in bytes of all segment files
+     * @throws IOException if the directory or its files cannot be used
+     */
+    public DiskSpool(File directory, int segmentSize, long maxSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = Math.max(4096, segmentSize);
+        this.maxSize = Math.max(this.segmentSize, maxSize);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create spool directory " + directory);
+        }
+
+        offsetBuffer = map(new File(directory, OFFSET_FILE), 3 * 8);
+        long[] segments = listSegments();
+        for (long sequence : segments) {
+            totalSize += segmentFile(sequence).length();
+        }
+
+        if (segments.length == 0) {
+            writeSequence = 1;
+            writeBuffer = openSegment(writeSequence, this.segmentSize);
+            readSequence = writeSequence;
+            readBuffer = writeBuffer.duplicate();
+            readPosition = 0;
+        } else {
+            writeSequence = segments[segments.length - 1];
+            writeBuffer = openSegment(writeSequence, 0);
+            writeBuffer.position(scanEnd(writeBuffer));
+
+            long sequence = offsetBuffer.getLong(0);
+            long position = offsetBuffer.getLong(8);
+            boolean valid = offsetBuffer.getLong(16) == (sequence ^ position ^ OFFSET_MAGIC)
+                    && Arrays.binarySearch(segments, sequence) >= 0;
+            readSequence = valid ? sequence : segments[0];
+            readPosition = valid ? (int) position : 0;
+            readBuffer = readSequence == writeSequence ? writeBuffer.duplicate() : openSegment(readSequence, 0);
+            if (readPosition > readBuffer.capacity()) {
+                readPosition = 0;
+            }
+            // segments older than the committed offset were replayed before the last shutdown
+            for (long old : segments) {
+                if (old < readSequence) {
+                    deleteSegment(old);
+                }
+            }
+        }
+        updateEmpty();
+    }
+
+    /**
+     * Appends an event to the spool.
+     *
+     * @return false if the event was dropped because the spool is full or could not be written
+     */
+    public synchronized boolean append(String json, String userAgent) {
+        byte[] agentBytes = userAgent.getBytes(UTF8);
+        byte[] jsonBytes = json.getBytes(UTF8);
+        int length = 4 + agentBytes.length + jsonBytes.length;
+        try {
+            if (writeBuffer.remaining() < 4 + length) {
+                int size = Math.max(segmentSize, length + HEADER_SIZE);
+                if (totalSize + size > maxSize) {
+                    droppedCount.increment();
+                    return false;
+                }
+                writeBuffer.force();
+                writeSequence++;
+                writeBuffer = openSegment(writeSequence, size);
+            }
+            int start = writeBuffer.position();
+            writeBuffer.position(start + 4);
+            writeBuffer.putInt(agentBytes.length);
+            writeBuffer.put(agentBytes);
+            writeBuffer.put(jsonBytes);
+            writeBuffer.putInt(start, length);
+        } catch (IOException e) {
+            LogLog.error("Could not write log event to spool " + directory, e);
+            droppedCount.increment();
+            return false;
+        }
+        empty = false;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @return true if every spooled event has been replayed
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * @return the number of events that could not be spooled
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * @return the total size in bytes of the segment files
+     */
+    public synchronized long getSize() {
+        return totalSize;
+    }
+
+    /**
+     * Starts the background thread that replays spooled events with the given sender.
+     *
+     * @param name       used to name the replay thread
+     * @param maxRecords maximum number of events handed to the sender at once
+     * @param sender     delivers the events
+     */
+    public synchronized void startReplayer(String name, final int maxRecords, final ReplaySender sender) {
+        if (replayer != null) {
+            return;
+        }
+        running = true;
+        replayer = new Thread(new Runnable() {
+            public void run() {
+                replay(Math.max(1, maxRecords), sender);
+            }
+        }, "ala-logger-spool-" + name);
+        replayer.setDaemon(true);
+        replayer.start();
+    }
+
+    /**
+     * Stops the replay thread and writes the spool out to disk.
+     */
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = replayer;
+            replayer = null;
+            notifyAll();
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            writeBuffer.force();
+            offsetBuffer.force();
+        }
+    }
+
+    private void replay(int maxRecords, ReplaySender sender) {
+        long backoff = REPLAY_IDLE_MILLIS;
+        List<String> events = new ArrayList<String>(maxRecords);
+        while (running) {
+            events.clear();
+            String userAgent = null;
+            long sequence;
+            int endPosition;
+            try {
+                synchronized (this) {
+                    while (running && (userAgent = read(maxRecords, events)) == null) {
+                        wait(REPLAY_IDLE_MILLIS);
+                    }
+                    if (!running) {
+                        return;
+                    }
+                    sequence = readSequence;
+                    endPosition = readBuffer.position();
+                }
+
+                if (sender.send(events, userAgent)) {
+                    commit(sequence, endPosition);
+                    backoff = REPLAY_IDLE_MILLIS;
+                } else {
+                    Thread.sleep(backoff);
+                    backoff = Math.min(REPLAY_MAX_BACKOFF_MILLIS, backoff * 2);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                LogLog.error("Failed to replay spooled log events from " + directory, e);
+            }
+        }
+    }
+
+    /**
+     * Reads consecutive records with the same user agent from the read position, leaving the read
+     * buffer positioned after the last record read. Must be called holding the lock.
+     *
+     * @return the user agent of the records read, or null if there are none
+     */
+    private String read(int maxRecords, List<String> events) {
+        advanceSegment();
+        ByteBuffer buffer = readBuffer;
+        int limit = readSequence == writeSequence ? writeBuffer.position() : buffer.capacity();
+        buffer.position(readPosition);
+
+        String userAgent = null;
+        while (events.size() < maxRecords && buffer.position() + HEADER_SIZE <= limit) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length <= 0) {
+                buffer.position(start);
+                break;
+            }
+            int agentLength = buffer.getInt();
+            String agent = decode(buffer, agentLength);
+            if (userAgent != null && !userAgent.equals(agent)) {
+                buffer.position(start);
+                break;
+            }
+            userAgent = agent;
+            events.add(decode(buffer, length - 4 - agentLength));
+        }
+        return userAgent;
+    }
+
+    /**
+     * Moves the read position to the next segment once the current one has been fully replayed.
+     */
+    private void advanceSegment() {
+        while (readSequence < writeSequence) {
+            int position = readPosition;
+            if (position + HEADER_SIZE <= readBuffer.capacity() && readBuffer.getInt(position) > 0) {
+                return;
+            }
+            long finished = readSequence;
+            readSequence++;
+            readPosition = 0;
+            try {
+                readBuffer = readSequence == writeSequence ? writeBuffer.duplicate() : openSegment(readSequence, 0);
+            } catch (IOException e) {
+                LogLog.error("Could not open spool segment " + segmentFile(readSequence), e);
+            }
+            writeOffset();
+            deleteSegment(finished);
+        }
+    }
+
+    private synchronized void commit(long sequence, int position) {
+        if (sequence == readSequence) {
+            readPosition = position;
+            writeOffset();
+        }
+        advanceSegment();
+        updateEmpty();
+    }
+
+    private void updateEmpty() {
+        empty = readSequence == writeSequence && readPosition >= writeBuffer.position();
+    }
+
+    private void writeOffset() {
+        offsetBuffer.putLong(0, readSequence);
+        offsetBuffer.putLong(8, readPosition);
+        offsetBuffer.putLong(16, readSequence ^ readPosition ^ OFFSET_MAGIC);
+        offsetBuffer.force();
+    }
+
+    private static String decode(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * @return the position after the last complete record of a segment
+     */
+    private static int scanEnd(MappedByteBuffer buffer) {
+        int position = 0;
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 4 + length > buffer.capacity()) {
+                break;
+            }
+            position += 4 + length;
+        }
+        return position;
+    }
+
+    private MappedByteBuffer openSegment(long sequence, int size) throws IOException {
+        File file = segmentFile(sequence);
+        long existing = file.length();
+        MappedByteBuffer buffer = map(file, size > 0 ? size : (int) existing);
+        totalSize += file.length() - existing;
+        return buffer;
+    }
+
+    private void deleteSegment(long sequence) {
+        File file = segmentFile(sequence);
+        long length = file.length();
+        if (file.delete()) {
+            totalSize -= length;
+        } else {
+            LogLog.warn("Could not delete replayed spool segment " + file);
+            file.deleteOnExit();
+        }
+    }
+
+    private File segmentFile(long sequence) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%019d", sequence) + SEGMENT_SUFFIX);
+    }
+
+    private long[] listSegments() {
+        String[] names = directory.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        long[] sequences = new long[names == null ? 0 : names.length];
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = Long.parseLong(names[i].substring(SEGMENT_PREFIX.length(), names[i].length() - SEGMENT_SUFFIX.length()));
+        }
+        Arrays.sort(sequences);
+        return sequences;
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.appender;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Collects log events and hands them on in batches once either the size limit or the age limit
+ * of the oldest pending event is reached.
+ * <p>
+ * A batch is sent with a single set of HTTP headers, so pending events are partitioned by user
+ * agent and each partition is batched on its own. Events with the same user agent are sent in the
+ * order they were added; events with different user agents may overtake each other.
+ */
+public class EventBatcher {
+
+    /**
+     * Receives the batches produced by an {@link EventBatcher}.
+     */
+    public interface BatchSender {
+        /**
+         * @param events    JSON encoded Strings or LogEventVOs, in the order they were added
+         * @param userAgent the user agent shared by all events in the batch
+         */
+        void send(List<Object> events, String userAgent);
+    }
+
+    private static final long MIN_CHECK_INTERVAL = 10;
+    //user agents with pending events, beyond that the oldest partition is flushed early.
+    private static final int MAX_PARTITIONS = 1024;
+
+    private final int maxSize;
+    private final long maxAgeMillis;
+    private final BatchSender sender;
+    private final ScheduledExecutorService timer;
+
+    //in the order the partitions were opened, which is also the order they expire in
+    private final LinkedHashMap<String, Partition> partitions = new LinkedHashMap<String, Partition>();
+    private int pendingCount;
+    private boolean closed;
+
+    private static class Partition {
+        final String userAgent;
+        final long oldestEventTime;
+        final List<Object> events;
+
+        Partition(String userAgent, int maxSize) {
+            this.userAgent = userAgent;
+            this.oldestEventTime = System.currentTimeMillis();
+            this.events = new ArrayList<Object>(Math.min(maxSize, 16));
+        }
+    }
+
+    /**
+     * @param name         used to name the flush thread
+     * @param maxSize      maximum number of events in a batch
+     * @param maxAgeMillis maximum time an event may wait before its batch is flushed
+     * @param sender       destination for full or expired batches
+     */
+    public EventBatcher(String name, int maxSize, long maxAgeMillis, BatchSender sender) {
+        this.maxSize = Math.max(1, maxSize);
+        this.maxAgeMillis = Math.max(1, maxAgeMillis);
+        this.sender = sender;
+
+        final String threadName = "ala-logger-batch-" + name;
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long interval = Math.max(MIN_CHECK_INTERVAL, this.maxAgeMillis / 2);
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flushExpired();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds an event to the pending batch of its user agent, sending the batch on the calling thread
+     * if it is full. Once the batcher is closed, events are sent on their own straight away.
+     *
+     * @param event     a JSON encoded String or a LogEventVO
+     * @param userAgent the user agent to send the event with
+     */
+    public void add(Object event, String userAgent) {
+        Partition evicted = null;
+        Partition full = null;
+
+        synchronized (this) {
+            if (closed) {
+                full = new Partition(userAgent, 1);
+                full.events.add(event);
+            } else {
+                Partition partition = partitions.get(userAgent);
+                if (partition == null) {
+                    if (partitions.size() >= MAX_PARTITIONS) {
+                        evicted = take(partitions.keySet().iterator().next());
+                    }
+                    partition = new Partition(userAgent, maxSize);
+                    partitions.put(userAgent, partition);
+                }
+                partition.events.add(event);
+                pendingCount++;
+                if (partition.events.size() >= maxSize) {
+                    full = take(userAgent);
+                }
+            }
+        }
+
+        if (evicted != null) {
+            send(evicted);
+        }
+        if (full != null) {
+            send(full);
+        }
+    }
+
+    /**
+     * Sends the pending batches, if any, on the calling thread.
+     */
+    public void flush() {
+        List<Partition> batches;
+        synchronized (this) {
+            if (partitions.isEmpty()) {
+                return;
+            }
+            batches = new ArrayList<Partition>(partitions.values());
+            partitions.clear();
+            pendingCount = 0;
+        }
+        for (Partition batch : batches) {
+            send(batch);
+        }
+    }
+
+    /**
+     * Stops the flush timer and sends whatever is still pending.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        timer.shutdown();
+        flush();
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * @return the number of user agents with pending events
+     */
+    public synchronized int getPartitionCount() {
+        return partitions.size();
+    }
+
+    private void flushExpired() {
+        List<Partition> expired = new ArrayList<Partition>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Iterator<Partition> it = partitions.values().iterator();
+            while (it.hasNext()) {
+                Partition partition = it.next();
+                if (now - partition.oldestEventTime < maxAgeMillis) {
+                    break;
+                }
+                it.remove();
+                pendingCount -= partition.events.size();
+                expired.add(partition);
+            }
+        }
+        for (Partition batch : expired) {
+            send(batch);
+        }
+    }
+
+    private Partition take(String userAgent) {
+        Partition partition = partitions.remove(userAgent);
+        pendingCount -= partition.events.size();
+        return partition;
+    }
+
+    private void send(Partition batch) {
+        try {
+            sender.send(batch.events, batch.userAgent);
+        } catch (RuntimeException e) {
+            LogLog.error("Failed to send a batch of " + batch.events.size() + " log events", e);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.appender;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.ala.client.model.LogEventVO;
+import org.ala.client.model.RecordCountMap;
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Merges log events that only differ in their record counts, so that a page showing many
+ * records is logged as one event rather than one per search.
+ * <p>
+ * Events of the opted-in types are grouped by the values of the key fields. The first event of a group
+ * is held for the time window, and the record counts of the events that follow are added to it per uid.
+ * When the window ends the merged event is handed on. Fields that are not part of the key are taken
+ * from the first event of the group.
+ */
+public class EventCoalescer {
+
+    /**
+     * Receives the merged events.
+     */
+    public interface Sender {
+        void send(LogEventVO event, String userAgent);
+    }
+
+    /**
+     * The fields of a {@link LogEventVO} that can make up the merge key.
+     */
+    public enum KeyField {
+        eventTypeId, userIP, userAgent, month, reasonTypeId, sourceTypeId, userEmail, comment, sourceUrl;
+
+        Object valueOf(LogEventVO event) {
+            switch (this) {
+                case eventTypeId:
+                    return event.getEventTypeId();
+                case userIP:
+                    return event.getUserIP();
+                case userAgent:
+                    return event.getUserAgent();
+                case month:
+                    return event.getMonth();
+                case reasonTypeId:
+                    return event.getReasonTypeId();
+                case sourceTypeId:
+                    return event.getSourceTypeId();
+                case userEmail:
+                    return event.getUserEmail();
+                case comment:
+                    return event.getComment();
+                default:
+                    return event.getSourceUrl();
+            }
+        }
+    }
+
+    public static final List<KeyField> DEFAULT_KEY = Arrays.asList(KeyField.eventTypeId, KeyField.userIP,
+            KeyField.userAgent, KeyField.month, KeyField.reasonTypeId, KeyField.sourceTypeId);
+
+    //groups held at once, beyond that all groups are flushed early.
+    private static final int MAX_GROUPS = 10000;
+    private static final long MIN_CHECK_INTERVAL = 10;
+
+    //sorted, searched without boxing the id
+    private volatile int[] eventTypeIds;
+    private final KeyField[] key;
+    private final long windowMillis;
+    private final Sender sender;
+    private final ScheduledExecutorService timer;
+    private final LongAdder mergedCount = new LongAdder();
+
+    //in the order the groups were opened, which is also the order they expire in
+    private final LinkedHashMap<List<Object>, Group> groups = new LinkedHashMap<List<Object>, Group>();
+
+    private static class Group {
+        final long openedAt;
+        final String userAgent;
+        LogEventVO event;
+        boolean copied;
+
+        Group(LogEventVO event, String userAgent) {
+            this.openedAt = System.currentTimeMillis();
+            this.event = event;
+            this.userAgent = userAgent;
+        }
+    }
+
+    /**
+     * @param name         used to name the flush thread
+     * @param eventTypeIds the types of events that are merged, others are not accepted
+     * @param key          the fields that must be equal for events to be merged
+     * @param windowMillis time the first event of a group is held for others to merge into it
+     * @param sender       destination for merged events
+     */
+    public EventCoalescer(String name, Set<Integer> eventTypeIds, List<KeyField> key, long windowMillis, Sender sender) {
+        setEventTypeIds(eventTypeIds);
+        this.key = key.toArray(new KeyField[key.size()]);
+        this.windowMillis = Math.max(1, windowMillis);
+        this.sender = sender;
+
+        final String threadName = "ala-logger-coalesce-" + name;
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long interval = Math.max(MIN_CHECK_INTERVAL, this.windowMillis / 2);
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flushExpired();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return false if the event's type is not merged, in which case the caller sends it on
+     */
+    /**
+     * Changes the types of events that are merged. Events already held are sent at the end of their window.
+     */
+    public void setEventTypeIds(Set<Integer> eventTypeIds) {
+        int[] ids = new int[eventTypeIds.size()];
+        int i = 0;
+        for (Integer id : eventTypeIds) {
+            ids[i++] = id;
+        }
+        Arrays.sort(ids);
+        this.eventTypeIds = ids;
+    }
+
+    public boolean add(LogEventVO event, String userAgent) {
+        if (Arrays.binarySearch(eventTypeIds, event.getEventTypeId()) < 0) {
+            return false;
+        }
+        List<Object> groupKey = keyOf(event, userAgent);
+        List<Group> full = null;
+        synchronized (this) {
+            Group group = groups.get(groupKey);
+            if (group == null) {
+                if (groups.size() >= MAX_GROUPS) {
+                    full = takeAll();
+                }
+                groups.put(groupKey, new Group(event, userAgent));
+            } else {
+                merge(group, event);
+            }
+        }
+        if (full != null) {
+            send(full);
+        }
+        return true;
+    }
+
+    /**
+     * Sends all merged events, on the calling thread.
+     */
+    public void flush() {
+        List<Group> all;
+        synchronized (this) {
+            all = takeAll();
+        }
+        send(all);
+    }
+
+    /**
+     * Stops the flush timer and sends whatever is still held.
+     */
+    public void close() {
+        timer.shutdown();
+        flush();
+    }
+
+    /**
+     * @return the number of events that were merged into an earlier event
+     */
+    public long getMergedCount() {
+        return mergedCount.sum();
+    }
+
+    public synchronized int getPendingCount() {
+        return groups.size();
+    }
+
+    private List<Object> keyOf(LogEventVO event, String userAgent) {
+        Object[] values = new Object[key.length + 1];
+        for (int i = 0; i < key.length; i++) {
+            values[i] = key[i].valueOf(event);
+        }
+        //merged events are sent with one set of headers
+        values[key.length] = userAgent;
+        return Arrays.asList(values);
+    }
+
+    private void merge(Group group, LogEventVO event) {
+        if (!group.copied) {
+            //the first event belongs to the caller, so sum into a copy
+            group.event = copyOf(group.event);
+            group.copied = true;
+        }
+        RecordCountMap counts = (RecordCountMap) group.event.getRecordCounts();
+        Map<String, Integer> added = event.getRecordCounts();
+        if (added instanceof RecordCountMap) {
+            RecordCountMap addedCounts = (RecordCountMap) added;
+            for (int i = 0; i < addedCounts.size(); i++) {
+                if (!addedCounts.isNullAt(i)) {
+                    counts.add(addedCounts.keyAt(i), addedCounts.valueAt(i));
+                }
+            }
+        } else if (added != null) {
+            for (Map.Entry<String, Integer> entry : added.entrySet()) {
+                if (entry.getValue() != null) {
+                    counts.add(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        mergedCount.increment();
+    }
+
+    private static LogEventVO copyOf(LogEventVO event) {
+        RecordCountMap counts = event.getRecordCounts() != null
+                ? new RecordCountMap(event.getRecordCounts())
+                : new RecordCountMap();
+        return new LogEventVO(event, counts);
+    }
+
+    private void flushExpired() {
+        List<Group> expired = new ArrayList<Group>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Iterator<Group> it = groups.values().iterator();
+            while (it.hasNext()) {
+                Group group = it.next();
+                if (now - group.openedAt < windowMillis) {
+                    break;
+                }
+                expired.add(group);
+                it.remove();
+            }
+        }
+        send(expired);
+    }
+
+    private List<Group> takeAll() {
+        List<Group> all = new ArrayList<Group>(groups.values());
+        groups.clear();
+        return all;
+    }
+
+    private void send(List<Group> toSend) {
+        for (Group group : toSend) {
+            try {
+                sender.send(group.event, group.userAgent);
+            } catch (RuntimeException e) {
+                LogLog.error("Failed to send a merged log event", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.appender;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.ala.client.model.LogEventVO;
+import org.ala.client.model.RecordCountMap;
+import org.ala.client.util.LogEventEncoder;
+import org.ala.client.util.LogEventJsonValidator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ObjectNode;
+
+/**
+ * Limits the rate of events per event type.
+ * <p>
+ * In {@link RateLimitMode#DROP} mode each limited type has a token bucket, kept as the theoretical
+ * arrival time of the next event (GCRA) so that it is updated with a single compare and set.
+ * In {@link RateLimitMode#SAMPLE} mode events of a type are kept with the probability that brought
+ * the previous second's arrivals down to the limit, and the recordCounts of a kept event are
+ * multiplied by the inverse of that probability. Limits and the mode can be changed at any time;
+ * the number of events shed is kept per type.
+ */
+public class EventRateLimiter {
+    private static final long SECOND = 1000000000L;
+
+    /**
+     * Rate limit of one event type.
+     */
+    private static final class Limit {
+        final int eventTypeId;
+        //nanoseconds between events at the limit
+        final long interval;
+        //how far ahead of now the next arrival time may be, which allows bursts
+        final long tolerance;
+        final double rate;
+        final LongAdder shed;
+        final AtomicLong nextArrival = new AtomicLong(Long.MIN_VALUE);
+        //the sampling window
+        final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+        final LongAdder windowArrivals = new LongAdder();
+        volatile double probability = 1;
+
+        Limit(int eventTypeId, double rate, int burst, LongAdder shed) {
+            this.eventTypeId = eventTypeId;
+            this.rate = rate;
+            this.shed = shed;
+            this.interval = Math.max(1, (long) (SECOND / rate));
+            this.tolerance = interval * Math.max(0, burst - 1);
+        }
+
+        boolean tryAcquire(long now) {
+            while (true) {
+                long next = nextArrival.get();
+                long start = Math.max(next, now);
+                if (start - now > tolerance) {
+                    return false;
+                }
+                if (nextArrival.compareAndSet(next, start + interval)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return the probability to keep an event arriving now with
+         */
+        double sampleProbability(long now) {
+            windowArrivals.increment();
+            long start = windowStart.get();
+            long elapsed = now - start;
+            if (elapsed >= SECOND && windowStart.compareAndSet(start, now)) {
+                //arrivals of the window just ended, a few racing in from the next one make no difference
+                long arrivals = windowArrivals.sumThenReset();
+                double allowed = rate * elapsed / SECOND;
+                probability = arrivals > allowed ? allowed / arrivals : 1;
+            }
+            return probability;
+        }
+    }
+
+    //sorted by event type id, replaced as a whole when the limits change
+    private volatile Limit[] limits = new Limit[0];
+    private volatile RateLimitMode mode;
+    //shed events per type, kept when a type's limit is removed
+    private final Map<Integer, LongAdder> shedCounts = new TreeMap<Integer, LongAdder>();
+
+    public EventRateLimiter(RateLimitMode mode) {
+        this.mode = mode;
+    }
+
+    public RateLimitMode getMode() {
+        return mode;
+    }
+
+    public void setMode(RateLimitMode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Sets the limits, replacing all the previous ones.
+     *
+     * @param rates events per second by event type id
+     * @param bursts events that may arrive at once by event type id, the rate if not given
+     */
+    public synchronized void setLimits(Map<Integer, Double> rates, Map<Integer, Integer> bursts) {
+        int[] newIds = new int[rates.size()];
+        int i = 0;
+        for (Integer id : rates.keySet()) {
+            newIds[i++] = id;
+        }
+        Arrays.sort(newIds);
+        Limit[] newLimits = new Limit[newIds.length];
+        for (i = 0; i < newIds.length; i++) {
+            double rate = rates.get(newIds[i]);
+            Integer burst = bursts.get(newIds[i]);
+            LongAdder shed = shedCounts.get(newIds[i]);
+            if (shed == null) {
+                shed = new LongAdder();
+                shedCounts.put(newIds[i], shed);
+            }
+            newLimits[i] = new Limit(newIds[i], rate, burst != null ? burst : (int) Math.max(1, Math.ceil(rate)), shed);
+        }
+        limits = newLimits;
+    }
+
+    /**
+     * @return true if no type is limited
+     */
+    public boolean isEmpty() {
+        return limits.length == 0;
+    }
+
+    /**
+     * Applies the limit of the message's event type.
+     *
+     * @param message a JSON encoded String or a LogEventVO
+     * @return null if the message is shed, otherwise the message, with its recordCounts scaled if it was sampled
+     */
+    public Object limit(Object message) {
+        if (message instanceof LogEventVO) {
+            return limit(message, ((LogEventVO) message).getEventTypeId());
+        }
+        if (message instanceof String) {
+            return limit(message, LogEventJsonValidator.getEventTypeId((String) message));
+        }
+        return message;
+    }
+
+    /**
+     * Applies the limit of an event type to a message already known to be of that type.
+     *
+     * @param message     a JSON encoded String or a LogEventVO
+     * @param eventTypeId the message's event type id
+     * @return null if the message is shed, otherwise the message, with its recordCounts scaled if it was sampled
+     */
+    public Object limit(Object message, int eventTypeId) {
+        double weight = admit(eventTypeId);
+        if (weight == 0) {
+            return null;
+        }
+        if (weight == 1) {
+            return message;
+        }
+        return message instanceof LogEventVO ? weighted((LogEventVO) message, weight) : weighted((String) message, weight);
+    }
+
+    /**
+     * Decides whether an event of a type is kept.
+     *
+     * @return 0 if the event is shed, otherwise the weight of the kept event, 1 unless it was sampled
+     */
+    public double admit(int eventTypeId) {
+        Limit limit = find(eventTypeId);
+        if (limit == null) {
+            return 1;
+        }
+        long now = System.nanoTime();
+        if (mode == RateLimitMode.SAMPLE) {
+            double probability = limit.sampleProbability(now);
+            if (probability >= 1) {
+                return 1;
+            }
+            if (ThreadLocalRandom.current().nextDouble() < probability) {
+                return 1 / probability;
+            }
+        } else if (limit.tryAcquire(now)) {
+            return 1;
+        }
+        limit.shed.increment();
+        return 0;
+    }
+
+    private Limit find(int eventTypeId) {
+        Limit[] limits = this.limits;
+        int low = 0;
+        int high = limits.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int id = limits[mid].eventTypeId;
+            if (id < eventTypeId) {
+                low = mid + 1;
+            } else if (id > eventTypeId) {
+                high = mid - 1;
+            } else {
+                return limits[mid];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return events shed per event type id, including types no longer limited
+     */
+    public synchronized SortedMap<Integer, Long> getShedCounts() {
+        SortedMap<Integer, Long> counts = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, LongAdder> entry : shedCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    public synchronized long getShedCount() {
+        long total = 0;
+        for (LongAdder count : shedCounts.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /**
+     * @return a copy of the event with its recordCounts multiplied by weight
+     */
+    private static LogEventVO weighted(LogEventVO event, double weight) {
+        Map<String, Integer> counts = event.getRecordCounts();
+        if (counts == null || counts.isEmpty()) {
+            return event;
+        }
+        RecordCountMap scaled = new RecordCountMap(counts.size());
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            scaled.put(entry.getKey(), entry.getValue() != null ? scale(entry.getValue(), weight) : null);
+        }
+        return new LogEventVO(event, scaled);
+    }
+
+    /**
+     * @return the JSON message with its recordCounts multiplied by weight, or the message as it is
+     * if it cannot be read, in which case its validation fails later
+     */
+    private static String weighted(String json, double weight) {
+        try {
+            JsonNode root = LogEventEncoder.getMapper().readTree(json);
+            JsonNode counts = root != null ? root.get("recordCounts") : null;
+            if (counts == null || !counts.isObject() || counts.size() == 0) {
+                return json;
+            }
+            ObjectNode scaled = (ObjectNode) counts;
+            Iterator<Map.Entry<String, JsonNode>> fields = scaled.getFields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                JsonNode value = field.getValue();
+                if (value.isNumber()) {
+                    field.setValue(scaled.numberNode(scale(value.getIntValue(), weight)));
+                } else if (value.isTextual()) {
+                    field.setValue(scaled.numberNode(scale(Integer.parseInt(value.getTextValue().trim()), weight)));
+                }
+            }
+            return LogEventEncoder.getMapper().writeValueAsString(root);
+        } catch (IOException e) {
+            return json;
+        } catch (NumberFormatException e) {
+            return json;
+        }
+    }
+
+    /**
+     * Rounds count * weight up or down at random, so that the expected result is exact.
+     */
+    private static int scale(int count, double weight) {
+        double scaled = count * weight;
+        double floor = Math.floor(scaled);
+        long rounded = (long) floor + (ThreadLocalRandom.current().nextDouble() < scaled - floor ? 1 : 0);
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, rounded));
+    }
+}
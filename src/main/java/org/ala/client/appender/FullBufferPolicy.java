@@ -0,0 +1,28 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.appender;
+
+/**
+ * What a {@link RingBufferDispatcher} does with a new event when its buffer is full.
+ */
+public enum FullBufferPolicy {
+    /** Wait up to the configured timeout for a free slot, then drop the new event. */
+    BLOCK,
+    /** Drop the new event straight away. */
+    DROP_NEWEST,
+    /** Drop the oldest buffered event to make room for the new one. */
+    DROP_OLDEST
+}
@@ -0,0 +1,383 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.appender;
+
+import java.util.concurrent.TimeUnit;
+
+import org.ala.client.util.Constants;
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+
+/**
+ * Native log4j 2 appender sending to the logger service, eg:
+ * <pre>
+ * &lt;Restful name="ALA_LOGGER" urlTemplate="https://logger.ala.org.au/service/logger/" batchSize="50"/&gt;
+ * </pre>
+ * It takes the attributes of {@link RestfulAppender}, which does the work. An attribute that is left
+ * out keeps the default of RestfulAppender.
+ * <p>
+ * The logged object and the user agent are read on the logging thread, so the appender works with
+ * the mutable events of garbage free logging and of async loggers, which are reused once
+ * {@link #append(LogEvent)} returns.
+ */
+@Plugin(name = "Restful", category = Core.CATEGORY_NAME, elementType = Appender.ELEMENT_TYPE, printObject = true)
+public final class Log4j2RestfulAppender extends AbstractAppender {
+
+    public static class Builder<B extends Builder<B>> extends AbstractAppender.Builder<B>
+            implements org.apache.logging.log4j.core.util.Builder<Log4j2RestfulAppender> {
+
+        @PluginBuilderAttribute
+        private String urlTemplate;
+
+        @PluginBuilderAttribute
+        private String username;
+
+        @PluginBuilderAttribute(sensitive = true)
+        private String password;
+
+        @PluginBuilderAttribute
+        private Integer timeout;
+
+        @PluginBuilderAttribute
+        private Boolean trustedMessages;
+
+        @PluginBuilderAttribute
+        private Integer connectTimeout;
+
+        @PluginBuilderAttribute
+        private Integer maxRetries;
+
+        @PluginBuilderAttribute
+        private Long retryBackoff;
+
+        @PluginBuilderAttribute
+        private Long requestDeadline;
+
+        @PluginBuilderAttribute
+        private Integer ejectAfterFailures;
+
+        @PluginBuilderAttribute
+        private Long ejectTime;
+
+        @PluginBuilderAttribute
+        private Long healthCheckInterval;
+
+        @PluginBuilderAttribute
+        private Integer circuitBreakerThreshold;
+
+        @PluginBuilderAttribute
+        private Long circuitBreakerOpenTime;
+
+        @PluginBuilderAttribute
+        private Boolean compressRequests;
+
+        @PluginBuilderAttribute
+        private Integer compressionThreshold;
+
+        @PluginBuilderAttribute
+        private String transport;
+
+        @PluginBuilderAttribute
+        private Integer maxInFlight;
+
+        @PluginBuilderAttribute
+        private Integer maxConnectionsPerHost;
+
+        @PluginBuilderAttribute
+        private Integer maxTotalConnections;
+
+        @PluginBuilderAttribute
+        private Long idleConnectionTimeout;
+
+        @PluginBuilderAttribute
+        private String configFile;
+
+        @PluginBuilderAttribute
+        private Boolean watchConfig;
+
+        @PluginBuilderAttribute
+        private Integer batchSize;
+
+        @PluginBuilderAttribute
+        private Long batchMaxAge;
+
+        @PluginBuilderAttribute
+        private Integer bufferSize;
+
+        @PluginBuilderAttribute
+        private String fullBufferPolicy;
+
+        @PluginBuilderAttribute
+        private Long blockTimeout;
+
+        @PluginBuilderAttribute
+        private String lanes;
+
+        @PluginBuilderAttribute
+        private String spoolDirectory;
+
+        @PluginBuilderAttribute
+        private Long spoolMaxSize;
+
+        @PluginBuilderAttribute
+        private Integer spoolSegmentSize;
+
+        @PluginBuilderAttribute
+        private Long shutdownTimeout;
+
+        @PluginBuilderAttribute
+        private Integer drainThreads;
+
+        @PluginBuilderAttribute
+        private String rateLimits;
+
+        @PluginBuilderAttribute
+        private String rateLimitMode;
+
+        @PluginBuilderAttribute
+        private String coalesceEventTypes;
+
+        @PluginBuilderAttribute
+        private String coalesceKey;
+
+        @PluginBuilderAttribute
+        private Long coalesceWindow;
+
+        @PluginBuilderAttribute
+        private String eventTypesUrl;
+
+        @PluginBuilderAttribute
+        private Long eventTypesRefreshInterval;
+
+        @PluginBuilderAttribute
+        private Boolean jmxEnabled;
+
+        @PluginBuilderAttribute
+        private Integer prometheusPort;
+
+        @PluginBuilderAttribute
+        private String prometheusHost;
+
+        public B setUrlTemplate(String urlTemplate) {
+            this.urlTemplate = urlTemplate;
+            return asBuilder();
+        }
+
+        public B setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return asBuilder();
+        }
+
+        public B setBufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+            return asBuilder();
+        }
+
+        public B setConfigFile(String configFile) {
+            this.configFile = configFile;
+            return asBuilder();
+        }
+
+        @Override
+        public Log4j2RestfulAppender build() {
+            RestfulAppender appender = new RestfulAppender();
+            appender.setName(getName());
+            if (urlTemplate != null) {
+                appender.setUrlTemplate(urlTemplate);
+            }
+            if (username != null) {
+                appender.setUsername(username);
+            }
+            if (password != null) {
+                appender.setPassword(password);
+            }
+            if (timeout != null) {
+                appender.setTimeout(timeout);
+            }
+            if (trustedMessages != null) {
+                appender.setTrustedMessages(trustedMessages);
+            }
+            if (connectTimeout != null) {
+                appender.setConnectTimeout(connectTimeout);
+            }
+            if (maxRetries != null) {
+                appender.setMaxRetries(maxRetries);
+            }
+            if (retryBackoff != null) {
+                appender.setRetryBackoff(retryBackoff);
+            }
+            if (requestDeadline != null) {
+                appender.setRequestDeadline(requestDeadline);
+            }
+            if (ejectAfterFailures != null) {
+                appender.setEjectAfterFailures(ejectAfterFailures);
+            }
+            if (ejectTime != null) {
+                appender.setEjectTime(ejectTime);
+            }
+            if (healthCheckInterval != null) {
+                appender.setHealthCheckInterval(healthCheckInterval);
+            }
+            if (circuitBreakerThreshold != null) {
+                appender.setCircuitBreakerThreshold(circuitBreakerThreshold);
+            }
+            if (circuitBreakerOpenTime != null) {
+                appender.setCircuitBreakerOpenTime(circuitBreakerOpenTime);
+            }
+            if (compressRequests != null) {
+                appender.setCompressRequests(compressRequests);
+            }
+            if (compressionThreshold != null) {
+                appender.setCompressionThreshold(compressionThreshold);
+            }
+            if (transport != null) {
+                appender.setTransport(transport);
+            }
+            if (maxInFlight != null) {
+                appender.setMaxInFlight(maxInFlight);
+            }
+            if (maxConnectionsPerHost != null) {
+                appender.setMaxConnectionsPerHost(maxConnectionsPerHost);
+            }
+            if (maxTotalConnections != null) {
+                appender.setMaxTotalConnections(maxTotalConnections);
+            }
+            if (idleConnectionTimeout != null) {
+                appender.setIdleConnectionTimeout(idleConnectionTimeout);
+            }
+            if (configFile != null) {
+                appender.setConfigFile(configFile);
+            }
+            if (watchConfig != null) {
+                appender.setWatchConfig(watchConfig);
+            }
+            if (batchSize != null) {
+                appender.setBatchSize(batchSize);
+            }
+            if (batchMaxAge != null) {
+                appender.setBatchMaxAge(batchMaxAge);
+            }
+            if (bufferSize != null) {
+                appender.setBufferSize(bufferSize);
+            }
+            if (fullBufferPolicy != null) {
+                appender.setFullBufferPolicy(fullBufferPolicy);
+            }
+            if (blockTimeout != null) {
+                appender.setBlockTimeout(blockTimeout);
+            }
+            if (lanes != null) {
+                appender.setLanes(lanes);
+            }
+            if (spoolDirectory != null) {
+                appender.setSpoolDirectory(spoolDirectory);
+            }
+            if (spoolMaxSize != null) {
+                appender.setSpoolMaxSize(spoolMaxSize);
+            }
+            if (spoolSegmentSize != null) {
+                appender.setSpoolSegmentSize(spoolSegmentSize);
+            }
+            if (shutdownTimeout != null) {
+                appender.setShutdownTimeout(shutdownTimeout);
+            }
+            if (drainThreads != null) {
+                appender.setDrainThreads(drainThreads);
+            }
+            if (rateLimits != null) {
+                appender.setRateLimits(rateLimits);
+            }
+            if (rateLimitMode != null) {
+                appender.setRateLimitMode(rateLimitMode);
+            }
+            if (coalesceEventTypes != null) {
+                appender.setCoalesceEventTypes(coalesceEventTypes);
+            }
+            if (coalesceKey != null) {
+                appender.setCoalesceKey(coalesceKey);
+            }
+            if (coalesceWindow != null) {
+                appender.setCoalesceWindow(coalesceWindow);
+            }
+            if (eventTypesUrl != null) {
+                appender.setEventTypesUrl(eventTypesUrl);
+            }
+            if (eventTypesRefreshInterval != null) {
+                appender.setEventTypesRefreshInterval(eventTypesRefreshInterval);
+            }
+            if (jmxEnabled != null) {
+                appender.setJmxEnabled(jmxEnabled);
+            }
+            if (prometheusPort != null) {
+                appender.setPrometheusPort(prometheusPort);
+            }
+            if (prometheusHost != null) {
+                appender.setPrometheusHost(prometheusHost);
+            }
+            return new Log4j2RestfulAppender(getName(), getFilter(), isIgnoreExceptions(), getPropertyArray(), appender);
+        }
+    }
+
+    @PluginBuilderFactory
+    public static <B extends Builder<B>> B newBuilder() {
+        return new Builder<B>().asBuilder();
+    }
+
+    private final RestfulAppender appender;
+
+    private Log4j2RestfulAppender(String name, Filter filter, boolean ignoreExceptions,
+                                  Property[] properties, RestfulAppender appender) {
+        super(name, filter, null, ignoreExceptions, properties);
+        this.appender = appender;
+    }
+
+    /**
+     * @return the log4j 1.2 appender that sends the events, eg: for its metrics
+     */
+    public RestfulAppender getRestfulAppender() {
+        return appender;
+    }
+
+    @Override
+    public void start() {
+        appender.activateOptions();
+        super.start();
+    }
+
+    @Override
+    public boolean stop(long timeout, TimeUnit timeUnit) {
+        setStopping();
+        //waits for the shutdownTimeout of the appender rather than the one of log4j
+        appender.close();
+        setStopped();
+        return true;
+    }
+
+    @Override
+    public void append(LogEvent event) {
+        //the event and its message may be reused once this returns, only the object logged is kept
+        Object userAgent = event.getContextData().getValue(Constants.USER_AGENT_PARAM);
+        appender.append(RestfulAppender.getPayload(event.getMessage()),
+                userAgent instanceof String ? (String) userAgent : null);
+    }
+}
@@ -0,0 +1,149 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.appender;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Immutable snapshot of the logger-client.properties of a host, whose settings take precedence over
+ * those of the log4j configuration. A reload builds a new snapshot rather than changing this one.
+ */
+public final class LoggerClientConfig {
+    public static final LoggerClientConfig EMPTY = new LoggerClientConfig(new Properties());
+
+    public static final String LOGGER_URL = "logger_url";
+    public static final String TIMEOUT = "timeout";
+    public static final String CONNECT_TIMEOUT = "connect_timeout";
+    public static final String MAX_RETRIES = "max_retries";
+    public static final String RETRY_BACKOFF = "retry_backoff";
+    public static final String REQUEST_DEADLINE = "request_deadline";
+    public static final String COMPRESS_REQUESTS = "compress_requests";
+    public static final String COMPRESSION_THRESHOLD = "compression_threshold";
+    public static final String MAX_IN_FLIGHT = "max_in_flight";
+    public static final String MAX_CONNECTIONS_PER_HOST = "max_connections_per_host";
+    public static final String MAX_TOTAL_CONNECTIONS = "max_total_connections";
+    public static final String IDLE_CONNECTION_TIMEOUT = "idle_connection_timeout";
+    public static final String BATCH_SIZE = "batch_size";
+    public static final String BATCH_MAX_AGE = "batch_max_age";
+    public static final String RATE_LIMITS = "rate_limits";
+    public static final String RATE_LIMIT_MODE = "rate_limit_mode";
+
+    //trimmed, non blank values by property name
+    private final Map<String, String> values;
+
+    public LoggerClientConfig(Properties properties) {
+        Map<String, String> values = new TreeMap<String, String>();
+        for (String name : properties.stringPropertyNames()) {
+            String value = properties.getProperty(name);
+            if (!StringUtils.isBlank(value)) {
+                values.put(name.trim(), value.trim());
+            }
+        }
+        this.values = Collections.unmodifiableMap(values);
+    }
+
+    /**
+     * @return the settings in file, EMPTY if it does not exist
+     */
+    public static LoggerClientConfig load(File file) throws IOException {
+        if (!file.exists()) {
+            return EMPTY;
+        }
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return new LoggerClientConfig(properties);
+    }
+
+    /**
+     * @return the value of a property, or null if it is not set
+     */
+    public String get(String name) {
+        return values.get(name);
+    }
+
+    public int getInt(String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    /**
+     * @return the value of a property, or defaultValue if it is not set or not a number
+     */
+    public long getLong(String name, long defaultValue) {
+        String value = values.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            LogLog.warn("Ignoring " + name + "=" + value + " in the logger client properties, it is not a number");
+            return defaultValue;
+        }
+    }
+
+    public boolean getBoolean(String name, boolean defaultValue) {
+        String value = values.get(name);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
+    /**
+     * @return these settings laid over baseline, eg: the settings of the log4j configuration
+     */
+    public LoggerClientConfig over(Map<String, String> baseline) {
+        Properties merged = new Properties();
+        merged.putAll(baseline);
+        merged.putAll(values);
+        return new LoggerClientConfig(merged);
+    }
+
+    public Map<String, String> getValues() {
+        return values;
+    }
+
+    public boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof LoggerClientConfig && values.equals(((LoggerClientConfig) o).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return values.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return values.toString();
+    }
+}
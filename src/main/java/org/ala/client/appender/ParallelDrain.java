@@ -0,0 +1,182 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.appender;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Sends the log events left when an appender is closed on a few threads at once, so that shutdown
+ * ends by a deadline however many events were still buffered.
+ * <p>
+ * Batches are sent in the order they were submitted. Those not started by the deadline, or
+ * submitted after it, are handed to the fallback instead; those still being sent at the deadline
+ * are left to finish on their own.
+ */
+public class ParallelDrain {
+
+    /**
+     * Sends a batch of events, on one of the drain threads.
+     */
+    public interface Sender {
+        void send(List<?> events, String userAgent, boolean asArray);
+    }
+
+    /**
+     * Receives the batches that could not be sent by the deadline.
+     */
+    public interface Fallback {
+        void unsent(List<?> events, String userAgent);
+    }
+
+    private final long deadline;
+    private final Sender sender;
+    private final Fallback fallback;
+    private final ThreadPoolExecutor executor;
+    //batches being sent, to tell how many events were still in flight at the deadline
+    private final Set<Batch> sending = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger sentCount = new AtomicInteger();
+    private final AtomicInteger unsentCount = new AtomicInteger();
+
+    private final class Batch implements Runnable {
+        final List<?> events;
+        final String userAgent;
+        final boolean asArray;
+
+        Batch(List<?> events, String userAgent, boolean asArray) {
+            this.events = events;
+            this.userAgent = userAgent;
+            this.asArray = asArray;
+        }
+
+        public void run() {
+            if (isExpired()) {
+                giveUp(this);
+                return;
+            }
+            sending.add(this);
+            try {
+                sender.send(events, userAgent, asArray);
+                sentCount.addAndGet(events.size());
+            } catch (RuntimeException e) {
+                LogLog.error("Failed to send " + events.size() + " log events on " + Thread.currentThread().getName(), e);
+            } finally {
+                sending.remove(this);
+            }
+        }
+    }
+
+    /**
+     * @param name     used to name the drain threads
+     * @param threads  number of batches sent at once
+     * @param deadline {@link System#nanoTime()} by which the drain ends
+     * @param sender   sends the batches
+     * @param fallback receives the batches not sent by the deadline
+     */
+    public ParallelDrain(String name, int threads, long deadline, Sender sender, Fallback fallback) {
+        this.deadline = deadline;
+        this.sender = sender;
+        this.fallback = fallback;
+
+        final String threadName = "ala-logger-drain-" + name + "-";
+        threads = Math.max(1, threads);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, threadName + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Queues a batch for the drain threads, or hands it to the fallback if the deadline has passed.
+     */
+    public void submit(List<?> events, String userAgent, boolean asArray) {
+        Batch batch = new Batch(events, userAgent, asArray);
+        if (isExpired()) {
+            giveUp(batch);
+            return;
+        }
+        try {
+            executor.execute(batch);
+        } catch (RejectedExecutionException e) {
+            giveUp(batch);
+        }
+    }
+
+    /**
+     * Waits until the batches submitted so far are sent or the deadline passes, then hands the
+     * batches not started to the fallback. No more batches are sent afterwards.
+     *
+     * @return the number of events still being sent at the deadline
+     */
+    public int await() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Runnable batch : executor.shutdownNow()) {
+            giveUp((Batch) batch);
+        }
+        int inFlight = 0;
+        for (Batch batch : sending) {
+            inFlight += batch.events.size();
+        }
+        return inFlight;
+    }
+
+    public boolean isExpired() {
+        return System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * @return the number of events sent by the drain threads, whether or not the logger service accepted them
+     */
+    public int getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * @return the number of events handed to the fallback
+     */
+    public int getUnsentCount() {
+        return unsentCount.get();
+    }
+
+    private void giveUp(Batch batch) {
+        unsentCount.addAndGet(batch.events.size());
+        try {
+            fallback.unsent(batch.events, batch.userAgent);
+        } catch (RuntimeException e) {
+            LogLog.error("Failed to hand on " + batch.events.size() + " unsent log events", e);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.appender;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.ala.client.util.LatencyHistogram;
+import org.apache.log4j.helpers.LogLog;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Writes the metrics of all active {@link RestfulAppender}s in the Prometheus text format.
+ * <p>
+ * Applications can serve {@link #write(Writer)} from their own endpoint, or an appender can start
+ * the built-in server with its {@code prometheusPort} parameter. The server answers on any path
+ * without authentication, so it only listens on the loopback interface unless the
+ * {@code prometheusHost} parameter says otherwise. It is stopped when the last appender is closed.
+ */
+public class PrometheusExporter {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    //name, type and help of the metrics with one value per appender
+    private static final String[][] METRICS = {
+            {"ala_logger_events_appended_total", "counter", "Events accepted by the appender."},
+            {"ala_logger_events_sent_total", "counter", "Events the logger service accepted."},
+            {"ala_logger_events_failed_total", "counter", "Events the logger service rejected, or that could not be sent nor spooled."},
+            {"ala_logger_events_spooled_total", "counter", "Events written to the spool."},
+            {"ala_logger_events_dropped_total", "counter", "Events dropped because the buffer or the spool was full."},
+            {"ala_logger_events_discarded_total", "counter", "Events an enclosing AsyncAppender reported as discarded."},
+            {"ala_logger_events_coalesced_total", "counter", "Events merged into an earlier event."},
+            {"ala_logger_request_errors_total", "counter", "Requests that failed without a response."},
+            {"ala_logger_sent_bytes_total", "counter", "Request body bytes written, after compression."},
+            {"ala_logger_queue_depth", "gauge", "Events waiting for the sender thread."},
+            {"ala_logger_pending_events", "gauge", "Events waiting for their batch to fill or their merge window to end."},
+            {"ala_logger_spool_bytes", "gauge", "Bytes of spooled events not yet replayed."},
+            {"ala_logger_requests_in_flight", "gauge", "Asynchronous requests in flight."},
+            {"ala_logger_connections_leased", "gauge", "Connections in use by a request."},
+            {"ala_logger_connections_available", "gauge", "Idle connections kept open for reuse."},
+            {"ala_logger_connections_pending", "gauge", "Requests waiting for a connection."},
+    };
+
+    private static final CopyOnWriteArrayList<AppenderMetrics> REGISTERED = new CopyOnWriteArrayList<AppenderMetrics>();
+    private static HttpServer server;
+    private static ExecutorService serverExecutor;
+
+    private PrometheusExporter() {
+    }
+
+    static void register(AppenderMetrics metrics) {
+        REGISTERED.addIfAbsent(metrics);
+    }
+
+    static void unregister(AppenderMetrics metrics) {
+        REGISTERED.remove(metrics);
+        if (REGISTERED.isEmpty()) {
+            stop();
+        }
+    }
+
+    /**
+     * Starts the built-in server, unless it is already running.
+     *
+     * @param host the address or host name to listen on, null for the loopback address, eg: 0.0.0.0 for all interfaces
+     * @param port the port to listen on
+     */
+    static synchronized void start(String host, int port) throws IOException {
+        InetSocketAddress address = host == null || host.trim().isEmpty()
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                : new InetSocketAddress(host.trim(), port);
+        if (server != null) {
+            if (!server.getAddress().equals(address)) {
+                LogLog.warn("Prometheus metrics are already served on " + server.getAddress() + ", not on " + address);
+            }
+            return;
+        }
+        server = HttpServer.create(address, 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = scrape().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        serverExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ala-logger-prometheus");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(serverExecutor);
+        server.start();
+    }
+
+    private static synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            serverExecutor.shutdown();
+            server = null;
+            serverExecutor = null;
+        }
+    }
+
+    /**
+     * @return the metrics of all active appenders in the Prometheus text format
+     */
+    public static String scrape() {
+        StringWriter out = new StringWriter();
+        try {
+            write(out);
+        } catch (IOException e) {
+            // not thrown by a StringWriter
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes the metrics of all active appenders in the Prometheus text format.
+     */
+    public static void write(Writer out) throws IOException {
+        List<AppenderMetrics> all = new ArrayList<AppenderMetrics>(REGISTERED);
+        List<Map<String, Number>> samples = new ArrayList<Map<String, Number>>(all.size());
+        for (AppenderMetrics metrics : all) {
+            samples.add(sample(metrics));
+        }
+
+        for (String[] metric : METRICS) {
+            writeHeader(out, metric[0], metric[1], metric[2]);
+            for (int i = 0; i < all.size(); i++) {
+                out.write(metric[0] + "{appender=\"" + escape(all.get(i).getName()) + "\"} " + samples.get(i).get(metric[0]) + "\n");
+            }
+        }
+
+        writeHeader(out, "ala_logger_responses_total", "counter", "Responses from the logger service by HTTP status.");
+        for (AppenderMetrics metrics : all) {
+            for (Map.Entry<Integer, Long> entry : metrics.getStatusCountMap().entrySet()) {
+                out.write("ala_logger_responses_total{appender=\"" + escape(metrics.getName()) + "\",status=\""
+                        + entry.getKey() + "\"} " + entry.getValue() + "\n");
+            }
+        }
+
+        writeHeader(out, "ala_logger_events_shed_total", "counter", "Events shed by the rate limits by event type id.");
+        for (AppenderMetrics metrics : all) {
+            for (Map.Entry<Integer, Long> entry : metrics.getShedCountMap().entrySet()) {
+                out.write("ala_logger_events_shed_total{appender=\"" + escape(metrics.getName()) + "\",event_type=\""
+                        + entry.getKey() + "\"} " + entry.getValue() + "\n");
+            }
+        }
+
+        writeHeader(out, "ala_logger_request_duration_seconds", "histogram", "Time taken by requests to the logger service, including retries.");
+        long[] bounds = LatencyHistogram.getBoundsMillis();
+        for (AppenderMetrics metrics : all) {
+            String label = "appender=\"" + escape(metrics.getName()) + "\"";
+            LatencyHistogram latency = metrics.getLatency();
+            long[] counts = latency.getBucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += counts[i];
+                out.write("ala_logger_request_duration_seconds_bucket{" + label + ",le=\"" + bounds[i] / 1000.0 + "\"} " + cumulative + "\n");
+            }
+            cumulative += counts[bounds.length];
+            out.write("ala_logger_request_duration_seconds_bucket{" + label + ",le=\"+Inf\"} " + cumulative + "\n");
+            out.write("ala_logger_request_duration_seconds_sum{" + label + "} " + latency.getSumNanos() / 1e9 + "\n");
+            out.write("ala_logger_request_duration_seconds_count{" + label + "} " + cumulative + "\n");
+        }
+        out.flush();
+    }
+
+    private static Map<String, Number> sample(AppenderMetrics metrics) {
+        Map<String, Number> values = new HashMap<String, Number>();
+        values.put("ala_logger_events_appended_total", metrics.getAppendedCount());
+        values.put("ala_logger_events_sent_total", metrics.getSentCount());
+        values.put("ala_logger_events_failed_total", metrics.getFailedCount());
+        values.put("ala_logger_events_spooled_total", metrics.getSpooledCount());
+        values.put("ala_logger_events_dropped_total", metrics.getDroppedCount());
+        values.put("ala_logger_events_discarded_total", metrics.getDiscardedCount());
+        values.put("ala_logger_events_coalesced_total", metrics.getCoalescedCount());
+        values.put("ala_logger_request_errors_total", metrics.getRequestErrorCount());
+        values.put("ala_logger_sent_bytes_total", metrics.getBytesSent());
+        values.put("ala_logger_queue_depth", metrics.getQueueDepth());
+        values.put("ala_logger_pending_events", metrics.getPendingCount());
+        values.put("ala_logger_spool_bytes", metrics.getSpoolSize());
+        values.put("ala_logger_requests_in_flight", metrics.getRequestsInFlight());
+        values.put("ala_logger_connections_leased", metrics.getConnectionsLeased());
+        values.put("ala_logger_connections_available", metrics.getConnectionsAvailable());
+        values.put("ala_logger_connections_pending", metrics.getConnectionsPending());
+        return values;
+    }
+
+    private static void writeHeader(Writer out, String name, String type, String help) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static String escape(String label) {
+        if (label == null) {
+            return "";
+        }
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,29 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.appender;
+
+/**
+ * What an {@link EventRateLimiter} does with events of a type beyond its rate limit.
+ */
+public enum RateLimitMode {
+    /** Shed the events the type's token bucket has no token for. */
+    DROP,
+    /**
+     * Keep a random sample of the type's events at about its rate, scaling the recordCounts of the
+     * sampled events so that their totals stay unbiased.
+     */
+    SAMPLE
+}
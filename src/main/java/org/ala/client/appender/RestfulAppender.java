@@ -15,26 +15,51 @@
 
 package org.ala.client.appender;
 
+import org.ala.client.model.EventTypeRegistry;
 import org.ala.client.model.LogEventVO;
+import org.ala.client.util.CircuitBreaker;
+import org.ala.client.util.CircuitOpenException;
+import org.ala.client.util.FileWatcher;
+import org.ala.client.util.ConnectionPoolConfig;
+import org.ala.client.util.ConnectionPoolStats;
 import org.ala.client.util.Constants;
+import org.ala.client.util.EndpointSelector;
+import org.ala.client.util.HeaderCache;
+import org.ala.client.util.HttpClientTransport;
+import org.ala.client.util.LogEventEncoder;
+import org.ala.client.util.LogEventJsonValidator;
+import org.ala.client.util.NioTransport;
 import org.ala.client.util.RestfulClient;
+import org.ala.client.util.Transport;
 import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.AppenderSkeleton;
 import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.spi.LoggingEvent;
-import org.codehaus.jackson.map.DeserializationConfig;
-import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.map.annotate.JsonSerialize;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ObjectMessage;
+import org.apache.logging.log4j.message.ReusableMessage;
+import org.apache.logging.log4j.message.ReusableObjectMessage;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
  * Log4J appender for JSON based REST Web Service.
@@ -46,43 +71,148 @@ public class RestfulAppender extends AppenderSkeleton {
 
     public static final String LOGGER_CLIENT_PROPERTIES = "/data/logger-client/config/logger-client.properties";
     public static final String LOGGER_URL_PROPERTY = "logger_url";
-    private String urlTemplate;
+    private static final long MAX_RETRY_BACKOFF = 5000;
+    //millisecond a replaced client is kept for the requests it is still sending
+    private static final long RETIRE_GRACE_PERIOD = 30000;
+    private static final long RETIRE_CHECK_INTERVAL = 100;
+    //size of the lane for event types not given one when there is no bufferSize
+    private static final int DEFAULT_LANE_SIZE = 1024;
+    //header sets of the user agents seen most recently, shared by all appenders
+    private static final HeaderCache HEADERS = new HeaderCache(1024);
+    public static final String HTTPCLIENT_TRANSPORT = "httpclient";
+    public static final String NIO_TRANSPORT = "nio";
+    private volatile String urlTemplate;
 	private String username;
 	private String password;
 	private int timeout;
+	//skip validation of String messages built by trusted callers.
+	private boolean trustedMessages = false;
+	//millisecond to establish a connection.
+	private int connectTimeout = 5000;
+	//number of times a failed request is repeated.
+	private int maxRetries = 2;
+	//millisecond base of the exponential backoff between retries.
+	private long retryBackoff = 200;
+	//millisecond a request may take including retries, 0 is unbounded.
+	private long requestDeadline = 0;
+	//consecutive failures after which requests fail fast, 0 disables the circuit breaker.
+	private int circuitBreakerThreshold = 5;
+	//millisecond requests fail fast before the logger service is probed again.
+	private long circuitBreakerOpenTime = 30000;
+	//consecutive failed requests after which a node of a urlTemplate list is ejected.
+	private int ejectAfterFailures = 3;
+	//millisecond a node is first ejected for, doubled each time it is ejected again.
+	private long ejectTime = 30000;
+	//millisecond between health checks of the nodes of a urlTemplate list, 0 disables them.
+	private long healthCheckInterval = 10000;
+	//gzip request bodies of at least compressionThreshold bytes.
+	private boolean compressRequests = false;
+	private int compressionThreshold = 1024;
+	//"httpclient", "nio" or the class name of a Transport implementation.
+	private String transport = HTTPCLIENT_TRANSPORT;
+	//number of requests the nio transport keeps in flight.
+	private int maxInFlight = 64;
+	//connections kept open to the logger service.
+	private int maxConnectionsPerHost = ConnectionPoolConfig.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+	private int maxTotalConnections = ConnectionPoolConfig.DEFAULT_MAX_TOTAL_CONNECTIONS;
+	//millisecond an unused connection stays open, 0 keeps it open.
+	private long idleConnectionTimeout = ConnectionPoolConfig.DEFAULT_IDLE_TIMEOUT;
+	//properties file of the host, whose settings take precedence over those of the log4j configuration.
+	private String configFile = LOGGER_CLIENT_PROPERTIES;
+	//apply changes to configFile without a restart.
+	private boolean watchConfig = true;
+	//number of events sent in one request, 1 disables batching.
+	private int batchSize = 1;
+	//millisecond an event may wait for its batch to fill.
+	private long batchMaxAge = 5000;
+	//number of events buffered for the sender thread, 0 sends on the logging thread.
+	private int bufferSize = 0;
+	private FullBufferPolicy fullBufferPolicy = FullBufferPolicy.BLOCK;
+	//millisecond a logging thread waits for buffer space with the BLOCK policy.
+	private long blockTimeout = 1000;
+	//buffer lanes by event type, highest priority first, eg: OCCURRENCE_RECORDS_DOWNLOADED:1024:BLOCK:8;*:8192:DROP_NEWEST:1. Not set buffers all events in one lane.
+	private String lanes;
+	//directory for events that could not be sent, eg: /data/logger-client/spool. Not set disables spooling.
+	private String spoolDirectory;
+	private long spoolMaxSize = 256L * 1024 * 1024;
+	private int spoolSegmentSize = 16 * 1024 * 1024;
+	//millisecond close() may take to send the events still buffered, batched or in flight, eg: below the time the host allows for shutdown.
+	private long shutdownTimeout = 10000;
+	//threads sending the remaining events at close().
+	private int drainThreads = 4;
+	//URL of the logger service's event type listing, or a local file holding one, eg: http://logger.ala.org.au/service/logger/events. Not set knows the built in types only.
+	private String eventTypesUrl;
+	//millisecond between reloads of the event type listing, 0 loads it once.
+	private long eventTypesRefreshInterval = 60 * 60 * 1000;
+	//event type ids or names and their events per second, with an optional burst, eg: IMAGE_VIEWED:100,1000:50/200. Not set disables rate limiting.
+	private String rateLimits;
+	//what is done with events beyond their rate limit, DROP or SAMPLE.
+	private RateLimitMode rateLimitMode = RateLimitMode.DROP;
+	//event type ids or names whose events are merged, eg: 1000,OCCURRENCE_RECORDS_VIEWED_ON_MAP. Not set disables merging.
+	private String coalesceEventTypes;
+	//LogEventVO fields that must be equal for events to be merged, not set uses EventCoalescer.DEFAULT_KEY.
+	private String coalesceKey;
+	//millisecond the first event is held for others to merge into it.
+	private long coalesceWindow = 1000;
+	//register the metrics as a JMX MBean.
+	private boolean jmxEnabled = true;
+	//port of the built-in Prometheus metrics server, 0 disables it.
+	private int prometheusPort = 0;
+	//address the Prometheus metrics server listens on, null is the loopback address.
+	private String prometheusHost;
 
-	private ObjectMapper serMapper;
-	private ObjectMapper deserMapper;
-	private RestfulClient restfulClient;
+	//replaced rather than changed when the logger client properties change, so logging threads read them without a lock
+	private volatile RestfulClient restfulClient;
+	private volatile LoggerClientConfig clientConfig = LoggerClientConfig.EMPTY;
+	//the nodes of urlTemplate, rebuilt when it changes
+	private volatile EndpointSelector endpoints;
+	private final Object configLock = new Object();
+	//the settings of the log4j configuration, or their defaults, which the logger client properties are laid over
+	private final Map<String, String> configuredSettings = new HashMap<String, String>();
+	private FileWatcher configWatcher;
+	private EventTypeRegistry eventTypeRegistry = EventTypeRegistry.getDefault();
+	private final EventRateLimiter rateLimiter = new EventRateLimiter(rateLimitMode);
+	//rate limits set after activateOptions apply straight away
+	private volatile boolean activated;
+	private CircuitBreaker circuitBreaker;
+	private EventCoalescer coalescer;
+	private volatile EventBatcher batcher;
+	private RingBufferDispatcher dispatcher;
+	//lane per event type id, sorted by id, and the lane of all other types
+	private volatile int[] laneEventTypeIds = new int[0];
+	private volatile int[] laneOfEventType = new int[0];
+	private int defaultLane;
+	private DiskSpool spool;
+	//set by close(), events sent from then on go through it
+	private volatile ParallelDrain drain;
+	private final LongAdder discardedCount = new LongAdder();
+	//dropped by the buffer and the spool before they were closed, so the counts outlive them
+	private volatile long closedDroppedCount;
+	private volatile long closedSpoolDroppedCount;
+	private final AppenderMetrics metrics = new AppenderMetrics(this);
+	//active appenders by name, so that an EventEmitter can share the one configured for log4j
+	private static final ConcurrentMap<String, RestfulAppender> ACTIVE = new ConcurrentHashMap<String, RestfulAppender>();
 	
 	public RestfulAppender(){
 		super();
 		restfulClient = new RestfulClient(timeout);
-		        
-        serMapper = new ObjectMapper();
-        serMapper.getSerializationConfig().setSerializationInclusion(JsonSerialize.Inclusion.NON_NULL);
-        deserMapper = new ObjectMapper();
-        deserMapper.getDeserializationConfig().set(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+		configuredSettings.putAll(getOverridableSettings());
 
         loadLoggerClientProperties();
 	}
 
     private void loadLoggerClientProperties() {
-        FileInputStream stream = null;
+        File propsFile = new File(configFile);
+        if (!propsFile.exists()) {
+            LogLog.warn("Cannot find logger client properties file " + configFile + ". Logger " +
+                    "Service URL will be taken from the log4j.xml config file for the host application.");
+            return;
+        }
         try {
-            Properties props = new Properties();
-            File propsFile = new File(LOGGER_CLIENT_PROPERTIES);
-            if (propsFile.exists()) {
-                stream = new FileInputStream(propsFile);
-                props.load(stream);
-                if (!StringUtils.isBlank(props.getProperty(LOGGER_URL_PROPERTY))) {
-                    urlTemplate = props.getProperty(LOGGER_URL_PROPERTY);
-                    LogLog.debug("Log events will be written to [" + urlTemplate + "]");
-                }
-            }
-            else {
-                LogLog.warn("Cannot find logger client properties file " + LOGGER_CLIENT_PROPERTIES + ". Logger " +
-                        "Service URL will be taken from the log4j.xml config file for the host application.");
+            clientConfig = LoggerClientConfig.load(propsFile);
+            if (clientConfig.get(LOGGER_URL_PROPERTY) != null) {
+                urlTemplate = clientConfig.get(LOGGER_URL_PROPERTY);
+                LogLog.debug("Log events will be written to [" + urlTemplate + "]");
             }
         }
         catch (Exception e) {
@@ -91,15 +221,192 @@ public class RestfulAppender extends AppenderSkeleton {
             // not much else can be done here - the urlTemplate will be left blank, so any value provided in the
             // log4j.xml file will be used instead of the environment specific configuration property
         }
-        finally {
-            if (stream != null) {
+    }
+
+    /**
+     * Reads configFile again, keeping the settings already applied if that fails.
+     */
+    private LoggerClientConfig reloadLoggerClientProperties() {
+        try {
+            return LoggerClientConfig.load(new File(configFile));
+        } catch (IOException e) {
+            LogLog.warn("Failed to reload logger client properties file " + configFile + " for [" + name + "], keeping the current settings", e);
+            return clientConfig;
+        }
+    }
+
+    /**
+     * Applies the settings of the logger client properties, laid over those of the log4j configuration,
+     * so that a property removed from the file reverts to its log4j value. On an active appender, a 
+     * client or batcher whose settings changed is replaced by a new one rather than changed.
+     */
+    private void applyLoggerClientProperties(LoggerClientConfig config) {
+        synchronized (configLock) {
+            LoggerClientConfig settings = config.over(configuredSettings);
+            List<Object> clientSettings = getClientSettings();
+            String url = settings.get(LOGGER_URL_PROPERTY);
+            if (url != null && !url.equals(urlTemplate)) {
+                urlTemplate = url;
+                LogLog.debug("Log events will be written to [" + urlTemplate + "]");
+            }
+            timeout = settings.getInt(LoggerClientConfig.TIMEOUT, timeout);
+            connectTimeout = settings.getInt(LoggerClientConfig.CONNECT_TIMEOUT, connectTimeout);
+            maxRetries = settings.getInt(LoggerClientConfig.MAX_RETRIES, maxRetries);
+            retryBackoff = settings.getLong(LoggerClientConfig.RETRY_BACKOFF, retryBackoff);
+            requestDeadline = settings.getLong(LoggerClientConfig.REQUEST_DEADLINE, requestDeadline);
+            compressRequests = settings.getBoolean(LoggerClientConfig.COMPRESS_REQUESTS, compressRequests);
+            compressionThreshold = settings.getInt(LoggerClientConfig.COMPRESSION_THRESHOLD, compressionThreshold);
+            maxInFlight = settings.getInt(LoggerClientConfig.MAX_IN_FLIGHT, maxInFlight);
+            maxConnectionsPerHost = settings.getInt(LoggerClientConfig.MAX_CONNECTIONS_PER_HOST, maxConnectionsPerHost);
+            maxTotalConnections = settings.getInt(LoggerClientConfig.MAX_TOTAL_CONNECTIONS, maxTotalConnections);
+            idleConnectionTimeout = settings.getLong(LoggerClientConfig.IDLE_CONNECTION_TIMEOUT, idleConnectionTimeout);
+            List<Object> batchSettings = Arrays.<Object>asList(batchSize, batchMaxAge);
+            batchSize = settings.getInt(LoggerClientConfig.BATCH_SIZE, batchSize);
+            batchMaxAge = settings.getLong(LoggerClientConfig.BATCH_MAX_AGE, batchMaxAge);
+            if (activated) {
+                if (!clientSettings.equals(getClientSettings())) {
+                    replaceRestfulClient();
+                }
+                if (!batchSettings.equals(Arrays.<Object>asList(batchSize, batchMaxAge))) {
+                    replaceBatcher();
+                }
+            }
+            String mode = settings.get(LoggerClientConfig.RATE_LIMIT_MODE);
+            if (mode != null && !mode.equalsIgnoreCase(rateLimitMode.name())) {
+                useRateLimitMode(mode);
+            }
+            String limits = settings.get(LoggerClientConfig.RATE_LIMITS);
+            if (!StringUtils.equals(limits, rateLimits)) {
+                useRateLimits(limits);
+            }
+            clientConfig = config;
+        }
+    }
+
+    /**
+     * @return the current values of the settings the logger client properties can override, by property name
+     */
+    private Map<String, String> getOverridableSettings() {
+        Object[] values = {LOGGER_URL_PROPERTY, urlTemplate, LoggerClientConfig.TIMEOUT, timeout,
+                LoggerClientConfig.CONNECT_TIMEOUT, connectTimeout, LoggerClientConfig.MAX_RETRIES, maxRetries,
+                LoggerClientConfig.RETRY_BACKOFF, retryBackoff, LoggerClientConfig.REQUEST_DEADLINE, requestDeadline,
+                LoggerClientConfig.COMPRESS_REQUESTS, compressRequests, LoggerClientConfig.COMPRESSION_THRESHOLD, compressionThreshold,
+                LoggerClientConfig.MAX_IN_FLIGHT, maxInFlight, LoggerClientConfig.MAX_CONNECTIONS_PER_HOST, maxConnectionsPerHost,
+                LoggerClientConfig.MAX_TOTAL_CONNECTIONS, maxTotalConnections, LoggerClientConfig.IDLE_CONNECTION_TIMEOUT, idleConnectionTimeout,
+                LoggerClientConfig.BATCH_SIZE, batchSize, LoggerClientConfig.BATCH_MAX_AGE, batchMaxAge,
+                LoggerClientConfig.RATE_LIMITS, rateLimits, LoggerClientConfig.RATE_LIMIT_MODE, rateLimitMode.name()};
+        Map<String, String> settings = new HashMap<String, String>();
+        for (int i = 0; i < values.length; i += 2) {
+            if (values[i + 1] != null) {
+                settings.put((String) values[i], String.valueOf(values[i + 1]));
+            }
+        }
+        return settings;
+    }
+
+    /**
+     * Records the value of a setting in the log4j configuration, which applies whenever the logger 
+     * client properties do not set it.
+     */
+    private void configure(String property, Object value) {
+        synchronized (configLock) {
+            if (value == null) {
+                configuredSettings.remove(property);
+            } else {
+                configuredSettings.put(property, String.valueOf(value));
+            }
+        }
+    }
+
+    private List<Object> getClientSettings() {
+        return Arrays.<Object>asList(timeout, connectTimeout, maxRetries, retryBackoff, requestDeadline, compressRequests,
+                compressionThreshold, maxInFlight, maxConnectionsPerHost, maxTotalConnections, idleConnectionTimeout,
+                isFailover());
+    }
+
+    /**
+     * @return true if urlTemplate lists several nodes, which failed requests are repeated on
+     */
+    private boolean isFailover() {
+        return EndpointSelector.parse(urlTemplate).size() > 1;
+    }
+
+    /**
+     * @return the nodes listed in urlTemplate
+     */
+    private EndpointSelector getEndpointSelector() {
+        EndpointSelector selector = endpoints;
+        String url = urlTemplate;
+        if (selector != null && selector.getUrls().equals(url)) {
+            return selector;
+        }
+        synchronized (configLock) {
+            selector = endpoints;
+            if (selector == null || !selector.getUrls().equals(urlTemplate)) {
+                EndpointSelector replaced = selector;
+                selector = new EndpointSelector("RestfulAppender [" + name + "]", urlTemplate, ejectAfterFailures, ejectTime,
+                        healthCheckInterval, connectTimeout);
+                endpoints = selector;
+                if (replaced != null) {
+                    replaced.close();
+                }
+            }
+            return selector;
+        }
+    }
+
+    private void replaceRestfulClient() {
+        RestfulClient replaced = restfulClient;
+        restfulClient = createRestfulClient();
+        if (replaced != null) {
+            retire(replaced);
+        }
+    }
+
+    /**
+     * Shuts a replaced client down once the requests it was sending have completed.
+     */
+    private void retire(final RestfulClient client) {
+        final long gracePeriod = Math.max(RETIRE_GRACE_PERIOD, Math.max(timeout, requestDeadline));
+        Thread retirer = new Thread(new Runnable() {
+            public void run() {
+                long deadline = System.currentTimeMillis() + gracePeriod;
                 try {
-                    stream.close();
-                } catch (IOException e) {
+                    //logging threads may have read the old client just before it was replaced
+                    Thread.sleep(10 * RETIRE_CHECK_INTERVAL);
+                    while (isBusy(client) && System.currentTimeMillis() < deadline) {
+                        Thread.sleep(RETIRE_CHECK_INTERVAL);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
+                client.shutdown();
             }
+        }, "ala-logger-retire-" + name);
+        retirer.setDaemon(true);
+        retirer.start();
+    }
+
+    private static boolean isBusy(RestfulClient client) {
+        ConnectionPoolStats stats = client.getPoolStats();
+        return client.getInFlightCount() > 0 || (stats != null && stats.getLeased() > 0);
+    }
+
+    private void replaceBatcher() {
+        EventBatcher replaced = batcher;
+        batcher = batchSize > 1 ? createBatcher() : null;
+        if (replaced != null) {
+            replaced.close();
         }
     }
+
+    private EventBatcher createBatcher() {
+        return new EventBatcher(name, batchSize, batchMaxAge, new EventBatcher.BatchSender() {
+            public void send(List<Object> events, String userAgent) {
+                sendBatch(events, userAgent);
+            }
+        });
+    }
 	
 	public int getTimeout() {
 		return timeout;
@@ -107,9 +414,196 @@ public class RestfulAppender extends AppenderSkeleton {
 
 	public void setTimeout(int timeout) {
 		this.timeout = timeout;
+		configure(LoggerClientConfig.TIMEOUT, timeout);
 	}
 	
+	public boolean isTrustedMessages() {
+		return trustedMessages;
+	}
+
+	public void setTrustedMessages(boolean trustedMessages) {
+		this.trustedMessages = trustedMessages;
+	}
+
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+		configure(LoggerClientConfig.CONNECT_TIMEOUT, connectTimeout);
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = maxRetries;
+		configure(LoggerClientConfig.MAX_RETRIES, maxRetries);
+	}
+
+	public long getRetryBackoff() {
+		return retryBackoff;
+	}
+
+	public void setRetryBackoff(long retryBackoff) {
+		this.retryBackoff = retryBackoff;
+		configure(LoggerClientConfig.RETRY_BACKOFF, retryBackoff);
+	}
+
+	public long getRequestDeadline() {
+		return requestDeadline;
+	}
+
+	public void setRequestDeadline(long requestDeadline) {
+		this.requestDeadline = requestDeadline;
+		configure(LoggerClientConfig.REQUEST_DEADLINE, requestDeadline);
+	}
+
+	public int getEjectAfterFailures() {
+		return ejectAfterFailures;
+	}
+
+	public void setEjectAfterFailures(int ejectAfterFailures) {
+		this.ejectAfterFailures = ejectAfterFailures;
+	}
+
+	public long getEjectTime() {
+		return ejectTime;
+	}
+
+	public void setEjectTime(long ejectTime) {
+		this.ejectTime = ejectTime;
+	}
+
+	public long getHealthCheckInterval() {
+		return healthCheckInterval;
+	}
+
+	public void setHealthCheckInterval(long healthCheckInterval) {
+		this.healthCheckInterval = healthCheckInterval;
+	}
+
+	/**
+	 * @return the nodes of the logger service listed in urlTemplate and their health
+	 */
+	public List<EndpointSelector.Endpoint> getEndpoints() {
+		EndpointSelector selector = endpoints;
+		return selector != null ? selector.getEndpoints() : Collections.<EndpointSelector.Endpoint>emptyList();
+	}
+
+	public int getCircuitBreakerThreshold() {
+		return circuitBreakerThreshold;
+	}
+
+	public void setCircuitBreakerThreshold(int circuitBreakerThreshold) {
+		this.circuitBreakerThreshold = circuitBreakerThreshold;
+	}
+
+	public long getCircuitBreakerOpenTime() {
+		return circuitBreakerOpenTime;
+	}
+
+	public void setCircuitBreakerOpenTime(long circuitBreakerOpenTime) {
+		this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+	}
+
+	public boolean isCompressRequests() {
+		return compressRequests;
+	}
+
+	public void setCompressRequests(boolean compressRequests) {
+		this.compressRequests = compressRequests;
+		configure(LoggerClientConfig.COMPRESS_REQUESTS, compressRequests);
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+		configure(LoggerClientConfig.COMPRESSION_THRESHOLD, compressionThreshold);
+	}
+
+	public String getTransport() {
+		return transport;
+	}
+
+	public void setTransport(String transport) {
+		this.transport = transport;
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	public void setMaxInFlight(int maxInFlight) {
+		this.maxInFlight = maxInFlight;
+		configure(LoggerClientConfig.MAX_IN_FLIGHT, maxInFlight);
+	}
+
+	public int getMaxConnectionsPerHost() {
+		return maxConnectionsPerHost;
+	}
+
+	public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		configure(LoggerClientConfig.MAX_CONNECTIONS_PER_HOST, maxConnectionsPerHost);
+	}
+
+	public int getMaxTotalConnections() {
+		return maxTotalConnections;
+	}
+
+	public void setMaxTotalConnections(int maxTotalConnections) {
+		this.maxTotalConnections = maxTotalConnections;
+		configure(LoggerClientConfig.MAX_TOTAL_CONNECTIONS, maxTotalConnections);
+	}
+
+	public long getIdleConnectionTimeout() {
+		return idleConnectionTimeout;
+	}
+
+	public void setIdleConnectionTimeout(long idleConnectionTimeout) {
+		this.idleConnectionTimeout = idleConnectionTimeout;
+		configure(LoggerClientConfig.IDLE_CONNECTION_TIMEOUT, idleConnectionTimeout);
+	}
+
+	/**
+	 * @return the state of the connection pool, eg: to spot requests waiting for a connection
+	 */
+	public ConnectionPoolStats getPoolStats() {
+		RestfulClient client = restfulClient;
+		return client != null ? client.getPoolStats() : null;
+	}
+
+	public String getConfigFile() {
+		return configFile;
+	}
+
+	public void setConfigFile(String configFile) {
+		this.configFile = configFile;
+	}
+
+	public boolean isWatchConfig() {
+		return watchConfig;
+	}
+
+	public void setWatchConfig(boolean watchConfig) {
+		this.watchConfig = watchConfig;
+	}
+
+	/**
+	 * @return the logger client properties last applied
+	 */
+	public LoggerClientConfig getClientConfig() {
+		return clientConfig;
+	}
+
 	public void setUrlTemplate(String urlTemplate) {
+		configure(LOGGER_URL_PROPERTY, StringUtils.trimToNull(urlTemplate));
         // only set the urlTemplate if it has not already been defined - see loadLoggerClientProperties()
         if (StringUtils.isBlank(this.urlTemplate)) {
             this.urlTemplate = urlTemplate;
@@ -123,17 +617,449 @@ public class RestfulAppender extends AppenderSkeleton {
 	public void setPassword(String password) {
 		this.password = password;
 	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+		configure(LoggerClientConfig.BATCH_SIZE, batchSize);
+	}
+
+	public long getBatchMaxAge() {
+		return batchMaxAge;
+	}
+
+	public void setBatchMaxAge(long batchMaxAge) {
+		this.batchMaxAge = batchMaxAge;
+		configure(LoggerClientConfig.BATCH_MAX_AGE, batchMaxAge);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public void setBufferSize(int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	public String getFullBufferPolicy() {
+		return fullBufferPolicy.name();
+	}
+
+	public void setFullBufferPolicy(String fullBufferPolicy) {
+		try {
+			this.fullBufferPolicy = FullBufferPolicy.valueOf(StringUtils.trimToEmpty(fullBufferPolicy).toUpperCase());
+		} catch (IllegalArgumentException e) {
+			LogLog.warn("Unknown fullBufferPolicy [" + fullBufferPolicy + "] for [" + name + "], using " + this.fullBufferPolicy);
+		}
+	}
+
+	public long getBlockTimeout() {
+		return blockTimeout;
+	}
+
+	public void setBlockTimeout(long blockTimeout) {
+		this.blockTimeout = blockTimeout;
+	}
+
+	public String getLanes() {
+		return lanes;
+	}
+
+	public void setLanes(String lanes) {
+		this.lanes = lanes;
+	}
+
+	public String getSpoolDirectory() {
+		return spoolDirectory;
+	}
+
+	public void setSpoolDirectory(String spoolDirectory) {
+		this.spoolDirectory = spoolDirectory;
+	}
+
+	public long getSpoolMaxSize() {
+		return spoolMaxSize;
+	}
+
+	public void setSpoolMaxSize(long spoolMaxSize) {
+		this.spoolMaxSize = spoolMaxSize;
+	}
+
+	public int getSpoolSegmentSize() {
+		return spoolSegmentSize;
+	}
+
+	public void setSpoolSegmentSize(int spoolSegmentSize) {
+		this.spoolSegmentSize = spoolSegmentSize;
+	}
+
+	public long getShutdownTimeout() {
+		return shutdownTimeout;
+	}
+
+	public void setShutdownTimeout(long shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	public int getDrainThreads() {
+		return drainThreads;
+	}
+
+	public void setDrainThreads(int drainThreads) {
+		this.drainThreads = drainThreads;
+	}
+
+	public String getRateLimits() {
+		return rateLimits;
+	}
+
+	/**
+	 * Sets the rate limits, which takes effect straight away on an active appender.
+	 */
+	public void setRateLimits(String rateLimits) {
+		configure(LoggerClientConfig.RATE_LIMITS, rateLimits);
+		useRateLimits(rateLimits);
+	}
+
+	private void useRateLimits(String rateLimits) {
+		this.rateLimits = rateLimits;
+		if (activated) {
+			applyRateLimits();
+		}
+	}
+
+	public String getRateLimitMode() {
+		return rateLimitMode.name();
+	}
+
+	public void setRateLimitMode(String rateLimitMode) {
+		useRateLimitMode(rateLimitMode);
+		configure(LoggerClientConfig.RATE_LIMIT_MODE, this.rateLimitMode.name());
+	}
+
+	private void useRateLimitMode(String rateLimitMode) {
+		try {
+			this.rateLimitMode = RateLimitMode.valueOf(StringUtils.trimToEmpty(rateLimitMode).toUpperCase());
+		} catch (IllegalArgumentException e) {
+			LogLog.warn("Unknown rateLimitMode [" + rateLimitMode + "] for [" + name + "], using " + this.rateLimitMode);
+		}
+		rateLimiter.setMode(this.rateLimitMode);
+	}
+
+	public String getCoalesceEventTypes() {
+		return coalesceEventTypes;
+	}
+
+	public void setCoalesceEventTypes(String coalesceEventTypes) {
+		this.coalesceEventTypes = coalesceEventTypes;
+	}
+
+	public String getCoalesceKey() {
+		return coalesceKey;
+	}
+
+	public void setCoalesceKey(String coalesceKey) {
+		this.coalesceKey = coalesceKey;
+	}
+
+	public String getEventTypesUrl() {
+		return eventTypesUrl;
+	}
+
+	public void setEventTypesUrl(String eventTypesUrl) {
+		this.eventTypesUrl = eventTypesUrl;
+	}
+
+	public long getEventTypesRefreshInterval() {
+		return eventTypesRefreshInterval;
+	}
+
+	public void setEventTypesRefreshInterval(long eventTypesRefreshInterval) {
+		this.eventTypesRefreshInterval = eventTypesRefreshInterval;
+	}
+
+	/**
+	 * @return the event types known to this appender
+	 */
+	public EventTypeRegistry getEventTypeRegistry() {
+		return eventTypeRegistry;
+	}
+
+	public long getCoalesceWindow() {
+		return coalesceWindow;
+	}
+
+	public void setCoalesceWindow(long coalesceWindow) {
+		this.coalesceWindow = coalesceWindow;
+	}
+
+	public boolean isJmxEnabled() {
+		return jmxEnabled;
+	}
+
+	public void setJmxEnabled(boolean jmxEnabled) {
+		this.jmxEnabled = jmxEnabled;
+	}
+
+	public int getPrometheusPort() {
+		return prometheusPort;
+	}
+
+	public void setPrometheusPort(int prometheusPort) {
+		this.prometheusPort = prometheusPort;
+	}
+
+	public String getPrometheusHost() {
+		return prometheusHost;
+	}
+
+	public void setPrometheusHost(String prometheusHost) {
+		this.prometheusHost = prometheusHost;
+	}
+
+	public AppenderMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return events shed by the rate limits
+	 */
+	public long getShedCount() {
+		return rateLimiter.getShedCount();
+	}
+
+	/**
+	 * @return events shed by the rate limits per event type id
+	 */
+	public SortedMap<Integer, Long> getShedCounts() {
+		return rateLimiter.getShedCounts();
+	}
+
+	/**
+	 * @return the number of events that were merged into an earlier event
+	 */
+	public long getCoalescedCount() {
+		return coalescer != null ? coalescer.getMergedCount() : 0;
+	}
+
+	/**
+	 * @return the number of events waiting for the sender thread
+	 */
+	public int getQueueDepth() {
+		RingBufferDispatcher dispatcher = this.dispatcher;
+		return dispatcher != null ? dispatcher.getQueueDepth() : 0;
+	}
+
+	/**
+	 * @return the number of events waiting for their batch to fill or their merge window to end
+	 */
+	public int getPendingCount() {
+		EventBatcher batcher = this.batcher;
+		EventCoalescer coalescer = this.coalescer;
+		return (batcher != null ? batcher.getPendingCount() : 0) + (coalescer != null ? coalescer.getPendingCount() : 0);
+	}
+
+	/**
+	 * @return the size in bytes of the spooled events not yet replayed
+	 */
+	public long getSpoolSize() {
+		DiskSpool spool = this.spool;
+		return spool != null ? spool.getSize() : 0;
+	}
+
+	/**
+	 * @return the number of events dropped because the spool was full
+	 */
+	public long getSpoolDroppedCount() {
+		DiskSpool spool = this.spool;
+		return closedSpoolDroppedCount + (spool != null ? spool.getDroppedCount() : 0);
+	}
+
+	/**
+	 * @return the number of asynchronous requests in flight
+	 */
+	public int getRequestsInFlight() {
+		RestfulClient client = restfulClient;
+		return client != null ? client.getInFlightCount() : 0;
+	}
+
+	/**
+	 * @return the number of events dropped because the buffer of the sender thread was full
+	 */
+	public long getDroppedCount() {
+		RingBufferDispatcher dispatcher = this.dispatcher;
+		return closedDroppedCount + (dispatcher != null ? dispatcher.getDroppedCount() : 0);
+	}
+
+	/**
+	 * @return the number of events an enclosing AsyncAppender reported as discarded
+	 */
+	public long getDiscardedCount() {
+		return discardedCount.sum();
+	}
+
+	@Override
+	public void activateOptions() {
+		if (circuitBreakerThreshold > 0 && circuitBreaker == null) {
+			circuitBreaker = new CircuitBreaker("RestfulAppender [" + name + "]", circuitBreakerThreshold, circuitBreakerOpenTime);
+		}
+		//the logger client properties take precedence over the options set by log4j
+		applyLoggerClientProperties(reloadLoggerClientProperties());
+		//the client made by the constructor predates the timeout options
+		if (restfulClient != null) {
+			restfulClient.shutdown();
+		}
+		restfulClient = createRestfulClient();
+		drain = null;
+
+		if (!StringUtils.isBlank(spoolDirectory) && spool == null) {
+			try {
+				spool = new DiskSpool(new File(spoolDirectory), spoolSegmentSize, spoolMaxSize);
+				spool.startReplayer(name, batchSize, new DiskSpool.ReplaySender() {
+					public boolean send(List<String> events, String userAgent) {
+						return replaySpooled(events, userAgent);
+					}
+				});
+			} catch (IOException e) {
+				LogLog.error("Could not open spool directory [" + spoolDirectory + "] for [" + name + "], events that cannot be sent will be lost", e);
+			}
+		}
+		if (batchSize > 1 && batcher == null) {
+			batcher = createBatcher();
+		}
+		if (!StringUtils.isBlank(eventTypesUrl) && eventTypeRegistry == EventTypeRegistry.getDefault()) {
+			//loaded in the background, the names it adds are looked up again once it is
+			eventTypeRegistry = new EventTypeRegistry(eventTypesUrl, eventTypesRefreshInterval, new Runnable() {
+				public void run() {
+					eventTypesChanged();
+				}
+			});
+		}
+		applyRateLimits();
+		activated = true;
+		if (!StringUtils.isBlank(coalesceEventTypes) && coalescer == null) {
+			Set<Integer> eventTypeIds = parseEventTypes(coalesceEventTypes);
+			if (!eventTypeIds.isEmpty() || !eventTypeRegistry.isLoaded()) {
+				coalescer = new EventCoalescer(name, eventTypeIds, parseCoalesceKey(coalesceKey), coalesceWindow, new EventCoalescer.Sender() {
+					public void send(LogEventVO event, String userAgent) {
+						queueEvent(event, userAgent);
+					}
+				});
+			}
+		}
+		if (jmxEnabled && name != null) {
+			metrics.register(name);
+		}
+		PrometheusExporter.register(metrics);
+		if (prometheusPort > 0) {
+			try {
+				PrometheusExporter.start(prometheusHost, prometheusPort);
+			} catch (IOException e) {
+				LogLog.error("Could not serve Prometheus metrics on port " + prometheusPort + " for [" + name + "]", e);
+			}
+		}
+		if ((bufferSize > 0 || !StringUtils.isBlank(lanes)) && dispatcher == null) {
+			dispatcher = new RingBufferDispatcher(name, parseLanes(), blockTimeout, new RingBufferDispatcher.EventHandler() {
+				public void onEvent(Object message, String userAgent) {
+					sendRestRequest(message, userAgent);
+				}
+			});
+		}
+		if (eventTypeRegistry != EventTypeRegistry.getDefault() && eventTypeRegistry.isLoaded()) {
+			//the listing loaded while the names were looked up above
+			eventTypesChanged();
+		}
+		if (watchConfig && configWatcher == null && new File(configFile).getAbsoluteFile().getParentFile().isDirectory()) {
+			try {
+				configWatcher = new FileWatcher(new File(configFile), new FileWatcher.Listener() {
+					public void changed(File file) {
+						LoggerClientConfig config = reloadLoggerClientProperties();
+						if (!config.equals(clientConfig)) {
+							LogLog.debug("Applying the changes to " + file + " for [" + name + "]: " + config);
+							applyLoggerClientProperties(config);
+						}
+					}
+				});
+			} catch (IOException e) {
+				LogLog.warn("Cannot watch " + configFile + " for [" + name + "], changes will apply after a restart", e);
+			}
+		}
+		if (name != null) {
+			ACTIVE.put(name, this);
+		}
+	}
+
+	/**
+	 * @return the active appender of that name, or null if there is none
+	 */
+	public static RestfulAppender getActive(String name) {
+		return name != null ? ACTIVE.get(name) : null;
+	}
 	
 	@Override
 	protected void append(LoggingEvent event) {
-		if (!checkEntryConditions()) {
+		if (!isAsSevereAsThreshold(event.getLevel())){
 			return;
 		}
 
-		if (!isAsSevereAsThreshold(event.getLevel())){
-			return;
+		append(getPayload(event.getMessage()), (String) event.getMDC(Constants.USER_AGENT_PARAM));
+	}
+
+	/**
+	 * Sends an event logged through another API than log4j 1.2, eg: by {@link Log4j2RestfulAppender}
+	 * or {@link org.ala.client.EventEmitter}. Must be called on the logging thread, and keeps no 
+	 * reference to the logging event. May wait for buffer space, as set by fullBufferPolicy.
+	 * 
+	 * @param message a LogEventVO or a JSON String
+	 * @param userAgent the user agent in the context of the logging thread, or null
+	 * @return true if the event was buffered or sent, false if it was dropped or shed by a rate limit
+	 */
+	public boolean append(Object message, String userAgent) {
+		return append(message, userAgent, true);
+	}
+
+	/**
+	 * Sends an event like {@link #append(Object, String)}, but drops it rather than wait when the buffer 
+	 * is full. Without a buffer (bufferSize 0) the event is sent on the calling thread.
+	 * 
+	 * @return true if the event was buffered or sent, false if it was dropped or shed by a rate limit
+	 */
+	public boolean offer(Object message, String userAgent) {
+		return append(message, userAgent, false);
+	}
+
+	private boolean append(Object message, String userAgent, boolean wait) {
+		if (!checkEntryConditions()) {
+			return false;
+		}
+
+		if (message instanceof String && ((String) message).startsWith("Discarded")) {
+			//NQ:2014-02-13 - This is a special type of message that was sent from the AsynAppender to let us know that
+			//some messages were discarded
+			recordDiscarded((String) message);
+			return true;
+		}
+
+		metrics.recordAppended();
+		userAgent = getUserAgent(message, userAgent);
+		//only looked for when it is needed, as that parses JSON messages
+		int eventTypeId = !rateLimiter.isEmpty() || laneEventTypeIds.length > 0 ? getEventTypeId(message) : -1;
+		if (!rateLimiter.isEmpty()) {
+			message = rateLimiter.limit(message, eventTypeId);
+			if (message == null) {
+				return false;
+			}
+		}
+		RingBufferDispatcher dispatcher = this.dispatcher;
+		if (dispatcher != null) {
+			return wait ? dispatcher.offer(laneOf(eventTypeId), message, userAgent) 
+					: dispatcher.tryOffer(laneOf(eventTypeId), message, userAgent);
 		}
-		sendRestRequest(event);
+		sendRestRequest(message, userAgent);
+		return true;
 	}
 
 	private boolean checkEntryConditions() {
@@ -145,77 +1071,690 @@ public class RestfulAppender extends AppenderSkeleton {
 	}
 	
 	
-	private int sendRestRequest(LoggingEvent event) {
-		PostMethod post = null;
+	private void recordDiscarded(String message) {
+		//eg: "Discarded 12 messages due to full event buffer including: ..."
+		long count = 1;
+		String[] words = StringUtils.split(message, ' ');
+		if (words.length > 1 && StringUtils.isNumeric(words[1])) {
+			count = Long.parseLong(words[1]);
+		}
+		discardedCount.add(count);
+		LogLog.warn("RestfulAppender [" + name + "] was told " + count + " log events were discarded, "
+				+ getDiscardedCount() + " discarded in total");
+	}
+
+	private int sendRestRequest(Object object, String userAgent) {
+		if(object instanceof String){
+			if(!trustedMessages){
+				try {
+					//validate json string
+					LogEventJsonValidator.validate((String)object);
+				}
+				catch(Exception e) {
+					LogLog.error("Could not send message from RestfulAppender [" + name + "],\nMessage: " + object, e);
+					metrics.recordFailed(1);
+					return HttpStatus.SC_NOT_ACCEPTABLE;
+				}
+			}
+		}
+		else if(!(object instanceof LogEventVO)){
+			LogLog.error("Could not send message from RestfulAppender [" + name + "], unsupported message: " + object);
+			metrics.recordFailed(1);
+			return HttpStatus.SC_NOT_ACCEPTABLE;
+		}
+
+		if(coalescer != null && object instanceof LogEventVO && coalescer.add((LogEventVO)object, userAgent)){
+			return 0;
+		}
+		return queueEvent(object, userAgent);
+	}
+
+	private int queueEvent(Object object, String userAgent) {
+		//LogEventVOs are converted to JSON as they are written to the request body
+		EventBatcher batcher = this.batcher;
+		if(batcher != null){
+			batcher.add(object, userAgent);
+			return 0;
+		}
+		return sendEvents(Collections.singletonList(object), userAgent, false);
+	}
+
+	private static int getEventTypeId(Object message) {
+		if (message instanceof LogEventVO) {
+			return ((LogEventVO) message).getEventTypeId();
+		}
+		return message instanceof String ? LogEventJsonValidator.getEventTypeId((String) message) : -1;
+	}
+
+	private int laneOf(int eventTypeId) {
+		int i = Arrays.binarySearch(laneEventTypeIds, eventTypeId);
+		//the two arrays are replaced one after the other when the event types change
+		int[] lanes = laneOfEventType;
+		return i >= 0 && i < lanes.length ? lanes[i] : defaultLane;
+	}
+
+	/**
+	 * Looks up the event type names of rateLimits, lanes and coalesceEventTypes again, once the
+	 * listing at eventTypesUrl has loaded or changed.
+	 */
+	private synchronized void eventTypesChanged() {
+		applyRateLimits();
+		if (dispatcher != null) {
+			parseLanes();
+		}
+		if (coalescer != null) {
+			coalescer.setEventTypeIds(parseEventTypes(coalesceEventTypes));
+		}
+	}
+
+	/**
+	 * Parses the lanes and which event types go in each. Event types not given a lane go in the
+	 * {@code *} lane, or in a last lane of bufferSize events if there is none.
+	 */
+	private List<RingBufferDispatcher.Lane> parseLanes() {
+		List<RingBufferDispatcher.Lane> parsed = new ArrayList<RingBufferDispatcher.Lane>();
+		Map<Integer, Integer> laneOfType = new HashMap<Integer, Integer>();
+		int otherLane = -1;
+		for (String lane : StringUtils.split(StringUtils.trimToEmpty(lanes), ";")) {
+			//eg: OCCURRENCE_RECORDS_DOWNLOADED,1001:1024:BLOCK:8
+			String[] parts = StringUtils.split(lane.trim(), ":");
+			try {
+				if (parts.length < 2 || parts.length > 4) {
+					throw new IllegalArgumentException();
+				}
+				FullBufferPolicy policy = parts.length > 2 ? FullBufferPolicy.valueOf(parts[2].trim().toUpperCase()) : fullBufferPolicy;
+				int weight = parts.length > 3 ? Integer.parseInt(parts[3].trim()) : 1;
+				RingBufferDispatcher.Lane parsedLane = new RingBufferDispatcher.Lane(Integer.parseInt(parts[1].trim()), policy, weight);
+				if ("*".equals(parts[0].trim())) {
+					otherLane = parsed.size();
+				} else {
+					for (Integer id : parseEventTypes(parts[0])) {
+						if (!laneOfType.containsKey(id)) {
+							laneOfType.put(id, parsed.size());
+						}
+					}
+				}
+				parsed.add(parsedLane);
+			} catch (IllegalArgumentException e) {
+				LogLog.warn("Invalid lane [" + lane + "] for [" + name + "], expected <event types>:<capacity>[:<fullBufferPolicy>[:<weight>]]");
+			}
+		}
+		if (otherLane < 0) {
+			otherLane = parsed.size();
+			parsed.add(new RingBufferDispatcher.Lane(bufferSize > 0 ? bufferSize : DEFAULT_LANE_SIZE, fullBufferPolicy, 1));
+		}
+
+		int[] ids = new int[laneOfType.size()];
+		int i = 0;
+		for (Integer id : laneOfType.keySet()) {
+			ids[i++] = id;
+		}
+		Arrays.sort(ids);
+		int[] laneOfEventType = new int[ids.length];
+		for (i = 0; i < ids.length; i++) {
+			laneOfEventType[i] = laneOfType.get(ids[i]);
+		}
+		this.laneOfEventType = laneOfEventType;
+		this.laneEventTypeIds = ids;
+		this.defaultLane = otherLane;
+		return parsed;
+	}
+
+	private synchronized void applyRateLimits() {
+		Map<Integer, Double> rates = new HashMap<Integer, Double>();
+		Map<Integer, Integer> bursts = new HashMap<Integer, Integer>();
+		for (String limit : StringUtils.split(StringUtils.trimToEmpty(rateLimits), ", ")) {
+			//eg: IMAGE_VIEWED:100/200
+			String[] parts = StringUtils.split(limit, ":/");
+			Set<Integer> ids = parts.length > 1 ? parseEventTypes(parts[0]) : Collections.<Integer>emptySet();
+			try {
+				if (ids.isEmpty() || parts.length > 3) {
+					throw new NumberFormatException();
+				}
+				double rate = Double.parseDouble(parts[1]);
+				if (!(rate > 0)) {
+					throw new NumberFormatException();
+				}
+				for (Integer id : ids) {
+					rates.put(id, rate);
+					if (parts.length > 2) {
+						bursts.put(id, Integer.parseInt(parts[2]));
+					}
+				}
+			} catch (NumberFormatException e) {
+				LogLog.warn("Invalid rate limit [" + limit + "] for [" + name + "], expected <event type>:<events per second>[/<burst>]");
+			}
+		}
+		rateLimiter.setLimits(rates, bursts);
+	}
+
+	/**
+	 * @param eventTypes comma separated event type ids or names
+	 */
+	private Set<Integer> parseEventTypes(String eventTypes) {
+		Set<Integer> ids = new HashSet<Integer>();
+		for (String eventType : StringUtils.split(eventTypes, ", ")) {
+			if (StringUtils.isNumeric(eventType)) {
+				ids.add(Integer.parseInt(eventType));
+				continue;
+			}
+			EventTypeRegistry.Type type = eventTypeRegistry.get(eventType);
+			if (type != null) {
+				ids.add(type.getId());
+			} else if (eventTypeRegistry.isLoaded()) {
+				LogLog.warn("Unknown event type [" + eventType + "] for [" + name + "]");
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * @param key comma separated LogEventVO field names
+	 */
+	private List<EventCoalescer.KeyField> parseCoalesceKey(String key) {
+		if (StringUtils.isBlank(key)) {
+			return EventCoalescer.DEFAULT_KEY;
+		}
+		List<EventCoalescer.KeyField> fields = new ArrayList<EventCoalescer.KeyField>();
+		for (String field : StringUtils.split(key, ", ")) {
+			try {
+				fields.add(EventCoalescer.KeyField.valueOf(field));
+			} catch (IllegalArgumentException e) {
+				LogLog.warn("Unknown field [" + field + "] in coalesceKey for [" + name + "]");
+			}
+		}
+		return fields;
+	}
+
+	private int sendBatch(List<Object> events, String userAgent) {
+		return sendEvents(events, userAgent, true);
+	}
+
+	/**
+	 * Posts events to the logger service, spooling them if the service cannot be reached.
+	 *
+	 * @param asArray post the events as a JSON array rather than a single JSON object
+	 */
+	private int sendEvents(final List<?> events, final String userAgent, boolean asArray) {
+		ParallelDrain drain = this.drain;
+		if(drain != null){
+			drain.submit(events, userAgent, asArray);
+			return 0;
+		}
+		return postEvents(events, userAgent, asArray);
+	}
+
+	private int postEvents(final List<?> events, final String userAgent, boolean asArray) {
+		if(spool != null && !spool.isEmpty()){
+			//keep the events in order while the spool is replayed
+			spoolEvents(events, userAgent);
+			return 0;
+		}
+
+		RestfulClient client = getRestfulClient();
+		if(client.isAsync()){
+			postAsync(client, events, userAgent, asArray).whenComplete(new BiConsumer<Object[], Throwable>() {
+				public void accept(Object[] result, Throwable e) {
+					if(e instanceof CompletionException && e.getCause() != null){
+						e = e.getCause();
+					}
+					onPostComplete(events, userAgent, e == null ? statusOf(result) : 0, e);
+				}
+			});
+			return 0;
+		}
+
 		int statusCode = 0;
-		String message = null;
-		LogEventVO vo = null;
+		Throwable failure = null;
+		try {
+			statusCode = post(events, userAgent, asArray);
+		}
+		catch(Exception e) {
+			failure = e;
+		}
+		return onPostComplete(events, userAgent, statusCode, failure);
+	}
 
+	/**
+	 * Spools the events if the request failed or the logger service is unavailable.
+	 *
+	 * @param e the reason the request failed, or null if a response was received
+	 */
+	private int onPostComplete(List<?> events, String userAgent, int statusCode, Throwable e) {
+		if(e != null) {
+			statusCode = HttpStatus.SC_NOT_ACCEPTABLE;
+			if(spoolEvents(events, userAgent)){
+				LogLog.warn("Could not send " + events.size() + " messages from RestfulAppender [" + name + "], spooled them to " + spoolDirectory + ": " + e.getMessage());
+			} else if(e instanceof CircuitOpenException){
+				metrics.recordFailed(events.size());
+				LogLog.error("Could not send " + events.size() + " messages from RestfulAppender [" + name + "]: " + e.getMessage());
+			} else {
+				metrics.recordFailed(events.size());
+				LogLog.error("Could not send " + events.size() + " messages from RestfulAppender [" + name + "],\nMessage: " + events, e);
+			}
+			return statusCode;
+		}
+		if(statusCode < HttpStatus.SC_BAD_REQUEST){
+			metrics.recordSent(events.size());
+		} else if(!RestfulClient.isRetryableStatus(statusCode) || !spoolEvents(events, userAgent)){
+			metrics.recordFailed(events.size());
+		}
+		return statusCode;
+	}
+
+	private RestfulClient createRestfulClient() {
+		RestfulClient client = new RestfulClient(createTransport());
+		//with several nodes, a failed request is repeated on another node straight away instead
+		client.setRetryPolicy(isFailover() ? 0 : maxRetries, retryBackoff, MAX_RETRY_BACKOFF);
+		client.setDeadline(requestDeadline);
+		client.setCircuitBreaker(circuitBreaker);
+		if (compressRequests) {
+			client.setCompressionThreshold(Math.max(1, compressionThreshold));
+		}
+		client.setMaxInFlight(Math.max(1, maxInFlight));
+		client.setRequestListener(metrics);
+		return client;
+	}
+
+	private Transport createTransport() {
+		ConnectionPoolConfig pool = new ConnectionPoolConfig(maxConnectionsPerHost, maxTotalConnections, idleConnectionTimeout);
+		if (StringUtils.isBlank(transport) || HTTPCLIENT_TRANSPORT.equalsIgnoreCase(transport.trim())) {
+			return new HttpClientTransport(timeout, connectTimeout, pool);
+		}
 		try {
-			Object object = event.getMessage();
-        	if(object instanceof LogEventVO){       		
-        		//convert to JSON
-        		message = serMapper.writeValueAsString(object); 
-        	}
-        	else if(event.getMessage() instanceof String){
-        		message = (String)object;
-        		if(message.startsWith("Discarded")){        		    
-        		    //NQ:2014-02-13 - This is a special type of message that was sent from the AsynAppender to let us know that 
-        		    //some messages were discarded
-        		    return 0;
-        		}
-        		//validate json string
-        		vo = deserMapper.readValue(message, LogEventVO.class);        		
-        	}
-        	
-        	if(restfulClient == null){
-        		restfulClient = new RestfulClient(timeout);
-        	}
-
-            LogLog.debug("Posting log event to URL [" + urlTemplate + "]");
-        	Object[] array = restfulClient.restPost(urlTemplate, message, constructHttpHeaders(event));
-        	if(array != null && array.length > 0){
-        		statusCode = (Integer)array[0];
-        	}
-        } 
-        catch(Exception e) {
-        	statusCode = HttpStatus.SC_NOT_ACCEPTABLE;
-	        LogLog.error("Could not send message from RestfulAppender [" + name + "],\nMessage: " + event.getMessage(), e);
-        } finally {
-        	vo = null; //waiting for gc.
-        	if(post != null){
-        		post.releaseConnection();
-        	}
-        }
-        return statusCode;
+			if (NIO_TRANSPORT.equalsIgnoreCase(transport.trim())) {
+				return new NioTransport(timeout, connectTimeout, pool);
+			}
+			return (Transport) Class.forName(transport.trim())
+					.getConstructor(int.class, int.class, ConnectionPoolConfig.class)
+					.newInstance(timeout, connectTimeout, pool);
+		} catch (NoClassDefFoundError e) {
+			//httpasyncclient is an optional dependency
+			LogLog.error("Transport [" + transport + "] for [" + name + "] needs httpasyncclient on the classpath, using " + HTTPCLIENT_TRANSPORT, e);
+			return new HttpClientTransport(timeout, connectTimeout, pool);
+		} catch (Exception e) {
+			LogLog.error("Could not create transport [" + transport + "] for [" + name + "], using " + HTTPCLIENT_TRANSPORT, e);
+			return new HttpClientTransport(timeout, connectTimeout, pool);
+		}
+	}
+
+	private RestfulClient getRestfulClient() {
+		RestfulClient client = restfulClient;
+		if(client == null){
+			client = restfulClient = createRestfulClient();
+		}
+		return client;
+	}
+
+	private CompletableFuture<Object[]> postAsync(RestfulClient client, List<?> events, String userAgent, boolean asArray) {
+		EndpointSelector selector = getEndpointSelector();
+		return postAsync(client, selector, events, userAgent, asArray, 1, 0);
+	}
+
+	/**
+	 * Posts to the node with the fewest outstanding requests for its latency, repeating the
+	 * request on nodes not tried yet if it fails.
+	 *
+	 * @param attempt starts from 1
+	 * @param tried   the masks of the nodes tried
+	 */
+	private CompletableFuture<Object[]> postAsync(final RestfulClient client, final EndpointSelector selector, final List<?> events,
+			final String userAgent, final boolean asArray, final int attempt, long tried) {
+		EndpointSelector.Endpoint selected = selector.select(tried);
+		if (selected == null) {
+			//every node has been tried, go round again
+			tried = 0;
+			selected = selector.select(0);
+		}
+		final EndpointSelector.Endpoint endpoint = selected;
+		final long triedNow = tried | EndpointSelector.mask(endpoint);
+		final long start = System.nanoTime();
+		CompletableFuture<Object[]> request;
+		if(asArray){
+			LogLog.debug("Posting " + events.size() + " log events to URL [" + endpoint.getUrl() + "]");
+			request = client.restPostBatchAsync(endpoint.getUrl(), events, constructHttpHeaders(userAgent));
+		} else {
+			LogLog.debug("Posting log event to URL [" + endpoint.getUrl() + "]");
+			request = client.restPostAsync(endpoint.getUrl(), events.get(0), constructHttpHeaders(userAgent));
+		}
+		final CompletableFuture<Object[]> result = new CompletableFuture<Object[]>();
+		request.whenComplete(new BiConsumer<Object[], Throwable>() {
+			public void accept(Object[] r, Throwable e) {
+				if(e instanceof CompletionException && e.getCause() != null){
+					e = e.getCause();
+				}
+				if(!onEndpointResponse(selector, endpoint, start, r, e) || attempt >= getFailoverAttempts(selector)){
+					complete(result, r, e);
+					return;
+				}
+				LogLog.debug("Repeating the request to " + endpoint.getUrl() + " on another node for RestfulAppender [" + name + "]");
+				//not on the I/O thread, as the request may wait for a permit
+				CompletableFuture.completedFuture(null).thenComposeAsync(new Function<Object, CompletableFuture<Object[]>>() {
+					public CompletableFuture<Object[]> apply(Object ignored) {
+						return postAsync(client, selector, events, userAgent, asArray, attempt + 1, triedNow);
+					}
+				}).whenComplete(new BiConsumer<Object[], Throwable>() {
+					public void accept(Object[] r, Throwable e) {
+						complete(result, r, e);
+					}
+				});
+			}
+		});
+		return result;
+	}
+
+	private static void complete(CompletableFuture<Object[]> result, Object[] r, Throwable e) {
+		if(e instanceof CompletionException && e.getCause() != null){
+			e = e.getCause();
+		}
+		if(e != null){
+			result.completeExceptionally(e);
+		} else {
+			result.complete(r);
+		}
+	}
+
+	/**
+	 * Records the outcome of a request to a node.
+	 *
+	 * @return true if the request failed in a way another node may not
+	 */
+	private static boolean onEndpointResponse(EndpointSelector selector, EndpointSelector.Endpoint endpoint, long start, Object[] result, Throwable e) {
+		if(e instanceof CircuitOpenException || (e != null && !(e instanceof IOException))){
+			//not sent, or not the node's fault
+			selector.release(endpoint);
+			return false;
+		}
+		if(e != null || RestfulClient.isRetryableStatus(statusOf(result))){
+			selector.onFailure(endpoint);
+			return true;
+		}
+		selector.onSuccess(endpoint, System.nanoTime() - start);
+		return false;
+	}
+
+	/**
+	 * @return the number of nodes a request is sent to before it fails
+	 */
+	private int getFailoverAttempts(EndpointSelector selector) {
+		return selector.size() > 1 ? Math.max(1, maxRetries + 1) : 1;
+	}
+
+	private static int statusOf(Object[] result) {
+		if(result != null && result.length > 0){
+			return (Integer)result[0];
+		}
+		return 0;
+	}
+
+	private int post(List<?> events, String userAgent, boolean asArray) throws IOException {
+		RestfulClient client = getRestfulClient();
+		EndpointSelector selector = getEndpointSelector();
+		long tried = 0;
+		for(int attempt = 1; ; attempt++){
+			EndpointSelector.Endpoint endpoint = selector.select(tried);
+			if(endpoint == null){
+				//every node has been tried, go round again
+				tried = 0;
+				endpoint = selector.select(0);
+			}
+			tried |= EndpointSelector.mask(endpoint);
+			long start = System.nanoTime();
+			Object[] array = null;
+			Throwable failure = null;
+			try {
+				array = post(client, endpoint.getUrl(), events, userAgent, asArray);
+			}
+			catch(IOException e) {
+				failure = e;
+			}
+			catch(RuntimeException e) {
+				failure = e;
+			}
+			if(onEndpointResponse(selector, endpoint, start, array, failure) && attempt < getFailoverAttempts(selector)){
+				LogLog.debug("Repeating the request to " + endpoint.getUrl() + " on another node for RestfulAppender [" + name + "]");
+				continue;
+			}
+			if(failure instanceof IOException){
+				throw (IOException)failure;
+			}
+			if(failure != null){
+				throw (RuntimeException)failure;
+			}
+			return statusOf(array);
+		}
 	}
 
-	private Map<String, String> constructHttpHeaders(LoggingEvent event) {
-		Map<String, String> headers = new HashMap<String, String>();
+	private Object[] post(RestfulClient client, String url, List<?> events, String userAgent, boolean asArray) throws IOException {
+		if(asArray){
+			LogLog.debug("Posting " + events.size() + " log events to URL [" + url + "]");
+			return client.restPostBatch(url, events, constructHttpHeaders(userAgent));
+		}
+		LogLog.debug("Posting log event to URL [" + url + "]");
+		Object event = events.get(0);
+		if(event instanceof LogEventVO){
+			return client.restPost(url, (LogEventVO)event, constructHttpHeaders(userAgent));
+		}
+		return client.restPost(url, (String)event, constructHttpHeaders(userAgent));
+	}
 
-		if (event != null) {
+	/**
+	 * @return false if spooling is disabled
+	 */
+	private boolean spoolEvents(List<?> events, String userAgent) {
+		if(spool == null){
+			return false;
+		}
+		for(Object event : events){
+			try {
+				String json = event instanceof String ? (String)event : LogEventEncoder.toJson((LogEventVO)event);
+				if(!spool.append(json, userAgent)){
+					LogLog.error("Spool " + spoolDirectory + " for RestfulAppender [" + name + "] is full, dropped message: " + json);
+				} else {
+					metrics.recordSpooled(1);
+				}
+			}
+			catch(IOException e) {
+				LogLog.error("Could not spool message from RestfulAppender [" + name + "],\nMessage: " + event, e);
+			}
+		}
+		return true;
+	}
 
-			Object message = event.getMessage();
-			if (message instanceof LogEventVO && !StringUtils.isBlank(((LogEventVO) message).getUserAgent())) {
-				headers.put(Constants.USER_AGENT_PARAM, ((LogEventVO) message).getUserAgent());
+	private boolean replaySpooled(List<String> events, String userAgent) {
+		try {
+			//the replayer reads as many events as the batch size had when it started, which a reload may lower
+			int statusCode = post(events, userAgent, events.size() > 1);
+			if(RestfulClient.isRetryableStatus(statusCode)){
+				return false;
+			}
+			if(statusCode >= HttpStatus.SC_BAD_REQUEST){
+				metrics.recordFailed(events.size());
+				LogLog.error("Logger service rejected " + events.size() + " spooled messages from RestfulAppender [" + name + "] with status " + statusCode);
 			} else {
-				String userAgent = (String) event.getMDC(Constants.USER_AGENT_PARAM);
-				if (StringUtils.isBlank(userAgent)) {
-					userAgent = Constants.UNDEFINED_USER_AGENT_VALUE;
+				metrics.recordSent(events.size());
+			}
+			return true;
+		}
+		catch(Exception e) {
+			LogLog.debug("Logger service still unavailable for RestfulAppender [" + name + "]: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Events passed on by the log4j 2 bridge, and those of log4j 2 itself, carry a log4j 2 Message 
+	 * rather than the object logged. A reusable Message must be read before it is handed back.
+	 */
+	static Object getPayload(Object message) {
+		if (message instanceof ObjectMessage) {
+			return ((ObjectMessage) message).getParameter();
+		}
+		if (message instanceof ReusableObjectMessage) {
+			return ((ReusableObjectMessage) message).getParameter();
+		}
+		if (message instanceof ReusableMessage) {
+			//the mutable events of garbage free logging stand in for the message, and hold the object 
+			//logged as their only parameter
+			ReusableMessage reusable = (ReusableMessage) message;
+			if (reusable.getParameterCount() == 1) {
+				Object parameter = reusable.getParameters()[0];
+				if (parameter instanceof LogEventVO) {
+					return parameter;
 				}
-				headers.put(Constants.USER_AGENT_PARAM, userAgent);
 			}
 		}
+		if (message instanceof Message) {
+			return ((Message) message).getFormattedMessage();
+		}
+		return message;
+	}
 
-		return headers;
+	/**
+	 * Reads the user agent on the logging thread, as the MDC is not available to the sender thread.
+	 */
+	private static String getUserAgent(Object message, String contextUserAgent) {
+		if (message instanceof LogEventVO && !StringUtils.isBlank(((LogEventVO) message).getUserAgent())) {
+			return ((LogEventVO) message).getUserAgent();
+		}
+		if (StringUtils.isBlank(contextUserAgent)) {
+			return Constants.UNDEFINED_USER_AGENT_VALUE;
+		}
+		return contextUserAgent;
 	}
 
+	static Map<String, String> constructHttpHeaders(String userAgent) {
+		return HEADERS.get(userAgent);
+	}
+
+	/**
+	 * Sends the events buffered, batched or held for merging and waits for them to be sent or
+	 * spooled. Batches are sent on the calling thread.
+	 *
+	 * @param timeout millisecond to wait
+	 * @return false if events were still waiting or in flight at the timeout
+	 */
+	public boolean flush(long timeout) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		RingBufferDispatcher dispatcher = this.dispatcher;
+		if (dispatcher != null && !dispatcher.awaitEmpty(remainingMillis(deadline))) {
+			return false;
+		}
+		EventCoalescer coalescer = this.coalescer;
+		if (coalescer != null) {
+			coalescer.flush();
+		}
+		EventBatcher batcher = this.batcher;
+		if (batcher != null) {
+			batcher.flush();
+		}
+		RestfulClient client = restfulClient;
+		if (client != null && client.isAsync()) {
+			try {
+				return client.awaitInFlight(remainingMillis(deadline));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long remainingMillis(long deadline) {
+		return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+	}
+
+	/**
+	 * Sends what is still buffered, batched or held for merging on drainThreads threads, within
+	 * shutdownTimeout. Events not sent by then are spooled, or reported as failed.
+	 */
 	public void close() {
+		if (name != null) {
+			ACTIVE.remove(name, this);
+		}
+		if (configWatcher != null) {
+			configWatcher.close();
+			configWatcher = null;
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, shutdownTimeout));
+		final ParallelDrain drain = new ParallelDrain(name, drainThreads, deadline, new ParallelDrain.Sender() {
+			public void send(List<?> events, String userAgent, boolean asArray) {
+				postEvents(events, userAgent, asArray);
+			}
+		}, new ParallelDrain.Fallback() {
+			public void unsent(List<?> events, String userAgent) {
+				onDeadline(events, userAgent);
+			}
+		});
+		this.drain = drain;
+		if (dispatcher != null) {
+			//the sender thread finishes the event in hand, the rest go to the drain threads
+			dispatcher.close(remainingMillis(deadline), new RingBufferDispatcher.EventHandler() {
+				public void onEvent(Object message, String userAgent) {
+					sendRestRequest(message, userAgent);
+				}
+			});
+			closedDroppedCount += dispatcher.getDroppedCount();
+			dispatcher = null;
+		}
+		if (coalescer != null) {
+			coalescer.close();
+			coalescer = null;
+		}
+		if (batcher != null) {
+			batcher.close();
+			batcher = null;
+		}
+		int inFlight = drain.await();
+		if (restfulClient != null && restfulClient.isAsync()) {
+			//let requests in flight complete, so that failed events can still be spooled
+			try {
+				if (!restfulClient.awaitInFlight(remainingMillis(deadline))) {
+					LogLog.warn("RestfulAppender [" + name + "] closed with requests still in flight");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		} else if (inFlight > 0) {
+			LogLog.warn("RestfulAppender [" + name + "] closed with " + inFlight + " log events still being sent after " + shutdownTimeout + "ms");
+		}
+		if (drain.getUnsentCount() > 0) {
+			LogLog.warn("RestfulAppender [" + name + "] could not send " + drain.getUnsentCount() + " log events within " + shutdownTimeout + "ms of closing");
+		}
+		if (spool != null) {
+			spool.close();
+			closedSpoolDroppedCount += spool.getDroppedCount();
+			spool = null;
+		}
+		activated = false;
+		if (eventTypeRegistry != EventTypeRegistry.getDefault()) {
+			eventTypeRegistry.close();
+			eventTypeRegistry = EventTypeRegistry.getDefault();
+		}
+		if (restfulClient != null) {
+			restfulClient.shutdown();
+		}
 		restfulClient = null;
+		if (endpoints != null) {
+			endpoints.close();
+			endpoints = null;
+		}
+		metrics.unregister();
+		PrometheusExporter.unregister(metrics);
 		//This is a recursive call to the same method. Would cause a stack overflow.  
 		//this.close();
 	}
 
+	/**
+	 * Spools events the drain threads did not get to, or counts them as failed.
+	 */
+	private void onDeadline(List<?> events, String userAgent) {
+		if(!spoolEvents(events, userAgent)){
+			metrics.recordFailed(events.size());
+			LogLog.error("Could not send " + events.size() + " messages from RestfulAppender [" + name + "] before it closed,\nMessage: " + events);
+		}
+	}
+
 	public boolean requiresLayout() {
 		return false;
 	}
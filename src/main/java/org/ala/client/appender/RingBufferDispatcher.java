@@ -0,0 +1,506 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.appender;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Hands log events from any number of application threads to a single sender thread
+ * through preallocated rings of event slots.
+ * <p>
+ * Producers claim slots with a CAS on the tail sequence and never take a lock. Each slot
+ * carries its own sequence number (Vyukov's bounded queue), which publishes the slot contents
+ * to the sender thread and frees the slot again for producers once the event has been taken.
+ * A producer may also take the oldest event itself, which is how {@link FullBufferPolicy#DROP_OLDEST}
+ * makes room.
+ * <p>
+ * There may be several rings, or lanes, each with its own capacity and full buffer policy. The
+ * sender visits the lanes in priority order and takes up to a lane's weight of events from it on
+ * each visit, so higher priority lanes drain first under pressure without starving the others.
+ * Events are handed on in order within a lane.
+ */
+public class RingBufferDispatcher {
+
+    /**
+     * Receives the events taken from the ring on the sender thread.
+     */
+    public interface EventHandler {
+        void onEvent(Object message, String userAgent);
+    }
+
+    /**
+     * Capacity, full buffer policy and scheduling weight of a lane.
+     */
+    public static final class Lane {
+        private final int capacity;
+        private final FullBufferPolicy policy;
+        private final int weight;
+
+        /**
+         * @param capacity number of slots, rounded up to a power of two
+         * @param policy   what to do when every slot of the lane is in use
+         * @param weight   events taken from the lane on each visit of the sender
+         */
+        public Lane(int capacity, FullBufferPolicy policy, int weight) {
+            this.capacity = capacity;
+            this.policy = policy == null ? FullBufferPolicy.BLOCK : policy;
+            this.weight = Math.max(1, weight);
+        }
+
+        public int getCapacity() {
+            return capacity;
+        }
+
+        public FullBufferPolicy getPolicy() {
+            return policy;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    private static final class Slot {
+        Object message;
+        String userAgent;
+    }
+
+    /**
+     * The ring of one lane.
+     */
+    private static final class Ring {
+        final Slot[] slots;
+        final AtomicLongArray sequences;
+        final int mask;
+        final AtomicLong tail = new AtomicLong();
+        final AtomicLong head = new AtomicLong();
+        final FullBufferPolicy policy;
+        final int weight;
+        final LongAdder droppedCount = new LongAdder();
+
+        Ring(Lane lane) {
+            int capacity = Integer.highestOneBit(Math.max(2, lane.capacity) - 1) << 1;
+            this.slots = new Slot[capacity];
+            this.sequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                slots[i] = new Slot();
+                sequences.set(i, i);
+            }
+            this.mask = capacity - 1;
+            this.policy = lane.policy;
+            this.weight = lane.weight;
+        }
+
+        boolean tryPublish(Object message, String userAgent) {
+            long pos = tail.get();
+            int index;
+            for (;;) {
+                index = (int) (pos & mask);
+                long diff = sequences.get(index) - pos;
+                if (diff == 0) {
+                    if (tail.compareAndSet(pos, pos + 1)) {
+                        break;
+                    }
+                    pos = tail.get();
+                } else if (diff < 0) {
+                    return false;
+                } else {
+                    pos = tail.get();
+                }
+            }
+            Slot slot = slots[index];
+            slot.message = message;
+            slot.userAgent = userAgent;
+            sequences.lazySet(index, pos + 1);
+            return true;
+        }
+
+        /**
+         * Takes the oldest event off the ring and passes it to the handler, or drops it if handler is null.
+         *
+         * @return false if the ring was empty
+         */
+        boolean take(EventHandler target) {
+            long pos = head.get();
+            int index;
+            for (;;) {
+                index = (int) (pos & mask);
+                long diff = sequences.get(index) - (pos + 1);
+                if (diff == 0) {
+                    if (head.compareAndSet(pos, pos + 1)) {
+                        break;
+                    }
+                    pos = head.get();
+                } else if (diff < 0) {
+                    return false;
+                } else {
+                    pos = head.get();
+                }
+            }
+            Slot slot = slots[index];
+            Object message = slot.message;
+            String userAgent = slot.userAgent;
+            slot.message = null;
+            slot.userAgent = null;
+            sequences.lazySet(index, pos + mask + 1);
+
+            if (target != null) {
+                target.onEvent(message, userAgent);
+            }
+            return true;
+        }
+
+        int depth() {
+            long depth = tail.get() - head.get();
+            return (int) Math.max(0, Math.min(depth, slots.length));
+        }
+    }
+
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long BLOCKED_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    //in priority order
+    private final Ring[] rings;
+    private final long blockTimeoutNanos;
+    private final EventHandler handler;
+
+    private final Thread senderThread;
+    private volatile boolean running = true;
+    private volatile boolean senderIdle;
+    //the sender thread hands on what is still buffered when it stops
+    private volatile boolean drainOnStop = true;
+    //set while the sender thread is taking and handling events
+    private volatile boolean senderBusy;
+    //offers that got past the running check, which the final drain waits for
+    private final LongAdder offering = new LongAdder();
+
+    /**
+     * @param name          used to name the sender thread
+     * @param bufferSize    number of slots, rounded up to a power of two
+     * @param policy        what to do when every slot is in use
+     * @param blockTimeout  millisecond a producer waits for a free slot with {@link FullBufferPolicy#BLOCK}
+     * @param handler       called on the sender thread for every event, in order
+     */
+    public RingBufferDispatcher(String name, int bufferSize, FullBufferPolicy policy, long blockTimeout, EventHandler handler) {
+        this(name, Collections.singletonList(new Lane(bufferSize, policy, 1)), blockTimeout, handler);
+    }
+
+    /**
+     * @param name          used to name the sender thread
+     * @param lanes         the lanes, highest priority first
+     * @param blockTimeout  millisecond a producer waits for a free slot with {@link FullBufferPolicy#BLOCK}
+     * @param handler       called on the sender thread for every event, in order within each lane
+     */
+    public RingBufferDispatcher(String name, List<Lane> lanes, long blockTimeout, EventHandler handler) {
+        if (lanes.isEmpty()) {
+            throw new IllegalArgumentException("A dispatcher needs at least one lane");
+        }
+        this.rings = new Ring[lanes.size()];
+        for (int i = 0; i < rings.length; i++) {
+            rings[i] = new Ring(lanes.get(i));
+        }
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, blockTimeout));
+        this.handler = handler;
+
+        senderThread = new Thread(new Runnable() {
+            public void run() {
+                runSender();
+            }
+        }, "ala-logger-sender-" + name);
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+
+    /**
+     * Buffers an event in the first lane.
+     *
+     * @return false if the event was dropped
+     */
+    public boolean offer(Object message, String userAgent) {
+        return offer(0, message, userAgent);
+    }
+
+    /**
+     * Buffers an event for the sender thread, applying the lane's full buffer policy if there is no free slot.
+     *
+     * @param lane index of the lane, 0 is the highest priority
+     * @return false if the event was dropped
+     */
+    public boolean offer(int lane, Object message, String userAgent) {
+        return offer(lane, message, userAgent, true);
+    }
+
+    /**
+     * Buffers an event like {@link #offer(int, Object, String)}, but drops it rather than wait for a
+     * free slot when the lane's policy is BLOCK.
+     *
+     * @return false if the event was dropped
+     */
+    public boolean tryOffer(int lane, Object message, String userAgent) {
+        return offer(lane, message, userAgent, false);
+    }
+
+    private boolean offer(int lane, Object message, String userAgent, boolean wait) {
+        Ring ring = rings[lane];
+        offering.increment();
+        try {
+            //read after the increment, so that close() either sees the offer or stops it here
+            if (!running) {
+                ring.droppedCount.increment();
+                return false;
+            }
+            return offer(ring, message, userAgent, wait);
+        } finally {
+            offering.decrement();
+        }
+    }
+
+    private boolean offer(Ring ring, Object message, String userAgent, boolean wait) {
+        if (publish(ring, message, userAgent)) {
+            return true;
+        }
+
+        switch (ring.policy) {
+            case DROP_OLDEST:
+                do {
+                    if (ring.take(null)) {
+                        ring.droppedCount.increment();
+                    }
+                } while (!publish(ring, message, userAgent));
+                return true;
+            case BLOCK:
+                if (!wait) {
+                    ring.droppedCount.increment();
+                    return false;
+                }
+                long deadline = System.nanoTime() + blockTimeoutNanos;
+                while (System.nanoTime() - deadline < 0 && running) {
+                    LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+                    if (publish(ring, message, userAgent)) {
+                        return true;
+                    }
+                }
+                ring.droppedCount.increment();
+                return false;
+            default:
+                ring.droppedCount.increment();
+                return false;
+        }
+    }
+
+    /**
+     * @return the number of events dropped because the buffer was full or the dispatcher was closed
+     */
+    public long getDroppedCount() {
+        long dropped = 0;
+        for (Ring ring : rings) {
+            dropped += ring.droppedCount.sum();
+        }
+        return dropped;
+    }
+
+    /**
+     * @return the number of events of a lane dropped because it was full or the dispatcher was closed
+     */
+    public long getDroppedCount(int lane) {
+        return rings[lane].droppedCount.sum();
+    }
+
+    /**
+     * @return an estimate of the number of events waiting for the sender thread
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Ring ring : rings) {
+            depth += ring.depth();
+        }
+        return depth;
+    }
+
+    /**
+     * @return an estimate of the number of events of a lane waiting for the sender thread
+     */
+    public int getQueueDepth(int lane) {
+        return rings[lane].depth();
+    }
+
+    public int getCapacity() {
+        int capacity = 0;
+        for (Ring ring : rings) {
+            capacity += ring.slots.length;
+        }
+        return capacity;
+    }
+
+    public int getLaneCount() {
+        return rings.length;
+    }
+
+    /**
+     * Waits for the sender thread to hand on every event buffered so far.
+     *
+     * @param timeout millisecond to wait
+     * @return false if events were still buffered or being handled at the timeout
+     */
+    public boolean awaitEmpty(long timeout) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        //busy is set before an event is taken, so it is read after the depth
+        while (getQueueDepth() > 0 || senderBusy) {
+            if (System.nanoTime() - deadline >= 0 || !senderThread.isAlive()) {
+                return false;
+            }
+            LockSupport.parkNanos(MAX_IDLE_PARK_NANOS);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting events and waits for the sender thread to hand on everything still buffered.
+     * Events the sender thread has not reached by the timeout are dropped, so that they are not
+     * handed on after the caller has moved on.
+     *
+     * @param timeout millisecond to wait for the sender thread
+     */
+    public void close(long timeout) {
+        running = false;
+        LockSupport.unpark(senderThread);
+        join(timeout);
+        if (senderThread.isAlive()) {
+            drainOnStop = false;
+            int dropped = 0;
+            for (Ring ring : rings) {
+                while (ring.take(null)) {
+                    ring.droppedCount.increment();
+                    dropped++;
+                }
+            }
+            LogLog.warn("Sender thread " + senderThread.getName() + " did not finish within " + timeout + "ms, "
+                    + dropped + " buffered log events were not sent");
+        }
+    }
+
+    /**
+     * Stops accepting events and hands those still buffered to target on the calling thread, in
+     * priority order, while the sender thread finishes the event it is handling.
+     *
+     * @param timeout millisecond to wait for the sender thread once the buffer is empty
+     * @param target  receives the events the sender thread had not taken
+     * @return the number of events handed to target
+     */
+    public int close(long timeout, EventHandler target) {
+        drainOnStop = false;
+        running = false;
+        LockSupport.unpark(senderThread);
+        awaitOffers(timeout);
+        int drained = 0;
+        for (Ring ring : rings) {
+            while (take(ring, target)) {
+                drained++;
+            }
+        }
+        join(timeout);
+        if (senderThread.isAlive()) {
+            LogLog.warn("Sender thread " + senderThread.getName() + " was still handling a log event " + timeout + "ms after it was stopped");
+        }
+        return drained;
+    }
+
+    /**
+     * Waits for the offers under way when the dispatcher was stopped to publish their event, or give up.
+     */
+    private void awaitOffers(long timeout) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.min(timeout, TimeUnit.DAYS.toMillis(1)));
+        while (offering.sum() != 0 && System.nanoTime() - deadline < 0) {
+            LockSupport.parkNanos(BLOCKED_PARK_NANOS);
+        }
+    }
+
+    private void join(long timeout) {
+        try {
+            senderThread.join(Math.max(1, timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean publish(Ring ring, Object message, String userAgent) {
+        if (!ring.tryPublish(message, userAgent)) {
+            return false;
+        }
+        if (senderIdle) {
+            LockSupport.unpark(senderThread);
+        }
+        return true;
+    }
+
+    private void runSender() {
+        long idleParkNanos = 0;
+        while (running) {
+            if (takeRound()) {
+                idleParkNanos = 0;
+                continue;
+            }
+            senderIdle = true;
+            if (!takeRound()) {
+                idleParkNanos = Math.min(MAX_IDLE_PARK_NANOS, Math.max(1000, idleParkNanos * 2));
+                LockSupport.parkNanos(this, idleParkNanos);
+            }
+            senderIdle = false;
+        }
+        awaitOffers(Long.MAX_VALUE);
+        while (drainOnStop && takeRound()) {
+            // drain whatever was buffered before close(), highest priority first
+        }
+    }
+
+    /**
+     * Visits the lanes in priority order, taking up to each lane's weight of events.
+     *
+     * @return false if every lane was empty
+     */
+    private boolean takeRound() {
+        senderBusy = true;
+        boolean taken = false;
+        for (Ring ring : rings) {
+            for (int i = 0; i < ring.weight && take(ring, handler); i++) {
+                taken = true;
+            }
+        }
+        senderBusy = false;
+        return taken;
+    }
+
+    private boolean take(Ring ring, EventHandler target) {
+        try {
+            return ring.take(target);
+        } catch (RuntimeException e) {
+            LogLog.error("Failed to handle log event on " + Thread.currentThread().getName(), e);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,462 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.helpers.LogLog;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Event types by id and by name, the built in {@link LogEventType}s plus any registered or loaded
+ * at runtime.
+ * <p>
+ * Lookups read an immutable table: ids index a dense array, or an open addressing table when the ids
+ * are spread out, and names are matched ignoring case and surrounding whitespace without building
+ * new Strings. Changes copy the table.
+ * <p>
+ * Types can be loaded from the logger service's event type listing, eg:
+ * {@code http://logger.ala.org.au/service/logger/events}, or from a local file holding the same
+ * JSON, an array of {@code {"id": 1003, "name": "SPECIES_LIST_VIEWED"}} objects. The listing is
+ * loaded in the background, so a logger service that is down does not hold up the configuration of
+ * logging. The last listing loaded is kept when a refresh fails, and a listing that has not changed
+ * is not read again.
+ */
+public class EventTypeRegistry {
+    private static final EventTypeRegistry DEFAULT = new EventTypeRegistry();
+
+    //ids spread over no more than this are held in an array indexed by id
+    private static final int MAX_DENSE_SPAN = 4096;
+    private static final int LOAD_TIMEOUT = 5000;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private volatile Table table;
+    //types registered in code, they stay when the loaded listing changes
+    private final Map<Integer, Type> registered = new LinkedHashMap<Integer, Type>();
+    private Map<Integer, Type> loaded = Collections.emptyMap();
+
+    private final String source;
+    //validators of the last listing loaded, to skip reading it again when unchanged
+    private String etag;
+    private long lastModified;
+    private ScheduledExecutorService refresher;
+    private final CountDownLatch firstLoad = new CountDownLatch(1);
+    private final Runnable onChange;
+
+    /**
+     * Immutable event type.
+     */
+    public static final class Type {
+        private final int id;
+        private final String name;
+
+        public Type(int id, String name) {
+            this.id = id;
+            this.name = name.trim();
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return name + "(" + id + ")";
+        }
+    }
+
+    /**
+     * @return the registry of the built in types, shared by the appenders that do not load their own
+     */
+    public static EventTypeRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Registry of the built in types.
+     */
+    public EventTypeRegistry() {
+        this(null, 0);
+    }
+
+    /**
+     * Registry of the built in types and those listed at source. The listing is loaded by a background
+     * thread, until then lookups see the built in types, see {@link #awaitLoad(long)}.
+     *
+     * @param source          URL of an event type listing, or the path of a file holding one
+     * @param refreshInterval milliseconds between reloads of the listing, 0 loads it once
+     */
+    public EventTypeRegistry(String source, long refreshInterval) {
+        this(source, refreshInterval, null);
+    }
+
+    /**
+     * @param source          URL of an event type listing, or the path of a file holding one
+     * @param refreshInterval milliseconds between reloads of the listing, 0 loads it once
+     * @param onChange        run after the first load and after a refresh that changed the types, eg: to
+     *                        look up names again
+     */
+    @SuppressWarnings("deprecation")
+    public EventTypeRegistry(String source, long refreshInterval, Runnable onChange) {
+        this.source = source;
+        this.onChange = onChange;
+        for (LogEventType type : LogEventType.values()) {
+            registered.put(type.getId(), new Type(type.getId(), type.getName()));
+        }
+        rebuild();
+        if (source == null) {
+            firstLoad.countDown();
+            return;
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "ala-logger-event-types");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        refresher.execute(new Runnable() {
+            public void run() {
+                try {
+                    reload();
+                } finally {
+                    firstLoad.countDown();
+                }
+                //names unknown until now are looked up again, and reported if still unknown
+                if (onChange != null) {
+                    onChange.run();
+                }
+            }
+        });
+        if (refreshInterval > 0) {
+            refresher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    refresh();
+                }
+            }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+        } else {
+            //the thread ends after the first load
+            refresher.shutdown();
+        }
+    }
+
+    /**
+     * Waits for the first load of the listing, whether it succeeded or not.
+     *
+     * @param timeout milliseconds to wait
+     * @return false if the listing was still loading at the timeout
+     */
+    public boolean awaitLoad(long timeout) throws InterruptedException {
+        return firstLoad.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true once the first load of the listing is over, or if there is no listing
+     */
+    public boolean isLoaded() {
+        return firstLoad.getCount() == 0;
+    }
+
+    /**
+     * @return the type with id, or null if there is none
+     */
+    public Type get(int id) {
+        return table.get(id);
+    }
+
+    /**
+     * @param name the type name, in any case
+     * @return the type called name, or null if there is none
+     */
+    public Type get(String name) {
+        return name != null ? table.get(name) : null;
+    }
+
+    public boolean contains(int id) {
+        return table.get(id) != null;
+    }
+
+    /**
+     * @return the types, in id order
+     */
+    public List<Type> getTypes() {
+        return table.types;
+    }
+
+    /**
+     * Adds a type, or renames the type with its id.
+     */
+    public synchronized Type register(int id, String name) {
+        Type type = new Type(id, name);
+        registered.put(id, type);
+        rebuild();
+        return type;
+    }
+
+    /**
+     * Reloads the listing from the source, keeping the types already loaded if that fails.
+     *
+     * @return true if the types changed
+     */
+    public boolean refresh() {
+        boolean changed = reload();
+        if (changed && onChange != null) {
+            onChange.run();
+        }
+        return changed;
+    }
+
+    private synchronized boolean reload() {
+        if (source == null) {
+            return false;
+        }
+        try {
+            Map<Integer, Type> types = load();
+            if (types == null) {
+                return false;
+            }
+            loaded = types;
+            rebuild();
+            LogLog.debug("Loaded " + types.size() + " event types from [" + source + "]");
+            return true;
+        } catch (Exception e) {
+            LogLog.warn("Could not load event types from [" + source + "], keeping the " + table.types.size() + " known types", e);
+            return false;
+        }
+    }
+
+    /**
+     * Stops the refreshes.
+     */
+    public void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the types in the listing, or null if it has not changed since it was last loaded
+     */
+    private Map<Integer, Type> load() throws IOException {
+        InputStream in;
+        if (source.contains("://")) {
+            URLConnection connection = new URL(source).openConnection();
+            connection.setConnectTimeout(LOAD_TIMEOUT);
+            connection.setReadTimeout(LOAD_TIMEOUT);
+            connection.setRequestProperty("Accept", "application/json");
+            if (connection instanceof HttpURLConnection) {
+                HttpURLConnection http = (HttpURLConnection) connection;
+                if (etag != null) {
+                    http.setRequestProperty("If-None-Match", etag);
+                }
+                if (lastModified > 0) {
+                    http.setIfModifiedSince(lastModified);
+                }
+                int status = http.getResponseCode();
+                if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    http.disconnect();
+                    return null;
+                }
+                if (status != HttpURLConnection.HTTP_OK) {
+                    http.disconnect();
+                    throw new IOException("Status " + status);
+                }
+                etag = http.getHeaderField("ETag");
+                lastModified = http.getLastModified();
+            }
+            in = connection.getInputStream();
+        } else {
+            File file = new File(source);
+            long modified = file.lastModified();
+            if (modified != 0 && modified == lastModified) {
+                return null;
+            }
+            in = new FileInputStream(file);
+            lastModified = modified;
+        }
+        try {
+            return parse(MAPPER.readTree(in));
+        } catch (IOException e) {
+            //read it again next time
+            etag = null;
+            lastModified = 0;
+            throw e;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Map<Integer, Type> parse(JsonNode listing) throws IOException {
+        if (listing == null || !listing.isArray()) {
+            throw new IOException("Event type listing must be a JSON array");
+        }
+        Map<Integer, Type> types = new LinkedHashMap<Integer, Type>();
+        for (JsonNode node : listing) {
+            JsonNode id = node.get("id");
+            JsonNode name = node.get("name");
+            if (id == null || !id.isIntegralNumber() || name == null || !name.isTextual()) {
+                throw new IOException("Event types need a numeric id and a name: " + node);
+            }
+            types.put(id.getIntValue(), new Type(id.getIntValue(), name.getTextValue()));
+        }
+        return types;
+    }
+
+    private void rebuild() {
+        Map<Integer, Type> types = new LinkedHashMap<Integer, Type>(loaded);
+        types.putAll(registered);
+        table = new Table(types.values());
+    }
+
+    /**
+     * Immutable lookup tables.
+     */
+    private static final class Table {
+        private final List<Type> types;
+        private final int minId;
+        //indexed by id - minId, null when the ids are too spread out
+        private final Type[] dense;
+        //open addressing by id, used when dense is null
+        private final Type[] byId;
+        //open addressing by case insensitive name hash
+        private final Type[] byName;
+
+        Table(Iterable<Type> all) {
+            List<Type> sorted = new ArrayList<Type>();
+            for (Type type : all) {
+                sorted.add(type);
+            }
+            Collections.sort(sorted, new Comparator<Type>() {
+                public int compare(Type a, Type b) {
+                    return a.id < b.id ? -1 : a.id == b.id ? 0 : 1;
+                }
+            });
+            types = Collections.unmodifiableList(sorted);
+
+            int size = sorted.size();
+            minId = size > 0 ? sorted.get(0).id : 0;
+            long span = size > 0 ? (long) sorted.get(size - 1).id - minId + 1 : 0;
+            if (span <= MAX_DENSE_SPAN) {
+                dense = new Type[(int) span];
+                for (Type type : sorted) {
+                    dense[type.id - minId] = type;
+                }
+                byId = null;
+            } else {
+                dense = null;
+                byId = new Type[capacity(size)];
+                for (Type type : sorted) {
+                    int mask = byId.length - 1;
+                    int slot = mix(type.id) & mask;
+                    while (byId[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    byId[slot] = type;
+                }
+            }
+
+            byName = new Type[capacity(size)];
+            int mask = byName.length - 1;
+            for (Type type : sorted) {
+                int slot = nameHash(type.name, 0, type.name.length()) & mask;
+                while (byName[slot] != null && !byName[slot].name.equalsIgnoreCase(type.name)) {
+                    slot = (slot + 1) & mask;
+                }
+                //a later type with the same name replaces the earlier one
+                byName[slot] = type;
+            }
+        }
+
+        Type get(int id) {
+            if (dense != null) {
+                //the subtraction is done in long so that ids far below minId do not wrap
+                long i = (long) id - minId;
+                return i >= 0 && i < dense.length ? dense[(int) i] : null;
+            }
+            int mask = byId.length - 1;
+            for (int slot = mix(id) & mask; byId[slot] != null; slot = (slot + 1) & mask) {
+                if (byId[slot].id == id) {
+                    return byId[slot];
+                }
+            }
+            return null;
+        }
+
+        Type get(String name) {
+            int start = 0;
+            int end = name.length();
+            while (start < end && name.charAt(start) <= ' ') {
+                start++;
+            }
+            while (end > start && name.charAt(end - 1) <= ' ') {
+                end--;
+            }
+            int length = end - start;
+            int mask = byName.length - 1;
+            for (int slot = nameHash(name, start, end) & mask; byName[slot] != null; slot = (slot + 1) & mask) {
+                String candidate = byName[slot].name;
+                if (candidate.length() == length && candidate.regionMatches(true, 0, name, start, length)) {
+                    return byName[slot];
+                }
+            }
+            return null;
+        }
+
+        private static int capacity(int size) {
+            int capacity = 8;
+            while (capacity < size * 2) {
+                capacity <<= 1;
+            }
+            return capacity;
+        }
+
+        private static int mix(int id) {
+            int h = id * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        private static int nameHash(String name, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + Character.toUpperCase(name.charAt(i));
+            }
+            return h ^ (h >>> 16);
+        }
+    }
+}
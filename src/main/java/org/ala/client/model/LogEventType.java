@@ -1,12 +1,11 @@
 package org.ala.client.model;
 
-import java.util.EnumSet;
-import java.util.HashMap;
-import java.util.Map;
-
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 
+/**
+ * The built in event types. Types added at runtime are only known to the {@link EventTypeRegistry}.
+ */
 @Deprecated
 public enum LogEventType {
 	OCCURRENCE_RECORDS_VIEWED(1000, "OCCURRENCE_RECORDS_VIEWED"),
@@ -17,15 +16,8 @@ public enum LogEventType {
 	private int id;
 	private String name;
 
-    private static final Map<String, LogEventType> logEventTypeLookup = new HashMap<String, LogEventType>();
-    private static final Map<Integer, LogEventType> logEventTypeIdLookup = new HashMap<Integer, LogEventType>();
-   
-    static {
-         for (LogEventType mt : EnumSet.allOf(LogEventType.class)) {
-        	 logEventTypeLookup.put(mt.getName().trim().toUpperCase(), mt);
-        	 logEventTypeIdLookup.put(mt.getId(), mt);
-         }
-    }
+    //values() copies the array on each call, lookups scan this one
+    private static final LogEventType[] VALUES = values();
 	
     private LogEventType(int id, String name){
     	this.name = name;
@@ -41,11 +33,21 @@ public enum LogEventType {
 	}
     
     public static LogEventType getLogEventType(String name) {
-        return logEventTypeLookup.get(name.toUpperCase());
+        for (LogEventType type : VALUES) {
+            if (type.name.equalsIgnoreCase(name)) {
+                return type;
+            }
+        }
+        return null;
     }
 
     public static LogEventType getLogEventType(int id) {
-        return logEventTypeIdLookup.get(id);
+        for (LogEventType type : VALUES) {
+            if (type.id == id) {
+                return type;
+            }
+        }
+        return null;
     }
     
     @Override
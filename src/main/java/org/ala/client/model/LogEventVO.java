@@ -16,8 +16,6 @@
 package org.ala.client.model;
 
 import java.io.Serializable;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
@@ -26,6 +24,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
+import org.codehaus.jackson.map.annotate.JsonDeserialize;
 
 /**
  * VO for JSON
@@ -38,18 +37,15 @@ public class LogEventVO implements Serializable {
     private static final long serialVersionUID = 2L;
 
     /**
-     * Helper method to map from ConcurrentMap/AtomicInteger down to Map/Integer.
+     * Helper method to map from ConcurrentMap/AtomicInteger down to a RecordCountMap.
      * 
      * @param recordCounts The ConcurrentMap
      * @return An equivalent Map
      */
     private static Map<String, Integer> mapToInt(ConcurrentMap<String, AtomicInteger> recordCounts) {
-        if(recordCounts.isEmpty()) {
-            return Collections.emptyMap();
-        }
-        Map<String, Integer> result = new HashMap<>(recordCounts.size());
+        RecordCountMap result = new RecordCountMap(recordCounts.size());
         for(Entry<String, AtomicInteger> nextEntry : recordCounts.entrySet()) {
-            result.put(nextEntry.getKey(), nextEntry.getValue().get());
+            result.putInt(nextEntry.getKey(), nextEntry.getValue().get());
         }
         return result;
 	}
@@ -62,7 +58,10 @@ public class LogEventVO implements Serializable {
 
     private String userAgent = "";
     
-    private Map<String, Integer> recordCounts = new HashMap<>();
+    //read straight into a RecordCountMap, otherwise Jackson assigns the field a LinkedHashMap. A map
+    //given by the caller is kept as it is until the event is serialized, the caller may still fill it
+    @JsonDeserialize(as = RecordCountMap.class)
+    private Map<String, Integer> recordCounts = new RecordCountMap();
 
     private String userEmail = "";
     
@@ -173,6 +172,25 @@ public class LogEventVO implements Serializable {
         }       
     }
 
+    /**
+     * Copy of an event with other recordCounts. The properties are copied as they are, nulls included.
+     *
+     * @param event        the event to copy
+     * @param recordCounts the recordCounts of the copy, which is not copied
+     */
+    public LogEventVO(LogEventVO event, RecordCountMap recordCounts) {
+        this.comment = event.comment;
+        this.eventTypeId = event.eventTypeId;
+        this.userIP = event.userIP;
+        this.userAgent = event.userAgent;
+        this.recordCounts = recordCounts;
+        this.userEmail = event.userEmail;
+        this.month = event.month;
+        this.reasonTypeId = event.reasonTypeId;
+        this.sourceTypeId = event.sourceTypeId;
+        this.sourceUrl = event.sourceUrl;
+    }
+
     public String getComment() {
         return this.comment;
     }
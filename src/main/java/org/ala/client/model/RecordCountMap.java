@@ -0,0 +1,432 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.model;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compact map of uid to record count, the store behind {@link LogEventVO#getRecordCounts()}.
+ * <p>
+ * Keys and counts are held in parallel arrays in insertion order, so there are no entry objects
+ * and no boxed Integers. Small maps are searched linearly, larger ones through an open addressing
+ * index of the arrays. The {@link Map} methods are a view for existing callers; the
+ * {@code keyAt}/{@code valueAt} and {@code getInt}/{@code putInt}/{@code add} methods avoid boxing.
+ * Keys are interned through the {@link UidCache} as they are added. Null keys are not allowed.
+ * Not thread safe.
+ */
+public class RecordCountMap extends AbstractMap<String, Integer> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    //entries from which lookups go through the index rather than a linear scan
+    private static final int INDEX_THRESHOLD = 8;
+    private static final String[] NO_KEYS = {};
+    private static final int[] NO_VALUES = {};
+
+    private String[] keys = NO_KEYS;
+    private int[] values = NO_VALUES;
+    //marks entries whose value is null, allocated on the first one
+    private boolean[] nulls;
+    private int size;
+    //slots hold the entry index + 1, 0 is empty. null while the map is small.
+    private transient int[] index;
+    private transient int modCount;
+    private transient Set<Map.Entry<String, Integer>> entrySet;
+
+    public RecordCountMap() {
+    }
+
+    /**
+     * @param expectedSize number of uids to make room for
+     */
+    public RecordCountMap(int expectedSize) {
+        if (expectedSize > 0) {
+            keys = new String[expectedSize];
+            values = new int[expectedSize];
+        }
+    }
+
+    public RecordCountMap(Map<String, Integer> counts) {
+        this(counts.size());
+        putAll(counts);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i entry position, from 0 to size() - 1 in insertion order
+     */
+    public String keyAt(int i) {
+        checkIndex(i);
+        return keys[i];
+    }
+
+    /**
+     * @return the count at position i, 0 if it is null
+     */
+    public int valueAt(int i) {
+        checkIndex(i);
+        return values[i];
+    }
+
+    public boolean isNullAt(int i) {
+        checkIndex(i);
+        return nulls != null && nulls[i];
+    }
+
+    /**
+     * @return the position of key, or -1 if it is not in the map
+     */
+    public int indexOf(Object key) {
+        if (key == null) {
+            return -1;
+        }
+        if (index == null) {
+            for (int i = 0; i < size; i++) {
+                if (keys[i].equals(key)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int mask = index.length - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int entry = index[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (keys[entry - 1].equals(key)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    /**
+     * @return the count of key, or defaultValue if it is not in the map or its count is null
+     */
+    public int getInt(String key, int defaultValue) {
+        int i = indexOf(key);
+        return i < 0 || isNull(i) ? defaultValue : values[i];
+    }
+
+    public void putInt(String key, int value) {
+        int i = indexOf(key);
+        if (i < 0) {
+            append(key, value);
+        } else {
+            values[i] = value;
+            clearNull(i);
+        }
+    }
+
+    /**
+     * Adds delta to the count of key, which starts from 0 if the key is new or its count is null.
+     *
+     * @return the new count
+     */
+    public int add(String key, int delta) {
+        int i = indexOf(key);
+        if (i < 0) {
+            append(key, delta);
+            return delta;
+        }
+        if (isNull(i)) {
+            values[i] = 0;
+            clearNull(i);
+        }
+        return values[i] += delta;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Integer get(Object key) {
+        int i = indexOf(key);
+        return i < 0 || isNull(i) ? null : values[i];
+    }
+
+    @Override
+    public Integer put(String key, Integer value) {
+        int i = indexOf(key);
+        if (i < 0) {
+            append(key, value != null ? value : 0);
+            if (value == null) {
+                markNull(size - 1);
+            }
+            return null;
+        }
+        Integer previous = isNull(i) ? null : values[i];
+        setAt(i, value);
+        return previous;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends Integer> m) {
+        if (m instanceof RecordCountMap) {
+            RecordCountMap other = (RecordCountMap) m;
+            for (int i = 0; i < other.size; i++) {
+                put(other.keys[i], other.isNull(i) ? null : other.values[i]);
+            }
+        } else {
+            super.putAll(m);
+        }
+    }
+
+    @Override
+    public Integer remove(Object key) {
+        int i = indexOf(key);
+        if (i < 0) {
+            return null;
+        }
+        Integer previous = isNull(i) ? null : values[i];
+        removeAt(i);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(keys, 0, size, null);
+        nulls = null;
+        index = null;
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Integer>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    private void append(String key, int value) {
+        if (key == null) {
+            throw new NullPointerException("Record count uids cannot be null");
+        }
+        key = UidCache.intern(key);
+        if (size == keys.length) {
+            int capacity = Math.max(4, size * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+            if (nulls != null) {
+                nulls = Arrays.copyOf(nulls, capacity);
+            }
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+        modCount++;
+        if (index != null && size * 2 <= index.length) {
+            insertIntoIndex(size - 1);
+        } else if (size > INDEX_THRESHOLD) {
+            rebuildIndex();
+        }
+    }
+
+    private void setAt(int i, Integer value) {
+        if (value == null) {
+            values[i] = 0;
+            markNull(i);
+        } else {
+            values[i] = value;
+            clearNull(i);
+        }
+    }
+
+    private void removeAt(int i) {
+        int moved = size - i - 1;
+        System.arraycopy(keys, i + 1, keys, i, moved);
+        System.arraycopy(values, i + 1, values, i, moved);
+        if (nulls != null) {
+            System.arraycopy(nulls, i + 1, nulls, i, moved);
+            nulls[size - 1] = false;
+        }
+        keys[--size] = null;
+        modCount++;
+        //removals are rare, so the positions in the index are simply recomputed
+        if (size > INDEX_THRESHOLD) {
+            rebuildIndex();
+        } else {
+            index = null;
+        }
+    }
+
+    private void rebuildIndex() {
+        int capacity = 16;
+        while (capacity < size * 4) {
+            capacity <<= 1;
+        }
+        index = new int[capacity];
+        for (int i = 0; i < size; i++) {
+            insertIntoIndex(i);
+        }
+    }
+
+    private void insertIntoIndex(int i) {
+        int mask = index.length - 1;
+        int slot = hash(keys[i]) & mask;
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = i + 1;
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private boolean isNull(int i) {
+        return nulls != null && nulls[i];
+    }
+
+    private void markNull(int i) {
+        if (nulls == null) {
+            nulls = new boolean[keys.length];
+        }
+        nulls[i] = true;
+    }
+
+    private void clearNull(int i) {
+        if (nulls != null) {
+            nulls[i] = false;
+        }
+    }
+
+    private void checkIndex(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (size > INDEX_THRESHOLD) {
+            rebuildIndex();
+        }
+    }
+
+    private final class EntrySet extends AbstractSet<Map.Entry<String, Integer>> {
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void clear() {
+            RecordCountMap.this.clear();
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, Integer>> iterator() {
+            return new Iterator<Map.Entry<String, Integer>>() {
+                private int next;
+                private int last = -1;
+                private int expectedModCount = modCount;
+
+                public boolean hasNext() {
+                    return next < size;
+                }
+
+                public Map.Entry<String, Integer> next() {
+                    if (modCount != expectedModCount) {
+                        throw new ConcurrentModificationException();
+                    }
+                    if (next >= size) {
+                        throw new NoSuchElementException();
+                    }
+                    last = next++;
+                    return new Entry(last);
+                }
+
+                public void remove() {
+                    if (last < 0) {
+                        throw new IllegalStateException();
+                    }
+                    if (modCount != expectedModCount) {
+                        throw new ConcurrentModificationException();
+                    }
+                    removeAt(last);
+                    next = last;
+                    last = -1;
+                    expectedModCount = modCount;
+                }
+            };
+        }
+    }
+
+    /**
+     * Entry backed by its position in the arrays.
+     */
+    private final class Entry implements Map.Entry<String, Integer> {
+        private final int i;
+
+        Entry(int i) {
+            this.i = i;
+        }
+
+        public String getKey() {
+            return keys[i];
+        }
+
+        public Integer getValue() {
+            return isNull(i) ? null : values[i];
+        }
+
+        public Integer setValue(Integer value) {
+            Integer previous = getValue();
+            setAt(i, value);
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            Integer value = getValue();
+            return getKey().equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            Integer value = getValue();
+            return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.model;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shared, bounded interning cache for the uids used as {@link RecordCountMap} keys, eg: dr143,
+ * dp123, ins322.
+ * <p>
+ * The uids come from a small set, so events buffered while the logger service is slow share one
+ * String per uid rather than holding a copy each. The cache also holds each uid as a JSON object
+ * field name in UTF-8, ready for the encoder to copy.
+ * <p>
+ * Only short uids of printable ASCII characters that need no escaping are cached. Once the cache
+ * holds {@link #getMaxSize()} uids, new ones are returned as they are.
+ */
+public final class UidCache {
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    //longer keys are not uids
+    private static final int MAX_LENGTH = 64;
+
+    private static final ConcurrentMap<String, Uid> UIDS = new ConcurrentHashMap<String, Uid>(256);
+    private static volatile int maxSize = 16 * 1024;
+
+    private UidCache() {
+    }
+
+    /**
+     * @return the cached String equal to uid, uid itself if it is not cached and cannot be added
+     */
+    public static String intern(String uid) {
+        Uid cached = lookup(uid);
+        return cached != null ? cached.value : uid;
+    }
+
+    /**
+     * @return uid as a JSON field name, {@code "uid":}, in UTF-8, or null if it is not cached. Not to be modified.
+     */
+    public static byte[] getJsonName(String uid) {
+        Uid cached = UIDS.get(uid);
+        return cached != null ? cached.jsonName : null;
+    }
+
+    public static int getSize() {
+        return UIDS.size();
+    }
+
+    public static int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param maxSize number of uids kept, those already cached stay when it is lowered
+     */
+    public static void setMaxSize(int maxSize) {
+        UidCache.maxSize = maxSize;
+    }
+
+    private static Uid lookup(String uid) {
+        if (uid == null) {
+            return null;
+        }
+        Uid cached = UIDS.get(uid);
+        if (cached != null || UIDS.size() >= maxSize || !isCacheable(uid)) {
+            return cached;
+        }
+        Uid added = new Uid(uid);
+        cached = UIDS.putIfAbsent(uid, added);
+        return cached != null ? cached : added;
+    }
+
+    private static boolean isCacheable(String uid) {
+        int length = uid.length();
+        if (length == 0 || length > MAX_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = uid.charAt(i);
+            if (c < 0x20 || c > 0x7e || c == '"' || c == '\\') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Uid {
+        private final String value;
+        private final byte[] jsonName;
+
+        Uid(String value) {
+            this.value = value;
+            this.jsonName = ('"' + value + "\":").getBytes(US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Stops requests to a service that keeps failing, so callers fail fast instead of waiting on timeouts.
+ * <p>
+ * After {@code failureThreshold} consecutive failures the breaker opens and rejects requests for
+ * {@code openMillis}. It then lets a single probe request through (half-open): success closes the
+ * breaker again, failure re-opens it for another period.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openedAt;
+
+    /**
+     * @param name             identifies the protected service in log messages
+     * @param failureThreshold consecutive failures that open the breaker
+     * @param openMillis       millisecond the breaker stays open before a probe is allowed
+     */
+    public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+        this.name = name;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return true if a request may be made now
+     */
+    public boolean allowRequest() {
+        switch (state.get()) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return System.currentTimeMillis() - openedAt >= openMillis
+                        && state.compareAndSet(State.OPEN, State.HALF_OPEN);
+            default:
+                // a probe is already in flight
+                return false;
+        }
+    }
+
+    public void recordSuccess() {
+        consecutiveFailures.set(0);
+        if (state.getAndSet(State.CLOSED) != State.CLOSED) {
+            LogLog.warn("Circuit breaker for " + name + " closed, requests are being sent again");
+        }
+    }
+
+    public void recordFailure() {
+        if (state.get() == State.HALF_OPEN || consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            openedAt = System.currentTimeMillis();
+            if (state.getAndSet(State.OPEN) == State.CLOSED) {
+                LogLog.warn("Circuit breaker for " + name + " opened after " + consecutiveFailures.get()
+                        + " consecutive failures, requests will fail fast for " + openMillis + "ms");
+            }
+        }
+    }
+
+    public State getState() {
+        return state.get();
+    }
+}
@@ -0,0 +1,81 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledFuture;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Runs the idle connection checks of all transports on one background thread.
+ * <p>
+ * A check holds its pool through a weak reference, so a transport that is dropped without
+ * {@code shutdown()} can still be collected, and its check then stops. The thread stops with the
+ * last check.
+ */
+class ConnectionEvictor {
+    static final SharedScheduler TIMER = new SharedScheduler("ala-logger-connection-evictor");
+
+    /**
+     * Closes the idle and stale connections of a pool. Must not hold a reference to the pool or its transport.
+     */
+    interface Eviction<T> {
+        void evict(T pool);
+    }
+
+    private ConnectionEvictor() {
+    }
+
+    /**
+     * @param pool     the connection pool
+     * @param eviction closes the idle and stale connections of the pool
+     * @param interval millisecond between runs
+     * @return give it to {@link #cancel(ScheduledFuture)} when the pool is shut down
+     */
+    static <T> ScheduledFuture<?> schedule(T pool, final Eviction<? super T> eviction, long interval) {
+        final WeakReference<T> reference = new WeakReference<T>(pool);
+        synchronized (TIMER) {
+            TIMER.retain();
+            return TIMER.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    T pool = reference.get();
+                    if (pool == null) {
+                        TIMER.release();
+                        //ends the schedule
+                        throw new CancellationException("Connection pool was discarded");
+                    }
+                    try {
+                        eviction.evict(pool);
+                    } catch (RuntimeException e) {
+                        LogLog.warn("Could not close idle connections", e);
+                    }
+                }
+            }, interval);
+        }
+    }
+
+    /**
+     * Stops the checks of a pool, and the thread once no pool is left.
+     */
+    static void cancel(ScheduledFuture<?> eviction) {
+        //false once the check has ended itself
+        if (eviction.cancel(false)) {
+            TIMER.release();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+/**
+ * Limits of the keep-alive connection pool of a {@link Transport}.
+ */
+public class ConnectionPoolConfig {
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 40;
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+    private static final long MIN_EVICTION_INTERVAL = 1000;
+
+    private final int maxConnectionsPerHost;
+    private final int maxTotalConnections;
+    private final long idleTimeout;
+
+    public ConnectionPoolConfig() {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_MAX_TOTAL_CONNECTIONS, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * @param maxConnectionsPerHost connections to a single host, requests beyond that wait for a connection
+     * @param maxTotalConnections   connections to all hosts
+     * @param idleTimeout           millisecond a connection may stay unused in the pool before it is closed, 0 keeps them open
+     */
+    public ConnectionPoolConfig(int maxConnectionsPerHost, int maxTotalConnections, long idleTimeout) {
+        this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+        this.maxTotalConnections = Math.max(this.maxConnectionsPerHost, maxTotalConnections);
+        this.idleTimeout = Math.max(0, idleTimeout);
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    public int getMaxTotalConnections() {
+        return maxTotalConnections;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @return millisecond between checks for idle and stale connections
+     */
+    public long getEvictionInterval() {
+        return Math.max(MIN_EVICTION_INTERVAL, idleTimeout / 2);
+    }
+}
@@ -0,0 +1,90 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+/**
+ * Snapshot of the connection pool of a {@link Transport}.
+ * <p>
+ * A pool that is often starved shows requests pending and a wait time that keeps growing; raising
+ * the per-host limit, or lowering the number of requests in flight, addresses it.
+ */
+public class ConnectionPoolStats {
+    private final int leased;
+    private final int available;
+    private final int pending;
+    private final int max;
+    private final long waitCount;
+    private final long totalWaitMillis;
+    private final long maxWaitMillis;
+
+    /**
+     * @param leased          connections in use by a request
+     * @param available       idle connections kept open for reuse
+     * @param pending         requests waiting for a connection
+     * @param max             the total connection limit
+     * @param waitCount       number of connections handed out
+     * @param totalWaitMillis millisecond requests spent waiting for those connections
+     * @param maxWaitMillis   longest wait for a connection
+     */
+    public ConnectionPoolStats(int leased, int available, int pending, int max,
+                               long waitCount, long totalWaitMillis, long maxWaitMillis) {
+        this.leased = leased;
+        this.available = available;
+        this.pending = pending;
+        this.max = max;
+        this.waitCount = waitCount;
+        this.totalWaitMillis = totalWaitMillis;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public int getLeased() {
+        return leased;
+    }
+
+    public int getAvailable() {
+        return available;
+    }
+
+    public int getPending() {
+        return pending;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    public long getWaitCount() {
+        return waitCount;
+    }
+
+    public long getTotalWaitMillis() {
+        return totalWaitMillis;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    public double getAverageWaitMillis() {
+        return waitCount == 0 ? 0 : (double) totalWaitMillis / waitCount;
+    }
+
+    @Override
+    public String toString() {
+        return "leased=" + leased + ", available=" + available + ", pending=" + pending + ", max=" + max
+                + ", averageWait=" + String.format("%.1f", getAverageWaitMillis()) + "ms, maxWait=" + maxWaitMillis + "ms";
+    }
+}
@@ -0,0 +1,58 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the requests waiting for a pooled connection and the time they waited, shared by the transports.
+ */
+class ConnectionWaitStats {
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @return the start of the wait, to pass to {@link #endWait(long)}
+     */
+    long startWait() {
+        pending.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    void endWait(long start) {
+        long nanos = System.nanoTime() - start;
+        pending.decrementAndGet();
+        count.increment();
+        totalNanos.add(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            // retry
+        }
+    }
+
+    int getPending() {
+        return pending.get();
+    }
+
+    ConnectionPoolStats snapshot(int leased, int available, int pending, int max) {
+        return new ConnectionPoolStats(leased, available, pending, max, count.sum(),
+                totalNanos.sum() / 1000000, maxNanos.get() / 1000000);
+    }
+}
@@ -0,0 +1,67 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * Request entity that counts the bytes another entity writes, over all the times it is written.
+ */
+class CountingRequestEntity implements RequestEntity {
+    private final RequestEntity entity;
+    private final AtomicLong count = new AtomicLong();
+
+    CountingRequestEntity(RequestEntity entity) {
+        this.entity = entity;
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    public boolean isRepeatable() {
+        return entity.isRepeatable();
+    }
+
+    public void writeRequest(OutputStream out) throws IOException {
+        entity.writeRequest(new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                count.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                count.addAndGet(len);
+            }
+        });
+    }
+
+    public long getContentLength() {
+        return entity.getContentLength();
+    }
+
+    public String getContentType() {
+        return entity.getContentType();
+    }
+}
@@ -0,0 +1,334 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Spreads requests over the nodes of the logger service and steers them away from failing nodes.
+ * <p>
+ * Each request goes to the healthy node with the lowest (requests outstanding + 1) x average
+ * latency, so a slow or busy node gets fewer requests. A node that fails {@code failureThreshold}
+ * requests in a row is ejected for {@code ejectMillis}, doubled each time it is ejected again. A
+ * background check probes every node: it ejects nodes that do not answer and reinstates ejected
+ * nodes that do. When every node is ejected, the one due back first is used.
+ * <p>
+ * A single node is never ejected, failures then are left to the retries and the circuit breaker.
+ */
+public class EndpointSelector {
+    //the most nodes, so that those tried by a request fit in a long
+    public static final int MAX_ENDPOINTS = 64;
+    //weight of the latest request in the average latency
+    private static final double LATENCY_WEIGHT = 0.2;
+    //keeps nodes without latency samples from scoring 0
+    private static final long LATENCY_FLOOR = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int MAX_EJECTION_DOUBLINGS = 5;
+
+    /**
+     * A node of the logger service and its health.
+     */
+    public static final class Endpoint {
+        private final String url;
+        private final int index;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        //exponentially weighted average, in nanoseconds
+        private volatile double latency;
+        //System.nanoTime() at which an ejected node is used again, 0 if it is healthy
+        private volatile long ejectedUntil;
+        private int ejections;
+
+        Endpoint(String url, int index) {
+            this.url = url;
+            this.index = index;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        public double getLatencyMillis() {
+            return latency / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        public boolean isHealthy() {
+            long until = ejectedUntil;
+            return until == 0 || System.nanoTime() - until >= 0;
+        }
+
+        long mask() {
+            return 1L << index;
+        }
+
+        double score() {
+            return (outstanding.get() + 1) * (latency + LATENCY_FLOOR);
+        }
+
+        @Override
+        public String toString() {
+            return url + (isHealthy() ? "" : " (ejected)") + ", " + outstanding.get() + " outstanding, "
+                    + Math.round(getLatencyMillis()) + "ms";
+        }
+    }
+
+    private final String name;
+    private final String urls;
+    private final Endpoint[] endpoints;
+    private final int failureThreshold;
+    private final long ejectNanos;
+    private final int probeTimeout;
+    private ScheduledExecutorService healthChecker;
+
+    /**
+     * @param name                identifies the service in log messages and names the health check thread
+     * @param urls                node URLs separated by commas or whitespace
+     * @param failureThreshold    consecutive failed requests that eject a node
+     * @param ejectMillis         millisecond a node is first ejected for
+     * @param healthCheckInterval millisecond between probes of every node, 0 disables them
+     * @param probeTimeout        millisecond a probe waits to connect and for an answer
+     */
+    public EndpointSelector(String name, String urls, int failureThreshold, long ejectMillis, long healthCheckInterval, int probeTimeout) {
+        this.name = name;
+        this.urls = urls;
+        List<String> parsed = parse(urls);
+        if (parsed.isEmpty()) {
+            throw new IllegalArgumentException("No logger service URL in [" + urls + "]");
+        }
+        if (parsed.size() > MAX_ENDPOINTS) {
+            LogLog.warn("Only the first " + MAX_ENDPOINTS + " of " + parsed.size() + " URLs are used for " + name);
+            parsed = parsed.subList(0, MAX_ENDPOINTS);
+        }
+        endpoints = new Endpoint[parsed.size()];
+        for (int i = 0; i < endpoints.length; i++) {
+            endpoints[i] = new Endpoint(parsed.get(i), i);
+        }
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.ejectNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, ejectMillis));
+        this.probeTimeout = probeTimeout;
+
+        if (endpoints.length > 1 && healthCheckInterval > 0) {
+            final String threadName = "ala-logger-health-" + name;
+            healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, threadName);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            healthChecker.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    checkHealth();
+                }
+            }, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the URLs in a list separated by commas or whitespace
+     */
+    public static List<String> parse(String urls) {
+        if (urls == null) {
+            return Collections.emptyList();
+        }
+        List<String> parsed = new ArrayList<String>();
+        for (String url : urls.split("[,\\s]+")) {
+            if (url.length() > 0) {
+                parsed.add(url);
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * @return the URLs this selector was made from
+     */
+    public String getUrls() {
+        return urls;
+    }
+
+    public int size() {
+        return endpoints.length;
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(Arrays.asList(endpoints));
+    }
+
+    /**
+     * Picks the node for a request, which must be followed by {@link #onSuccess}, {@link #onFailure}
+     * or {@link #release} once it completes.
+     *
+     * @param excluded the {@link #mask(Endpoint)}s of the nodes not to use, eg: those already tried
+     * @return the node, or null if every node is excluded
+     */
+    public Endpoint select(long excluded) {
+        Endpoint best = null;
+        double bestScore = Double.MAX_VALUE;
+        Endpoint fallback = null;
+        int n = endpoints.length;
+        //equal scores go to the nodes in turn
+        int start = n > 1 ? ThreadLocalRandom.current().nextInt(n) : 0;
+        for (int i = 0; i < n; i++) {
+            Endpoint endpoint = endpoints[(start + i) % n];
+            if ((excluded & endpoint.mask()) != 0) {
+                continue;
+            }
+            if (!endpoint.isHealthy()) {
+                if (fallback == null || endpoint.ejectedUntil - fallback.ejectedUntil < 0) {
+                    fallback = endpoint;
+                }
+                continue;
+            }
+            double score = endpoint.score();
+            if (score < bestScore) {
+                best = endpoint;
+                bestScore = score;
+            }
+        }
+        if (best == null) {
+            best = fallback;
+        }
+        if (best != null) {
+            best.outstanding.incrementAndGet();
+        }
+        return best;
+    }
+
+    public static long mask(Endpoint endpoint) {
+        return endpoint.mask();
+    }
+
+    /**
+     * Records a request the node answered, whatever the status.
+     */
+    public void onSuccess(Endpoint endpoint, long latencyNanos) {
+        endpoint.outstanding.decrementAndGet();
+        double latency = endpoint.latency;
+        endpoint.latency = latency == 0 ? latencyNanos : latency + LATENCY_WEIGHT * (latencyNanos - latency);
+        endpoint.consecutiveFailures.set(0);
+        if (endpoint.ejectedUntil != 0) {
+            reinstate(endpoint);
+        }
+    }
+
+    /**
+     * Records a request the node did not answer, or answered with a 5xx or 429.
+     */
+    public void onFailure(Endpoint endpoint) {
+        endpoint.outstanding.decrementAndGet();
+        if (endpoint.consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            eject(endpoint);
+        }
+    }
+
+    /**
+     * Records a request that was not sent.
+     */
+    public void release(Endpoint endpoint) {
+        endpoint.outstanding.decrementAndGet();
+    }
+
+    /**
+     * Stops the health checks.
+     */
+    public void close() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+    }
+
+    private void eject(Endpoint endpoint) {
+        if (endpoints.length < 2) {
+            return;
+        }
+        synchronized (endpoint) {
+            if (!endpoint.isHealthy()) {
+                return;
+            }
+            long ejectFor = ejectNanos << Math.min(endpoint.ejections, MAX_EJECTION_DOUBLINGS);
+            endpoint.ejections++;
+            endpoint.consecutiveFailures.set(0);
+            //0 marks a healthy node
+            endpoint.ejectedUntil = (System.nanoTime() + ejectFor) | 1;
+            LogLog.warn("Ejected " + endpoint.url + " from " + name + " for " + TimeUnit.NANOSECONDS.toMillis(ejectFor) + "ms");
+        }
+    }
+
+    private void reinstate(Endpoint endpoint) {
+        synchronized (endpoint) {
+            if (endpoint.ejectedUntil != 0) {
+                endpoint.ejectedUntil = 0;
+                endpoint.ejections = 0;
+                LogLog.warn("Reinstated " + endpoint.url + " in " + name);
+            }
+        }
+    }
+
+    private void checkHealth() {
+        for (Endpoint endpoint : endpoints) {
+            if (probe(endpoint)) {
+                endpoint.consecutiveFailures.set(0);
+                if (endpoint.ejectedUntil != 0) {
+                    reinstate(endpoint);
+                }
+            } else if (endpoint.isHealthy()) {
+                eject(endpoint);
+            }
+        }
+    }
+
+    /**
+     * @return true if the node answers a GET of its URL with a status below 500
+     */
+    private boolean probe(Endpoint endpoint) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(endpoint.url).openConnection();
+            connection.setConnectTimeout(probeTimeout);
+            connection.setReadTimeout(probeTimeout);
+            connection.setUseCaches(false);
+            return connection.getResponseCode() < 500;
+        } catch (IOException e) {
+            LogLog.debug("Health check of " + endpoint.url + " failed: " + e.getMessage());
+            return false;
+        } catch (RuntimeException e) {
+            LogLog.debug("Health check of " + endpoint.url + " failed", e);
+            return false;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+}
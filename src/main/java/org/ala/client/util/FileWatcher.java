@@ -0,0 +1,132 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Tells a listener on a background thread when a file is created or modified.
+ * <p>
+ * The directory of the file is watched rather than the file itself, so files that editors or
+ * configuration tools replace, rather than write in place, are seen too. Changes that follow each
+ * other within {@link #SETTLE_TIME} are reported once, after the last of them.
+ */
+public class FileWatcher {
+    //millisecond without further changes before the listener is called
+    public static final long SETTLE_TIME = 200;
+
+    /**
+     * Called on the watcher thread.
+     */
+    public interface Listener {
+        void changed(File file);
+    }
+
+    private final File file;
+    private final Listener listener;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * @throws IOException if the directory of the file cannot be watched, eg: it does not exist
+     */
+    public FileWatcher(File file, Listener listener) throws IOException {
+        this.file = file.getAbsoluteFile();
+        this.listener = listener;
+        Path directory = this.file.getParentFile().toPath();
+        watchService = FileSystems.getDefault().newWatchService();
+        try {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+
+        thread = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "ala-logger-watch-" + this.file.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Stops watching.
+     */
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LogLog.debug("Could not close the watch service of " + file, e);
+        }
+    }
+
+    private void watch() {
+        try {
+            for (;;) {
+                if (!isChange(watchService.take())) {
+                    continue;
+                }
+                //wait for the writes to settle
+                WatchKey next;
+                while ((next = watchService.poll(SETTLE_TIME, TimeUnit.MILLISECONDS)) != null) {
+                    isChange(next);
+                }
+                try {
+                    listener.changed(file);
+                } catch (RuntimeException e) {
+                    LogLog.error("Failed to apply the changes to " + file, e);
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // closed
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true if key holds an event for the file. The key is reset.
+     */
+    private boolean isChange(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || (context instanceof Path && file.getName().equals(((Path) context).getFileName().toString()))) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
@@ -0,0 +1,85 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * Request entity that gzip compresses another entity as it is written to the connection.
+ * The request must be sent with a {@code Content-Encoding: gzip} header.
+ */
+public class GzipRequestEntity implements RequestEntity {
+    public static final String CONTENT_ENCODING = "gzip";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final RequestEntity entity;
+
+    public GzipRequestEntity(RequestEntity entity) {
+        this.entity = entity;
+    }
+
+    public boolean isRepeatable() {
+        return entity.isRepeatable();
+    }
+
+    public void writeRequest(OutputStream out) throws IOException {
+        // closing the gzip stream releases its deflater, but the connection's stream is not ours to close
+        GzipStream gzip = new GzipStream(new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        });
+        try {
+            entity.writeRequest(gzip);
+            gzip.close();
+        } finally {
+            // close() does not get that far when the connection fails mid-body
+            gzip.end();
+        }
+    }
+
+    public long getContentLength() {
+        return -1;
+    }
+
+    public String getContentType() {
+        return entity.getContentType();
+    }
+
+    /**
+     * Gzip stream whose deflater can be released without writing the gzip trailer.
+     */
+    private static final class GzipStream extends GZIPOutputStream {
+        GzipStream(OutputStream out) throws IOException {
+            super(out, BUFFER_SIZE);
+        }
+
+        void end() {
+            def.end();
+        }
+    }
+}
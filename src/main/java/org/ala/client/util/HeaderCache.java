@@ -0,0 +1,56 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Prebuilt, immutable HTTP header sets keyed by user agent, the least recently used dropped once
+ * there are more than the maximum.
+ */
+public class HeaderCache {
+    private final LinkedHashMap<String, Map<String, String>> headers;
+
+    /**
+     * @param maxSize number of user agents whose headers are kept
+     */
+    public HeaderCache(final int maxSize) {
+        headers = new LinkedHashMap<String, Map<String, String>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return the headers to send events of userAgent with, not to be modified
+     */
+    public synchronized Map<String, String> get(String userAgent) {
+        Map<String, String> cached = headers.get(userAgent);
+        if (cached == null) {
+            cached = Collections.singletonMap(Constants.USER_AGENT_PARAM, userAgent);
+            headers.put(userAgent, cached);
+        }
+        return cached;
+    }
+
+    public synchronized int size() {
+        return headers.size();
+    }
+}
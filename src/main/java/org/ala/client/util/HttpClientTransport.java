@@ -0,0 +1,237 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.HttpMethodRetryHandler;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+
+/**
+ * Blocking {@link Transport} on commons-httpclient. Each request holds the calling thread and a pooled connection
+ * until its response has been read.
+ */
+public class HttpClientTransport implements Transport {
+    //retries are handled by RestfulClient, with backoff
+    private static final HttpMethodRetryHandler NO_RETRY = new DefaultHttpMethodRetryHandler(0, false);
+
+    //pools of the transports made by shared(), by connect timeout
+    private static final ConcurrentMap<Integer, InstrumentedConnectionManager> SHARED_POOLS =
+            new ConcurrentHashMap<Integer, InstrumentedConnectionManager>();
+
+    private final InstrumentedConnectionManager connManager;
+    private final boolean shared;
+    private final HttpClient client;
+    private final int timeout;
+    private ScheduledFuture<?> eviction;
+
+    /**
+     * @param timeout        socket read timeout in millisecond, 0 is no timeout
+     * @param connectTimeout timeout in millisecond to establish a connection, 0 is no timeout
+     */
+    public HttpClientTransport(int timeout, int connectTimeout) {
+        this(timeout, connectTimeout, new ConnectionPoolConfig());
+    }
+
+    /**
+     * @param timeout        socket read timeout in millisecond, 0 is no timeout
+     * @param connectTimeout timeout in millisecond to establish a connection, 0 is no timeout
+     * @param pool           limits of the connection pool
+     */
+    public HttpClientTransport(int timeout, int connectTimeout, ConnectionPoolConfig pool) {
+        this(timeout, createConnectionManager(connectTimeout, pool), false);
+        if (pool.getIdleTimeout() > 0) {
+            eviction = ConnectionEvictor.schedule(connManager, new IdleEviction(pool.getIdleTimeout()), pool.getEvictionInterval());
+        }
+    }
+
+    private HttpClientTransport(int timeout, InstrumentedConnectionManager connManager, boolean shared) {
+        this.timeout = timeout;
+        this.connManager = connManager;
+        this.shared = shared;
+        client = new HttpClient(connManager);
+        client.getParams().setSoTimeout(timeout);
+    }
+
+    /**
+     * For clients that are not shut down, eg: those made with the older RestfulClient constructors.
+     *
+     * @return a transport on a pool that is shared by all those with the same connectTimeout, and
+     * is left open by {@link #shutdown()}
+     */
+    public static HttpClientTransport shared(int timeout, int connectTimeout) {
+        InstrumentedConnectionManager connManager = SHARED_POOLS.get(connectTimeout);
+        if (connManager == null) {
+            InstrumentedConnectionManager created = createConnectionManager(connectTimeout, new ConnectionPoolConfig());
+            connManager = SHARED_POOLS.putIfAbsent(connectTimeout, created);
+            if (connManager == null) {
+                connManager = created;
+            }
+        }
+        return new HttpClientTransport(timeout, connManager, true);
+    }
+
+    private static InstrumentedConnectionManager createConnectionManager(int connectTimeout, ConnectionPoolConfig pool) {
+        InstrumentedConnectionManager connManager = new InstrumentedConnectionManager();
+        HttpConnectionManagerParams params = connManager.getParams();
+        params.setConnectionTimeout(connectTimeout);
+        params.setDefaultMaxConnectionsPerHost(pool.getMaxConnectionsPerHost());
+        params.setMaxTotalConnections(pool.getMaxTotalConnections());
+        params.setStaleCheckingEnabled(true);
+        return connManager;
+    }
+
+    public CompletableFuture<Object[]> post(String url, RequestEntity entity, Map<String, String> headers, long timeout) {
+        CompletableFuture<Object[]> result = new CompletableFuture<Object[]>();
+        try {
+            result.complete(executePost(url, entity, headers, timeout));
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private Object[] executePost(String url, RequestEntity entity, Map<String, String> headers, long timeout) throws IOException {
+        PostMethod post = null;
+        String resp = null;
+        int statusCode = 0;
+
+        try {
+            post = new PostMethod(url);
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                post.setRequestHeader(new Header(entry.getKey(), entry.getValue()));
+            }
+            post.setRequestEntity(entity);
+            post.getParams().setParameter(HttpMethodParams.RETRY_HANDLER, NO_RETRY);
+            if (timeout > 0 && (this.timeout <= 0 || timeout < this.timeout)) {
+                //don't wait on the response beyond the deadline
+                post.getParams().setSoTimeout((int) Math.min(Integer.MAX_VALUE, timeout));
+            }
+
+            statusCode = client.executeMethod(post);
+            if (statusCode == HttpStatus.SC_OK) {
+                resp = post.getResponseBodyAsString();
+            }
+        } finally {
+            if (post != null) {
+                post.releaseConnection();
+            }
+        }
+        return new Object[]{statusCode, resp};
+    }
+
+    public Object[] get(String url, Map<String, String> headers) throws IOException {
+        GetMethod get = null;
+        String resp = "";
+        int statusCode = 0;
+
+        try {
+            get = new GetMethod(url);
+            if (headers != null) {
+                for (Map.Entry<String, String> entry : headers.entrySet()) {
+                    get.setRequestHeader(entry.getKey(), entry.getValue());
+                }
+            }
+            statusCode = client.executeMethod(get);
+            resp = get.getResponseBodyAsString();
+        } finally {
+            if (get != null) {
+                get.releaseConnection();
+            }
+        }
+        return new Object[]{statusCode, resp};
+    }
+
+    public boolean isBlocking() {
+        return true;
+    }
+
+    public ConnectionPoolStats getPoolStats() {
+        int leased = connManager.leased.get();
+        return connManager.waits.snapshot(leased, Math.max(0, connManager.getConnectionsInPool() - leased),
+                connManager.waits.getPending(), connManager.getParams().getMaxTotalConnections());
+    }
+
+    public void shutdown() {
+        if (eviction != null) {
+            ConnectionEvictor.cancel(eviction);
+        }
+        if (!shared) {
+            connManager.shutdown();
+        }
+    }
+
+    /**
+     * Static, so that the schedule does not keep the transport reachable.
+     */
+    private static class IdleEviction implements ConnectionEvictor.Eviction<MultiThreadedHttpConnectionManager> {
+        private final long idleTimeout;
+
+        IdleEviction(long idleTimeout) {
+            this.idleTimeout = idleTimeout;
+        }
+
+        public void evict(MultiThreadedHttpConnectionManager pool) {
+            pool.closeIdleConnections(idleTimeout);
+            pool.deleteClosedConnections();
+        }
+    }
+
+    /**
+     * Counts the connections handed out and the time requests wait for them.
+     */
+    private static class InstrumentedConnectionManager extends MultiThreadedHttpConnectionManager {
+        final AtomicInteger leased = new AtomicInteger();
+        final ConnectionWaitStats waits = new ConnectionWaitStats();
+
+        @Override
+        public HttpConnection getConnectionWithTimeout(HostConfiguration hostConfiguration, long timeout)
+                throws ConnectionPoolTimeoutException {
+            long start = waits.startWait();
+            try {
+                HttpConnection connection = super.getConnectionWithTimeout(hostConfiguration, timeout);
+                leased.incrementAndGet();
+                return connection;
+            } finally {
+                waits.endWait(start);
+            }
+        }
+
+        @Override
+        public void releaseConnection(HttpConnection conn) {
+            super.releaseConnection(conn);
+            leased.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Request entity that serialises its content straight into the connection's output stream,
+ * instead of rendering a String and then encoding that String to a byte array.
+ * <p>
+ * The content is either a single object or a list of array elements. Elements that are already
+ * JSON encoded Strings are written as they are. The length is not known in advance, so the
+ * request is sent with chunked transfer encoding. The entity can be written more than once,
+ * which allows the request to be retried.
+ * <p>
+ * LogEventVOs are written by {@link LogEventEncoder}, other objects by the mapper.
+ */
+public class JsonStreamRequestEntity implements RequestEntity {
+    private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+
+    private final ObjectMapper mapper;
+    private final Object content;
+    private final List<?> elements;
+
+    private JsonStreamRequestEntity(ObjectMapper mapper, Object content, List<?> elements) {
+        this.mapper = mapper;
+        this.content = content;
+        this.elements = elements;
+    }
+
+    /**
+     * @param mapper  serialises the object
+     * @param content the object to send
+     */
+    public static JsonStreamRequestEntity forObject(ObjectMapper mapper, Object content) {
+        return new JsonStreamRequestEntity(mapper, content, null);
+    }
+
+    /**
+     * @param mapper   serialises elements that are not already JSON encoded Strings
+     * @param elements the elements of the JSON array to send
+     */
+    public static JsonStreamRequestEntity forArray(ObjectMapper mapper, List<?> elements) {
+        return new JsonStreamRequestEntity(mapper, null, elements);
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public void writeRequest(OutputStream out) throws IOException {
+        if (elements != null ? canEncode(elements) : LogEventEncoder.canEncode(content)) {
+            if (elements != null) {
+                LogEventEncoder.writeArray(elements, out);
+            } else {
+                LogEventEncoder.write(content, out);
+            }
+            return;
+        }
+        JsonGenerator gen = mapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+        // the connection's stream is not ours to close
+        gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        if (elements != null) {
+            gen.writeStartArray();
+            for (Object element : elements) {
+                writeValue(gen, element);
+            }
+            gen.writeEndArray();
+        } else {
+            writeValue(gen, content);
+        }
+        gen.close();
+    }
+
+    private static boolean canEncode(List<?> elements) {
+        for (Object element : elements) {
+            if (!LogEventEncoder.canEncode(element)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeValue(JsonGenerator gen, Object value) throws IOException {
+        if (value instanceof String) {
+            gen.writeRawValue((String) value);
+        } else {
+            mapper.writeValue(gen, value);
+        }
+    }
+
+    public long getContentLength() {
+        return -1;
+    }
+
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+}
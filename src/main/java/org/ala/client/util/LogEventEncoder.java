@@ -0,0 +1,386 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.ala.client.model.LogEventVO;
+import org.ala.client.model.RecordCountMap;
+import org.ala.client.model.UidCache;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+
+/**
+ * Writes {@link LogEventVO}s as UTF-8 JSON without going through Jackson's reflective bean
+ * serialisation.
+ * <p>
+ * The output is the same as an ObjectMapper configured with {@code Inclusion.NON_NULL} produces:
+ * the properties in field declaration order, null properties left out, control characters escaped
+ * and everything else written as UTF-8. Events are encoded into a buffer taken from a small pool
+ * and given back for the next event, so encoding allocates next to nothing after warm-up. Unlike
+ * buffers held by the threads, the pool goes away with the class, eg: when a web application is
+ * redeployed while the threads of the container stay.
+ * recordCounts uids held by the {@link UidCache} are copied already encoded.
+ * <p>
+ * Subclasses of LogEventVO may have properties of their own, so they and any other objects are
+ * left to the {@link #getMapper() shared mapper}.
+ */
+public final class LogEventEncoder {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    //bytes collected before they are written to the output stream
+    private static final int FLUSH_SIZE = 8 * 1024;
+    //a buffer grown beyond this by a large event is not kept for the next one
+    private static final int MAX_RETAINED_SIZE = 64 * 1024;
+    //buffers kept for reuse, more concurrent encodings allocate their own
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(UTF_8);
+    //escape for each ASCII character: 0 none, -1 \\u00XX, else the character following the backslash
+    private static final byte[] ESCAPES = new byte[128];
+
+    static {
+        for (int c = 0; c < 0x20; c++) {
+            ESCAPES[c] = -1;
+        }
+        ESCAPES['"'] = '"';
+        ESCAPES['\\'] = '\\';
+        ESCAPES['\b'] = 'b';
+        ESCAPES['\t'] = 't';
+        ESCAPES['\n'] = 'n';
+        ESCAPES['\f'] = 'f';
+        ESCAPES['\r'] = 'r';
+    }
+
+    private static final byte[] COMMENT = name("{", "comment");
+    private static final byte[] FIRST_EVENT_TYPE_ID = name("{", "eventTypeId");
+    private static final byte[] EVENT_TYPE_ID = name(",", "eventTypeId");
+    private static final byte[] USER_IP = name(",", "userIP");
+    private static final byte[] USER_AGENT = name(",", "userAgent");
+    private static final byte[] RECORD_COUNTS = name(",", "recordCounts");
+    private static final byte[] USER_EMAIL = name(",", "userEmail");
+    private static final byte[] MONTH = name(",", "month");
+    private static final byte[] REASON_TYPE_ID = name(",", "reasonTypeId");
+    private static final byte[] SOURCE_TYPE_ID = name(",", "sourceTypeId");
+    private static final byte[] SOURCE_URL = name(",", "sourceUrl");
+    private static final byte[] NULL = "null".getBytes(UTF_8);
+    private static final byte[] MIN_INT = String.valueOf(Integer.MIN_VALUE).getBytes(UTF_8);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    static {
+        MAPPER.getSerializationConfig().setSerializationInclusion(JsonSerialize.Inclusion.NON_NULL);
+    }
+
+    private static final BlockingQueue<Buffer> POOL = new ArrayBlockingQueue<Buffer>(POOL_SIZE);
+
+    private LogEventEncoder() {
+    }
+
+    private static byte[] name(String separator, String name) {
+        return (separator + '"' + name + "\":").getBytes(UTF_8);
+    }
+
+    /**
+     * @return the mapper for values the encoder does not handle, configured to produce the same JSON
+     */
+    public static ObjectMapper getMapper() {
+        return MAPPER;
+    }
+
+    /**
+     * @return true if value is a String, which is written as it is, or a plain LogEventVO
+     */
+    public static boolean canEncode(Object value) {
+        return value instanceof String || (value != null && value.getClass() == LogEventVO.class);
+    }
+
+    /**
+     * @return the event as JSON
+     */
+    public static String toJson(LogEventVO event) throws IOException {
+        if (!canEncode(event)) {
+            return MAPPER.writeValueAsString(event);
+        }
+        Buffer buffer = Buffer.take();
+        try {
+            buffer.writeEvent(event);
+            return new String(buffer.bytes, 0, buffer.size, UTF_8);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Writes a value accepted by {@link #canEncode(Object)}.
+     */
+    public static void write(Object value, OutputStream out) throws IOException {
+        Buffer buffer = Buffer.take();
+        try {
+            buffer.writeValue(value);
+            buffer.flushTo(out);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Writes a JSON array of values accepted by {@link #canEncode(Object)}.
+     */
+    public static void writeArray(List<?> values, OutputStream out) throws IOException {
+        Buffer buffer = Buffer.take();
+        try {
+            buffer.write('[');
+            boolean first = true;
+            for (Object value : values) {
+                if (!first) {
+                    buffer.write(',');
+                }
+                first = false;
+                buffer.writeValue(value);
+                if (buffer.size >= FLUSH_SIZE) {
+                    buffer.flushTo(out);
+                }
+            }
+            buffer.write(']');
+            buffer.flushTo(out);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * Growable byte buffer, used by one thread between {@link #take()} and {@link #release()}.
+     */
+    private static final class Buffer {
+        private byte[] bytes = new byte[1024];
+        private int size;
+
+        static Buffer take() {
+            Buffer buffer = POOL.poll();
+            return buffer != null ? buffer : new Buffer();
+        }
+
+        void flushTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, size);
+            size = 0;
+        }
+
+        void release() {
+            size = 0;
+            if (bytes.length > MAX_RETAINED_SIZE) {
+                bytes = new byte[1024];
+            }
+            //dropped if the pool is full
+            POOL.offer(this);
+        }
+
+        void writeValue(Object value) throws IOException {
+            if (value instanceof String) {
+                writeRaw((String) value);
+            } else {
+                writeEvent((LogEventVO) value);
+            }
+        }
+
+        void writeEvent(LogEventVO event) throws IOException {
+            if (event.getComment() != null) {
+                write(COMMENT);
+                writeString(event.getComment());
+                write(EVENT_TYPE_ID);
+            } else {
+                write(FIRST_EVENT_TYPE_ID);
+            }
+            writeInt(event.getEventTypeId());
+            writeField(USER_IP, event.getUserIP());
+            writeField(USER_AGENT, event.getUserAgent());
+            Map<String, Integer> recordCounts = event.getRecordCounts();
+            if (recordCounts != null) {
+                write(RECORD_COUNTS);
+                writeRecordCounts(recordCounts);
+            }
+            writeField(USER_EMAIL, event.getUserEmail());
+            writeField(MONTH, event.getMonth());
+            writeField(REASON_TYPE_ID, event.getReasonTypeId());
+            writeField(SOURCE_TYPE_ID, event.getSourceTypeId());
+            writeField(SOURCE_URL, event.getSourceUrl());
+            write('}');
+        }
+
+        private void writeRecordCounts(Map<String, Integer> recordCounts) throws IOException {
+            write('{');
+            if (recordCounts instanceof RecordCountMap) {
+                RecordCountMap counts = (RecordCountMap) recordCounts;
+                for (int i = 0; i < counts.size(); i++) {
+                    if (i > 0) {
+                        write(',');
+                    }
+                    String uid = counts.keyAt(i);
+                    byte[] name = UidCache.getJsonName(uid);
+                    if (name != null) {
+                        write(name);
+                    } else {
+                        writeString(uid);
+                        write(':');
+                    }
+                    if (counts.isNullAt(i)) {
+                        write(NULL);
+                    } else {
+                        writeInt(counts.valueAt(i));
+                    }
+                }
+                write('}');
+                return;
+            }
+            boolean first = true;
+            for (Map.Entry<String, Integer> entry : recordCounts.entrySet()) {
+                if (entry.getKey() == null) {
+                    throw new IOException("Null key for a Map not allowed in JSON");
+                }
+                if (!first) {
+                    write(',');
+                }
+                first = false;
+                writeString(entry.getKey());
+                write(':');
+                if (entry.getValue() == null) {
+                    write(NULL);
+                } else {
+                    writeInt(entry.getValue());
+                }
+            }
+            write('}');
+        }
+
+        private void writeField(byte[] name, String value) throws IOException {
+            if (value != null) {
+                write(name);
+                writeString(value);
+            }
+        }
+
+        private void writeField(byte[] name, Integer value) {
+            if (value != null) {
+                write(name);
+                writeInt(value);
+            }
+        }
+
+        private void writeString(String s) throws IOException {
+            write('"');
+            writeChars(s, true);
+            write('"');
+        }
+
+        /**
+         * Writes an already JSON encoded String.
+         */
+        private void writeRaw(String json) throws IOException {
+            writeChars(json, false);
+        }
+
+        private void writeChars(String s, boolean escape) throws IOException {
+            int length = s.length();
+            //worst case is 6 bytes per char, for \\u00XX
+            ensureCapacity(size + length * (escape ? 6 : 3));
+            byte[] b = bytes;
+            int pos = size;
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    byte e = escape ? ESCAPES[c] : 0;
+                    if (e == 0) {
+                        b[pos++] = (byte) c;
+                    } else if (e > 0) {
+                        b[pos++] = '\\';
+                        b[pos++] = e;
+                    } else {
+                        b[pos++] = '\\';
+                        b[pos++] = 'u';
+                        b[pos++] = '0';
+                        b[pos++] = '0';
+                        b[pos++] = HEX[c >> 4];
+                        b[pos++] = HEX[c & 0xF];
+                    }
+                } else if (c < 0x800) {
+                    b[pos++] = (byte) (0xC0 | (c >> 6));
+                    b[pos++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    if (!Character.isHighSurrogate(c) || i + 1 >= length || !Character.isLowSurrogate(s.charAt(i + 1))) {
+                        throw new IOException("Broken surrogate pair at index " + i);
+                    }
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    b[pos++] = (byte) (0xF0 | (cp >> 18));
+                    b[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    b[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    b[pos++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    b[pos++] = (byte) (0xE0 | (c >> 12));
+                    b[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    b[pos++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            size = pos;
+        }
+
+        private void writeInt(int value) {
+            if (value == Integer.MIN_VALUE) {
+                write(MIN_INT);
+                return;
+            }
+            ensureCapacity(size + 11);
+            if (value < 0) {
+                bytes[size++] = '-';
+                value = -value;
+            }
+            int digits = 1;
+            for (int v = value; v >= 10; v /= 10) {
+                digits++;
+            }
+            int pos = size + digits;
+            size = pos;
+            do {
+                bytes[--pos] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+        }
+
+        void write(int b) {
+            ensureCapacity(size + 1);
+            bytes[size++] = (byte) b;
+        }
+
+        private void write(byte[] b) {
+            ensureCapacity(size + b.length);
+            System.arraycopy(b, 0, bytes, size, b.length);
+            size += b.length;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) {
+                byte[] grown = new byte[Math.max(capacity, bytes.length * 2)];
+                System.arraycopy(bytes, 0, grown, 0, size);
+                bytes = grown;
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+import java.io.IOException;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * Checks that a JSON string is a valid {@link org.ala.client.model.LogEventVO} without binding it to an object.
+ * <p>
+ * The parser walks the tokens once and checks the known fields have the types the VO would accept;
+ * unknown fields are skipped, as they are ignored when the VO is deserialised.
+ */
+public class LogEventJsonValidator {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private LogEventJsonValidator() {
+    }
+
+    /**
+     * @param json the message to check
+     * @throws JsonParseException if the message is not a JSON object or a known field has the wrong type
+     * @throws IOException        if the message cannot be read
+     */
+    public static void validate(String json) throws IOException {
+        JsonParser jp = JSON_FACTORY.createJsonParser(json);
+        try {
+            if (jp.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("Log event must be a JSON object", jp.getCurrentLocation());
+            }
+            while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                String field = jp.getCurrentName();
+                JsonToken token = jp.nextToken();
+                if ("eventTypeId".equals(field) || "reasonTypeId".equals(field) || "sourceTypeId".equals(field)) {
+                    checkInt(jp, token, field);
+                } else if ("recordCounts".equals(field) || "recordCount".equals(field)) {
+                    checkRecordCounts(jp, token);
+                } else if ("comment".equals(field) || "userIP".equals(field) || "userAgent".equals(field)
+                        || "userEmail".equals(field) || "month".equals(field) || "sourceUrl".equals(field)) {
+                    if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                        throw new JsonParseException("Field '" + field + "' must be a string", jp.getCurrentLocation());
+                    }
+                } else {
+                    jp.skipChildren();
+                }
+            }
+            if (jp.getCurrentToken() != JsonToken.END_OBJECT) {
+                throw new JsonParseException("Unexpected end of log event", jp.getCurrentLocation());
+            }
+        } finally {
+            jp.close();
+        }
+    }
+
+    /**
+     * Reads the event type id of a message without binding or checking the rest of it.
+     *
+     * @return the eventTypeId of the message, or -1 if it has none or is not a JSON object
+     */
+    public static int getEventTypeId(String json) {
+        try {
+            JsonParser jp = JSON_FACTORY.createJsonParser(json);
+            try {
+                if (jp.nextToken() != JsonToken.START_OBJECT) {
+                    return -1;
+                }
+                while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = jp.getCurrentName();
+                    JsonToken token = jp.nextToken();
+                    if ("eventTypeId".equals(field)) {
+                        if (token == JsonToken.VALUE_NUMBER_INT) {
+                            return jp.getIntValue();
+                        }
+                        // the VO accepts numbers written as strings
+                        return token == JsonToken.VALUE_STRING ? Integer.parseInt(jp.getText().trim()) : -1;
+                    }
+                    jp.skipChildren();
+                }
+                return -1;
+            } finally {
+                jp.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void checkRecordCounts(JsonParser jp, JsonToken token) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return;
+        }
+        if (token != JsonToken.START_OBJECT) {
+            throw new JsonParseException("Field 'recordCounts' must be an object", jp.getCurrentLocation());
+        }
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            checkInt(jp, jp.nextToken(), jp.getCurrentName());
+        }
+    }
+
+    private static void checkInt(JsonParser jp, JsonToken token, String field) throws IOException {
+        if (token == null) {
+            throw new JsonParseException("Unexpected end of log event", jp.getCurrentLocation());
+        }
+        switch (token) {
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+            case VALUE_NULL:
+                return;
+            case VALUE_STRING:
+                // the VO accepts numbers written as strings
+                try {
+                    Integer.parseInt(jp.getText().trim());
+                    return;
+                } catch (NumberFormatException e) {
+                    break;
+                }
+            default:
+                break;
+        }
+        throw new JsonParseException("Field '" + field + "' must be an integer", jp.getCurrentLocation());
+    }
+}
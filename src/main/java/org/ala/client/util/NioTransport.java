@@ -0,0 +1,285 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Non-blocking {@link Transport} on Apache HttpAsyncClient.
+ * <p>
+ * A few I/O threads multiplex all requests over keep-alive connections, so a caller can have many
+ * requests in flight without holding a thread for each. The request body is rendered on the calling
+ * thread before the request is handed to the I/O threads.
+ */
+public class NioTransport implements Transport {
+    public static final int DEFAULT_IO_THREADS = 2;
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ala-logger-nio-" + THREAD_COUNT.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private final CloseableHttpAsyncClient client;
+    private final InstrumentedConnectionManager connManager;
+    private final RequestConfig requestConfig;
+    private final int timeout;
+    private final ScheduledFuture<?> eviction;
+
+    /**
+     * @param timeout        socket read timeout in millisecond, 0 is no timeout
+     * @param connectTimeout timeout in millisecond to establish a connection, 0 is no timeout
+     */
+    public NioTransport(int timeout, int connectTimeout) throws IOException {
+        this(timeout, connectTimeout, new ConnectionPoolConfig());
+    }
+
+    /**
+     * @param timeout        socket read timeout in millisecond, 0 is no timeout
+     * @param connectTimeout timeout in millisecond to establish a connection, 0 is no timeout
+     * @param pool           limits of the connection pool
+     */
+    public NioTransport(int timeout, int connectTimeout, ConnectionPoolConfig pool) throws IOException {
+        this(timeout, connectTimeout, pool, DEFAULT_IO_THREADS);
+    }
+
+    /**
+     * @param timeout        socket read timeout in millisecond, 0 is no timeout
+     * @param connectTimeout timeout in millisecond to establish a connection, 0 is no timeout
+     * @param pool           limits of the connection pool
+     * @param ioThreads      number of threads doing the network I/O
+     */
+    public NioTransport(int timeout, int connectTimeout, ConnectionPoolConfig pool, int ioThreads) throws IOException {
+        this.timeout = timeout;
+        requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(timeout)
+                .build();
+        DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                .setIoThreadCount(Math.max(1, ioThreads))
+                .setConnectTimeout(connectTimeout)
+                .setSoTimeout(timeout)
+                .setSoKeepAlive(true)
+                .build(), THREAD_FACTORY);
+        connManager = new InstrumentedConnectionManager(ioReactor);
+        connManager.setDefaultMaxPerRoute(pool.getMaxConnectionsPerHost());
+        connManager.setMaxTotal(pool.getMaxTotalConnections());
+        client = HttpAsyncClients.custom()
+                .setConnectionManager(connManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setThreadFactory(THREAD_FACTORY)
+                .build();
+        client.start();
+
+        if (pool.getIdleTimeout() > 0) {
+            eviction = ConnectionEvictor.schedule(connManager, new IdleEviction(pool.getIdleTimeout()), pool.getEvictionInterval());
+        } else {
+            eviction = null;
+        }
+    }
+
+    public CompletableFuture<Object[]> post(String url, RequestEntity entity, Map<String, String> headers, long timeout) {
+        CompletableFuture<Object[]> result = new CompletableFuture<Object[]>();
+        HttpPost post = new HttpPost(url);
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            entity.writeRequest(body);
+            ContentType contentType = entity.getContentType() != null
+                    ? ContentType.parse(entity.getContentType())
+                    : ContentType.DEFAULT_BINARY;
+            post.setEntity(new NByteArrayEntity(body.toByteArray(), contentType));
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        } catch (RuntimeException e) {
+            result.completeExceptionally(new IOException("Could not write request to " + url, e));
+            return result;
+        }
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            post.setHeader(entry.getKey(), entry.getValue());
+        }
+        if (timeout > 0 && (this.timeout <= 0 || timeout < this.timeout)) {
+            //don't wait on the response beyond the deadline
+            post.setConfig(RequestConfig.copy(requestConfig)
+                    .setSocketTimeout((int) Math.min(Integer.MAX_VALUE, timeout))
+                    .build());
+        }
+        execute(post, HttpStatus.SC_OK, result);
+        return result;
+    }
+
+    public Object[] get(String url, Map<String, String> headers) throws IOException {
+        HttpGet get = new HttpGet(url);
+        if (headers != null) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                get.setHeader(entry.getKey(), entry.getValue());
+            }
+        }
+        CompletableFuture<Object[]> result = new CompletableFuture<Object[]>();
+        execute(get, -1, result);
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            get.abort();
+            throw new InterruptedIOException("Interrupted while waiting for " + url);
+        } catch (ExecutionException e) {
+            throw (IOException) e.getCause();
+        }
+    }
+
+    /**
+     * @param readBodyStatus the status for which the response body is read, -1 for all
+     */
+    private void execute(HttpRequestBase request, final int readBodyStatus, final CompletableFuture<Object[]> result) {
+        final String url = request.getURI().toString();
+        client.execute(request, new FutureCallback<HttpResponse>() {
+            public void completed(HttpResponse response) {
+                int statusCode = response.getStatusLine().getStatusCode();
+                String resp = null;
+                try {
+                    HttpEntity entity = response.getEntity();
+                    if (entity != null && (readBodyStatus < 0 || statusCode == readBodyStatus)) {
+                        resp = EntityUtils.toString(entity, "UTF-8");
+                    }
+                } catch (IOException e) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+                result.complete(new Object[]{statusCode, resp});
+            }
+
+            public void failed(Exception e) {
+                result.completeExceptionally(e instanceof IOException ? e : new IOException("Request to " + url + " failed", e));
+            }
+
+            public void cancelled() {
+                result.completeExceptionally(new InterruptedIOException("Request to " + url + " was cancelled"));
+            }
+        });
+    }
+
+    public boolean isBlocking() {
+        return false;
+    }
+
+    public ConnectionPoolStats getPoolStats() {
+        PoolStats stats = connManager.getTotalStats();
+        return connManager.waits.snapshot(stats.getLeased(), stats.getAvailable(), stats.getPending(), stats.getMax());
+    }
+
+    public void shutdown() {
+        if (eviction != null) {
+            ConnectionEvictor.cancel(eviction);
+        }
+        try {
+            client.close();
+        } catch (IOException e) {
+            LogLog.warn("Could not close HTTP connections", e);
+        }
+    }
+
+    /**
+     * Static, so that the schedule does not keep the transport reachable.
+     */
+    private static class IdleEviction implements ConnectionEvictor.Eviction<PoolingNHttpClientConnectionManager> {
+        private final long idleTimeout;
+
+        IdleEviction(long idleTimeout) {
+            this.idleTimeout = idleTimeout;
+        }
+
+        public void evict(PoolingNHttpClientConnectionManager pool) {
+            pool.closeExpiredConnections();
+            pool.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Measures the time requests wait for a connection, including the time to open a new one.
+     */
+    private static class InstrumentedConnectionManager extends PoolingNHttpClientConnectionManager {
+        final ConnectionWaitStats waits = new ConnectionWaitStats();
+
+        InstrumentedConnectionManager(DefaultConnectingIOReactor ioReactor) {
+            super(ioReactor);
+        }
+
+        @Override
+        public Future<NHttpClientConnection> requestConnection(HttpRoute route, Object state, long connectTimeout,
+                                                               long leaseTimeout, TimeUnit tunit,
+                                                               final FutureCallback<NHttpClientConnection> callback) {
+            final long start = waits.startWait();
+            return super.requestConnection(route, state, connectTimeout, leaseTimeout, tunit, new FutureCallback<NHttpClientConnection>() {
+                public void completed(NHttpClientConnection connection) {
+                    waits.endWait(start);
+                    if (callback != null) {
+                        callback.completed(connection);
+                    }
+                }
+
+                public void failed(Exception e) {
+                    waits.endWait(start);
+                    if (callback != null) {
+                        callback.failed(e);
+                    }
+                }
+
+                public void cancelled() {
+                    waits.endWait(start);
+                    if (callback != null) {
+                        callback.cancelled();
+                    }
+                }
+            });
+        }
+    }
+}
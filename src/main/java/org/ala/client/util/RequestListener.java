@@ -0,0 +1,37 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+/**
+ * Told about every POST of a {@link RestfulClient} once it completes, including its retries.
+ * Called on the thread that completed the request, so implementations must be quick and thread safe.
+ */
+public interface RequestListener {
+
+    /**
+     * @param statusCode   the status of the last attempt
+     * @param latencyNanos time from the start of the first attempt to the response of the last
+     * @param bytesSent    request body bytes written by all attempts, after compression
+     */
+    void requestCompleted(int statusCode, long latencyNanos, long bytesSent);
+
+    /**
+     * @param cause        why the last attempt failed
+     * @param latencyNanos time from the start of the first attempt to the failure of the last
+     * @param bytesSent    request body bytes written by all attempts, after compression
+     */
+    void requestFailed(Throwable cause, long latencyNanos, long bytesSent);
+}
@@ -16,46 +16,209 @@
 package org.ala.client.util;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.ala.client.model.LogEventVO;
 
 import org.apache.commons.httpclient.*;
-import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.ByteArrayRequestEntity;
 import org.apache.commons.httpclient.methods.RequestEntity;
 import org.apache.commons.httpclient.methods.StringRequestEntity;
 import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.map.annotate.JsonSerialize;
 
 /**
  * Restful Web Service Client.
+ * <p>
+ * POST requests are retried with jittered exponential backoff on connection errors, 5xx and 429
+ * responses, within an optional overall deadline. An optional {@link CircuitBreaker} makes requests
+ * fail fast with a {@link CircuitOpenException} while the service keeps failing. Request bodies
+ * can be gzip compressed once they reach a size threshold.
+ * <p>
+ * Requests are sent by a {@link Transport}, by default the blocking {@link HttpClientTransport}.
+ * With a non-blocking transport such as {@link NioTransport} the {@code restPostAsync} methods
+ * keep many requests in flight from a single thread.
  *
  * @author MOK011
  */
 public class RestfulClient {
-    private static MultiThreadedHttpConnectionManager connManager = new MultiThreadedHttpConnectionManager();
     private static final String JSON_MIME_TYPE = "application/json";
     private static final String ENCODE_TYPE = "utf-8";
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final String CONTENT_ENCODING_HEADER = "Content-Encoding";
+    //waits out the backoff of asynchronous retries, which are then sent without blocking
+    static final SharedScheduler RETRY_TIMER = new SharedScheduler("ala-logger-retry");
+    private final Transport transport;
+    //guarded by this, whether the client holds the retry timer, which it does from its first retry to its shutdown
+    private boolean retryTimerRetained;
+    private boolean shutdown;
     private ObjectMapper serMapper;
-    private HttpClient client;
 
     //client connection timeout.
     public int timeout;
 
+    //number of times a failed POST is repeated.
+    private int maxRetries = 0;
+    //millisecond base and cap of the backoff between retries.
+    private long retryBackoff = 100;
+    private long maxRetryBackoff = 5000;
+    //millisecond a POST may take including retries, 0 is unbounded.
+    private long deadline = 0;
+    private CircuitBreaker circuitBreaker;
+    //bytes from which request bodies are gzip compressed, 0 disables compression.
+    private int compressionThreshold = 0;
+    //bounds the asynchronous POSTs in flight, null is unbounded.
+    private Semaphore inFlight;
+    private int maxInFlight;
+    private RequestListener requestListener;
+
     public RestfulClient() {
         //default is no timeout.
         this(0);
     }
 
     public RestfulClient(int timeout) {
-        super();
+        this(timeout, 0);
+    }
+
+    /**
+     * @param timeout        socket read timeout in millisecond, 0 is no timeout
+     * @param connectTimeout timeout in millisecond to establish a connection, 0 is no timeout
+     */
+    public RestfulClient(int timeout, int connectTimeout) {
+        //shares a pool, as these clients are seldom shut down
+        this(HttpClientTransport.shared(timeout, connectTimeout));
         this.timeout = timeout;
-        //create the client to call the logger REST api
-        client = new HttpClient(connManager);
-        //set connection timeout
-        client.getParams().setSoTimeout(timeout);
+    }
+
+    /**
+     * @param transport sends the requests of this client
+     */
+    public RestfulClient(Transport transport) {
+        super();
+        this.transport = transport;
+        serMapper = LogEventEncoder.getMapper();
+    }
+
+    /**
+     * @param maxRetries      number of times a POST is repeated after a connection error, 5xx or 429 response
+     * @param retryBackoff    millisecond base of the exponential backoff between retries
+     * @param maxRetryBackoff millisecond cap of the backoff between retries
+     */
+    public void setRetryPolicy(int maxRetries, long retryBackoff, long maxRetryBackoff) {
+        this.maxRetries = Math.max(0, maxRetries);
+        this.retryBackoff = Math.max(1, retryBackoff);
+        this.maxRetryBackoff = Math.max(this.retryBackoff, maxRetryBackoff);
+    }
+
+    /**
+     * @param deadline millisecond a POST may take including retries, 0 is unbounded
+     */
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
 
-        serMapper = new ObjectMapper();
-        serMapper.getSerializationConfig().setSerializationInclusion(JsonSerialize.Inclusion.NON_NULL);
+    /**
+     * @param compressionThreshold size in bytes from which request bodies are sent gzip compressed, 0 disables compression
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * @param maxInFlight number of asynchronous POSTs that may be in flight before {@code restPostAsync} blocks, 0 is unbounded
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        this.inFlight = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+    }
+
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return the current state of the transport's connection pool
+     */
+    public ConnectionPoolStats getPoolStats() {
+        return transport.getPoolStats();
+    }
+
+    /**
+     * @return true if the transport is non-blocking, so that {@code restPostAsync} returns before the request completes
+     */
+    public boolean isAsync() {
+        return !transport.isBlocking();
+    }
+
+    /**
+     * @return the number of asynchronous POSTs in flight
+     */
+    public int getInFlightCount() {
+        Semaphore permits = inFlight;
+        return permits != null ? maxInFlight - permits.availablePermits() : 0;
+    }
+
+    /**
+     * @param requestListener told about the outcome of every POST, eg: to collect metrics
+     */
+    public void setRequestListener(RequestListener requestListener) {
+        this.requestListener = requestListener;
+    }
+
+    /**
+     * Waits for the asynchronous POSTs in flight to complete.
+     *
+     * @param timeout millisecond to wait
+     * @return false if requests were still in flight at the timeout, or their number is not bounded
+     */
+    public boolean awaitInFlight(long timeout) throws InterruptedException {
+        Semaphore permits = inFlight;
+        if (permits == null) {
+            return false;
+        }
+        if (permits.tryAcquire(maxInFlight, timeout, TimeUnit.MILLISECONDS)) {
+            permits.release(maxInFlight);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Releases the pooled connections of this client.
+     */
+    public void shutdown() {
+        transport.shutdown();
+        synchronized (this) {
+            if (!shutdown && retryTimerRetained) {
+                RETRY_TIMER.release();
+            }
+            shutdown = true;
+        }
+    }
+
+    /**
+     * @return true for responses that mean the service is unavailable rather than the request is invalid
+     */
+    public static boolean isRetryableStatus(int statusCode) {
+        return statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR || statusCode == SC_TOO_MANY_REQUESTS;
     }
 
     /**
@@ -72,31 +235,372 @@ public class RestfulClient {
     public Object[] restPost(String url, String contentType, String jsonRequestBody, Map<String, String> headers)
             throws HttpException,
             IOException {
-        PostMethod post = null;
-        String resp = null;
-        int statusCode = 0;
+        return restPost(url, new StringRequestEntity(jsonRequestBody, contentType, ENCODE_TYPE), headers);
+    }
+
+    /**
+     * Makes a POST request to the specified URL and streams the provided event into the request body as JSON.
+     *
+     * @param url     URL Endpoint
+     * @param event   the event to post to URL
+     * @param headers Name/Value pairs of HTTP Request Headers to be set on the request
+     * @return [0]: status code; [1]: a JSON encoded response
+     * @throws IOException
+     * @throws HttpException
+     */
+    public Object[] restPost(String url, LogEventVO event, Map<String, String> headers) throws HttpException, IOException {
+        return restPost(url, JsonStreamRequestEntity.forObject(serMapper, event), headers);
+    }
+
+    private Object[] restPost(String url, RequestEntity entity, Map<String, String> headers)
+            throws HttpException,
+            IOException {
+        entity = compressIfLarge(entity);
+        headers = withContentEncoding(entity, headers);
+        RequestListener listener = requestListener;
+        if (listener == null) {
+            return restPostWithRetries(url, entity, headers);
+        }
+
+        CountingRequestEntity counted = new CountingRequestEntity(entity);
+        long start = System.nanoTime();
+        try {
+            Object[] result = restPostWithRetries(url, counted, headers);
+            listener.requestCompleted((Integer) result[0], System.nanoTime() - start, counted.getCount());
+            return result;
+        } catch (IOException e) {
+            listener.requestFailed(e, System.nanoTime() - start, counted.getCount());
+            throw e;
+        } catch (RuntimeException e) {
+            listener.requestFailed(e, System.nanoTime() - start, counted.getCount());
+            throw e;
+        }
+    }
+
+    private Object[] restPostWithRetries(String url, RequestEntity entity, Map<String, String> headers)
+            throws HttpException,
+            IOException {
+        long start = System.currentTimeMillis();
+        for (int attempt = 0; ; attempt++) {
+            if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+                throw new CircuitOpenException(url);
+            }
+
+            Object[] result;
+            try {
+                result = await(transport.post(url, entity, headers, remainingTime(start)));
+            } catch (IOException e) {
+                if (circuitBreaker != null) {
+                    circuitBreaker.recordFailure();
+                }
+                if (!backoff(attempt, start)) {
+                    throw e;
+                }
+                continue;
+            } catch (RuntimeException e) {
+                //eg: a malformed URL, the breaker must not stay half-open waiting for this probe
+                if (circuitBreaker != null) {
+                    circuitBreaker.recordFailure();
+                }
+                throw e;
+            }
+
+            int statusCode = (Integer) result[0];
+            if (!isRetryableStatus(statusCode)) {
+                if (circuitBreaker != null) {
+                    circuitBreaker.recordSuccess();
+                }
+                return result;
+            }
+            if (circuitBreaker != null) {
+                circuitBreaker.recordFailure();
+            }
+            if (!backoff(attempt, start)) {
+                return result;
+            }
+        }
+    }
 
+    /**
+     * Makes a POST request to the specified URL without waiting for the response if the transport is non-blocking.
+     * Retries are scheduled after their backoff rather than slept on. Blocks while the maximum number of
+     * requests is in flight.
+     *
+     * @param url     URL Endpoint
+     * @param event   a LogEventVO, or a JSON encoded String
+     * @param headers Name/Value pairs of HTTP Request Headers to be set on the request
+     * @return completes with [0]: status code; [1]: a JSON encoded response, or exceptionally with an IOException
+     */
+    public CompletableFuture<Object[]> restPostAsync(String url, Object event, Map<String, String> headers) {
+        if (event instanceof String) {
+            try {
+                return restPostAsync(url, new StringRequestEntity((String) event, JSON_MIME_TYPE, ENCODE_TYPE), headers);
+            } catch (IOException e) {
+                return failed(e);
+            }
+        }
+        return restPostAsync(url, JsonStreamRequestEntity.forObject(serMapper, event), headers);
+    }
+
+    /**
+     * Makes a single POST request streaming the events into a JSON array, see {@link #restPostAsync(String, Object, Map)}.
+     *
+     * @param url     URL Endpoint
+     * @param events  the array elements, either already JSON encoded Strings or objects to serialise
+     * @param headers Name/Value pairs of HTTP Request Headers to be set on the request
+     * @return completes with [0]: status code; [1]: a JSON encoded response, or exceptionally with an IOException
+     */
+    public CompletableFuture<Object[]> restPostBatchAsync(String url, List<?> events, Map<String, String> headers) {
+        return restPostAsync(url, JsonStreamRequestEntity.forArray(serMapper, events), headers);
+    }
+
+    private CompletableFuture<Object[]> restPostAsync(String url, RequestEntity entity, Map<String, String> headers) {
+        final Semaphore permits = inFlight;
+        if (permits != null) {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return failed(new InterruptedIOException("Interrupted while waiting to POST"));
+            }
+        }
+        CompletableFuture<Object[]> result = new CompletableFuture<Object[]>();
+        if (permits != null) {
+            result.whenComplete(new BiConsumer<Object[], Throwable>() {
+                public void accept(Object[] r, Throwable e) {
+                    permits.release();
+                }
+            });
+        }
         try {
-            post = new PostMethod(url);
+            entity = compressIfLarge(entity);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        headers = withContentEncoding(entity, headers);
+        final RequestListener listener = requestListener;
+        if (listener != null) {
+            final CountingRequestEntity counted = new CountingRequestEntity(entity);
+            final long start = System.nanoTime();
+            result.whenComplete(new BiConsumer<Object[], Throwable>() {
+                public void accept(Object[] r, Throwable e) {
+                    if (e != null) {
+                        listener.requestFailed(e, System.nanoTime() - start, counted.getCount());
+                    } else {
+                        listener.requestCompleted((Integer) r[0], System.nanoTime() - start, counted.getCount());
+                    }
+                }
+            });
+            entity = counted;
+        }
+        attemptAsync(url, entity, headers, 0, System.currentTimeMillis(), result);
+        return result;
+    }
 
-            for (Map.Entry<String, String> entry : headers.entrySet()) {
-                post.setRequestHeader(new Header(entry.getKey(), entry.getValue()));
+    private void attemptAsync(final String url, final RequestEntity entity, final Map<String, String> headers,
+                              final int attempt, final long start, final CompletableFuture<Object[]> result) {
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            result.completeExceptionally(new CircuitOpenException(url));
+            return;
+        }
+        CompletableFuture<Object[]> post;
+        try {
+            post = transport.post(url, entity, headers, remainingTime(start));
+        } catch (RuntimeException e) {
+            //eg: a malformed URL, the breaker must not stay half-open waiting for this probe
+            if (circuitBreaker != null) {
+                circuitBreaker.recordFailure();
             }
+            result.completeExceptionally(e);
+            return;
+        }
+        post.whenComplete(new BiConsumer<Object[], Throwable>() {
+            public void accept(Object[] r, Throwable e) {
+                boolean failed = e != null || isRetryableStatus((Integer) r[0]);
+                if (circuitBreaker != null) {
+                    if (failed) {
+                        circuitBreaker.recordFailure();
+                    } else {
+                        circuitBreaker.recordSuccess();
+                    }
+                }
+                long delay = failed ? backoffDelay(attempt, start) : -1;
+                if (delay < 0) {
+                    if (e != null) {
+                        result.completeExceptionally(asIOException(e));
+                    } else {
+                        result.complete(r);
+                    }
+                    return;
+                }
+                try {
+                    scheduleRetry(new Runnable() {
+                        public void run() {
+                            attemptAsync(url, entity, headers, attempt + 1, start, result);
+                        }
+                    }, delay);
+                } catch (RejectedExecutionException shutDown) {
+                    //the client was shut down, the last attempt is the result
+                    if (e != null) {
+                        result.completeExceptionally(asIOException(e));
+                    } else {
+                        result.complete(r);
+                    }
+                }
+            }
+        });
+    }
+
+    private synchronized void scheduleRetry(Runnable retry, long delay) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Client was shut down");
+        }
+        if (!retryTimerRetained) {
+            RETRY_TIMER.retain();
+            retryTimerRetained = true;
+        }
+        RETRY_TIMER.schedule(retry, delay);
+    }
+
+    private static CompletableFuture<Object[]> failed(IOException e) {
+        CompletableFuture<Object[]> result = new CompletableFuture<Object[]>();
+        result.completeExceptionally(e);
+        return result;
+    }
+
+    private static Object[] await(CompletableFuture<Object[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new InterruptedIOException("Interrupted while waiting for the response to a POST");
+        } catch (ExecutionException e) {
+            throw asIOException(e.getCause());
+        }
+    }
+
+    private static IOException asIOException(Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e instanceof IOException ? (IOException) e : new IOException(e);
+    }
 
-            RequestEntity entity = new StringRequestEntity(jsonRequestBody, contentType, ENCODE_TYPE);
-            post.setRequestEntity(entity);
+    private static Map<String, String> withContentEncoding(RequestEntity entity, Map<String, String> headers) {
+        if (!(entity instanceof GzipRequestEntity)) {
+            return headers;
+        }
+        Map<String, String> encoded = new HashMap<String, String>(headers);
+        encoded.put(CONTENT_ENCODING_HEADER, GzipRequestEntity.CONTENT_ENCODING);
+        return encoded;
+    }
 
-            statusCode = client.executeMethod(post);
-            if (statusCode == HttpStatus.SC_OK) {
-                resp = post.getResponseBodyAsString();
+    /**
+     * Wraps the entity in a {@link GzipRequestEntity} if its body reaches the compression threshold.
+     * <p>
+     * The length of a streamed body is only known once it has been written, so it is first written into
+     * a buffer that gives up at the threshold. Small bodies are then sent from that buffer as they are,
+     * larger ones are streamed again through the compressor.
+     */
+    private RequestEntity compressIfLarge(RequestEntity entity) throws IOException {
+        if (compressionThreshold <= 0) {
+            return entity;
+        }
+        long length = entity.getContentLength();
+        if (length >= 0) {
+            return length >= compressionThreshold ? new GzipRequestEntity(entity) : entity;
+        }
+        ThresholdBuffer buffer = new ThresholdBuffer(compressionThreshold);
+        try {
+            entity.writeRequest(buffer);
+        } catch (ThresholdExceededException e) {
+            return new GzipRequestEntity(entity);
+        }
+        return new ByteArrayRequestEntity(buffer.toByteArray(), entity.getContentType());
+    }
+
+    private static class ThresholdExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Buffer that throws a {@link ThresholdExceededException} rather than grow to the threshold.
+     */
+    private static class ThresholdBuffer extends OutputStream {
+        private final byte[] buf;
+        private int count;
+
+        ThresholdBuffer(int threshold) {
+            buf = new byte[threshold - 1];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buf.length) {
+                throw new ThresholdExceededException();
             }
-        } finally {
-            if (post != null) {
-                post.releaseConnection();
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > buf.length - count) {
+                throw new ThresholdExceededException();
             }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, count);
+        }
+    }
+
+    /**
+     * @return millisecond left before the deadline, or 0 if there is no deadline
+     */
+    private long remainingTime(long start) {
+        if (deadline <= 0) {
+            return 0;
+        }
+        return Math.max(1, deadline - (System.currentTimeMillis() - start));
+    }
+
+    /**
+     * Sleeps before the next attempt, using "full jitter" so that clients do not retry in step.
+     *
+     * @return false if there are no retries left or the next attempt would start after the deadline
+     */
+    private boolean backoff(int attempt, long start) throws InterruptedIOException {
+        long sleep = backoffDelay(attempt, start);
+        if (sleep < 0) {
+            return false;
+        }
+        try {
+            Thread.sleep(sleep);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry POST");
+        }
+        return true;
+    }
+
+    /**
+     * @return millisecond to wait before the next attempt, or -1 if there are no retries left or the next attempt
+     * would start after the deadline
+     */
+    private long backoffDelay(int attempt, long start) {
+        if (attempt >= maxRetries) {
+            return -1;
         }
-        Object[] o = new Object[]{statusCode, resp};
-        return o;
+        long cap = Math.min(maxRetryBackoff, retryBackoff << Math.min(attempt, 20));
+        long sleep = ThreadLocalRandom.current().nextLong(cap + 1);
+        if (deadline > 0 && System.currentTimeMillis() - start + sleep >= deadline) {
+            return -1;
+        }
+        return sleep;
     }
 
     /**
@@ -127,6 +631,20 @@ public class RestfulClient {
         return this.restPost(url, mimeType, serMapper.writeValueAsString(object.toArray()), headers);
     }
 
+    /**
+     * Makes a single POST request to the specified URL, streaming the provided events into a JSON array.
+     *
+     * @param url     URL Endpoint
+     * @param events  the array elements, either already JSON encoded Strings or objects to serialise
+     * @param headers Name/Value pairs of HTTP Request Headers to be set on the request
+     * @return [0]: status code; [1]: a JSON encoded response
+     * @throws IOException
+     * @throws HttpException
+     */
+    public Object[] restPostBatch(String url, List<?> events, Map<String, String> headers) throws HttpException, IOException {
+        return restPost(url, JsonStreamRequestEntity.forArray(serMapper, events), headers);
+    }
+
     /**
      * Makes a GET request to the specified url.
      *
@@ -150,28 +668,6 @@ public class RestfulClient {
      * @throws HttpException
      */
     public Object[] restGet(String url, Map<String, String> header) throws HttpException, IOException {
-        GetMethod get = null;
-        String resp = "";
-        int statusCode = 0;
-
-        try {
-            get = new GetMethod(url);
-            if (header != null && !header.isEmpty()) {
-                Set<String> keys = header.keySet();
-                Iterator<String> it = keys.iterator();
-                while (it.hasNext()) {
-                    String key = it.next();
-                    get.setRequestHeader(key, header.get(key));
-                }
-            }
-            statusCode = client.executeMethod(get);
-            resp = get.getResponseBodyAsString();
-        } finally {
-            if (get != null) {
-                get.releaseConnection();
-            }
-        }
-        Object[] o = new Object[]{statusCode, resp};
-        return o;
+        return transport.get(url, header);
     }
 }
@@ -0,0 +1,87 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A background thread shared by the clients and transports of all appenders.
+ * <p>
+ * The thread is started by the first task and stopped once the last user has released it, so
+ * nothing is left running when a web application is undeployed.
+ */
+class SharedScheduler {
+    private final String threadName;
+    private ScheduledThreadPoolExecutor executor;
+    private int users;
+
+    SharedScheduler(String threadName) {
+        this.threadName = threadName;
+    }
+
+    synchronized void retain() {
+        users++;
+    }
+
+    /**
+     * Stops the thread when this was the last user.
+     */
+    synchronized void release() {
+        if (users > 0 && --users == 0 && executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * @throws RejectedExecutionException if there is no user
+     */
+    synchronized ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return executor().schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @throws RejectedExecutionException if there is no user
+     */
+    synchronized ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long interval) {
+        return executor().scheduleWithFixedDelay(task, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    private ScheduledThreadPoolExecutor executor() {
+        if (users == 0) {
+            throw new RejectedExecutionException(threadName + " has no user");
+        }
+        if (executor == null) {
+            executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, threadName);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            executor.setRemoveOnCancelPolicy(true);
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,65 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client.util;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+/**
+ * Sends the HTTP requests of a {@link RestfulClient}.
+ * <p>
+ * Results are arrays of [0]: status code; [1]: the response body. Retries, deadlines, compression and
+ * the circuit breaker are left to the {@link RestfulClient}, so a transport makes exactly one attempt per call.
+ * Implementations need a public constructor taking the socket timeout and the connect timeout in millisecond,
+ * and the {@link ConnectionPoolConfig}.
+ */
+public interface Transport {
+
+    /**
+     * @param url     URL Endpoint
+     * @param entity  the request body, which may be written more than once
+     * @param headers Name/Value pairs of HTTP Request Headers to be set on the request
+     * @param timeout millisecond to wait for the response if shorter than the socket timeout, 0 to use the socket timeout
+     * @return completes with the result, or exceptionally with an IOException
+     */
+    CompletableFuture<Object[]> post(String url, RequestEntity entity, Map<String, String> headers, long timeout);
+
+    /**
+     * @param url     URL Endpoint with request parameters
+     * @param headers Name/Value pairs of HTTP Request Headers, may be null
+     * @return [0]: status code; [1]: the response body
+     * @throws IOException
+     */
+    Object[] get(String url, Map<String, String> headers) throws IOException;
+
+    /**
+     * @return true if {@link #post} holds the calling thread until the request completes
+     */
+    boolean isBlocking();
+
+    /**
+     * @return the current state of the connection pool
+     */
+    ConnectionPoolStats getPoolStats();
+
+    /**
+     * Closes the connections of this transport.
+     */
+    void shutdown();
+}
@@ -0,0 +1,115 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.ala.client.appender.AppenderMetrics;
+import org.ala.client.appender.PrometheusExporter;
+import org.ala.client.appender.RestfulAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AppenderMetricsTest {
+
+    private static final String MESSAGE = "{\"eventTypeId\": 1000, \"recordCounts\": {\"dr1\": 2}}";
+
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private RestfulAppender appender;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                while (in.read() >= 0) {
+                    // drain
+                }
+                // every third request is rejected
+                exchange.sendResponseHeaders(requests.incrementAndGet() % 3 == 0 ? 400 : 200, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        appender = new RestfulAppender();
+        appender.setName("metricsTest");
+        appender.setUrlTemplate("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+        appender.setMaxRetries(0);
+        appender.activateOptions();
+    }
+
+    @After
+    public void tearDown() {
+        appender.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testRequestsAreCountedAndExposed() throws Exception {
+        Logger logger = Logger.getLogger(AppenderMetricsTest.class);
+        for (int i = 0; i < 3; i++) {
+            appender.doAppend(event(logger));
+        }
+
+        AppenderMetrics metrics = appender.getMetrics();
+        assertEquals(3, metrics.getAppendedCount());
+        assertEquals(2, metrics.getSentCount());
+        assertEquals(1, metrics.getFailedCount());
+        assertEquals(3, metrics.getRequestCount());
+        assertEquals("200=2, 400=1", metrics.getStatusCounts());
+        assertTrue(metrics.getBytesSent() >= 3 * MESSAGE.length());
+
+        ObjectName name = new ObjectName(AppenderMetrics.JMX_DOMAIN + ":type=RestfulAppender,name=\"metricsTest\"");
+        assertEquals(2L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "SentCount"));
+
+        String scrape = PrometheusExporter.scrape();
+        assertTrue(scrape, scrape.contains("ala_logger_events_sent_total{appender=\"metricsTest\"} 2\n"));
+        assertTrue(scrape, scrape.contains("ala_logger_responses_total{appender=\"metricsTest\",status=\"400\"} 1\n"));
+        assertTrue(scrape, scrape.contains("ala_logger_request_duration_seconds_count{appender=\"metricsTest\"} 3\n"));
+
+        appender.close();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    private static LoggingEvent event(Logger logger) {
+        // the log4j 1.2 bridge does not keep the message of a LoggingEvent it did not create
+        return new LoggingEvent(Logger.class.getName(), logger, Level.INFO, MESSAGE, null) {
+            @Override
+            public Object getMessage() {
+                return MESSAGE;
+            }
+        };
+    }
+}
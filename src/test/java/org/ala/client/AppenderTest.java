@@ -3,17 +3,40 @@ package org.ala.client;
 import java.io.IOException;
 
 import org.ala.client.appender.RestLevel;
+import org.ala.client.appender.RestfulAppender;
 import org.ala.client.util.RestfulClient;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 import org.apache.commons.httpclient.HttpException;
 import org.apache.log4j.*;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 public class AppenderTest {
 	private static Logger logger = Logger.getLogger(AppenderTest.class);
-    
+
+	private LoggerServiceStub stub;
+
+	@Before
+	public void startStub() throws IOException {
+		stub = new LoggerServiceStub().start(8);
+	}
+
+	@After
+	public void stopStub() {
+		stub.stop();
+	}
 
      @Test
     public void testLogger(){
+    	RestfulAppender appender = new RestfulAppender();
+    	appender.setName("appenderTest");
+    	appender.setUrlTemplate(stub.getUrl());
+    	appender.activateOptions();
+    	logger.addAppender(appender);
+
     	StringBuffer sb = new StringBuffer();
     	for(int i = 0; i < 10; i++){
 	    	sb.append("{\"eventTypeId\": 1,");
@@ -30,8 +53,11 @@ public class AppenderTest {
 	    	
 	    	//log to remote ala-logger
 	    	logger.log(RestLevel.REMOTE, sb.toString());
+	    	sb.setLength(0);
     	}
-    	LogManager.shutdown();
+    	logger.removeAppender(appender);
+    	appender.close();
+    	assertEquals(10, stub.getEventCount());
 
     	return;
     }  
@@ -41,8 +67,9 @@ public class AppenderTest {
     	 RestfulClient restfulClient = new RestfulClient();
     	 Object[] ar;
 		try {
-			ar = restfulClient.restGet("http://logger.ala.org.au/service/logger/get.json?q=dp123&year=2010&eventTypeId=12345");
+			ar = restfulClient.restGet(stub.getUrl() + "get.json?q=dp123&year=2010&eventTypeId=12345");
 			System.out.println("Status Code: " + ar[0] + ", jsonContent: " + ar[1]);
+			assertEquals(200, ar[0]);
 		} catch (HttpException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -51,5 +78,27 @@ public class AppenderTest {
 			e.printStackTrace();
 		}    	
      }
-}
 
+     @Test
+     public void testNoEventsLostWhenServiceIsFlaky() throws Exception {
+    	 stub.setLatency(2, 5).setUnavailableRate(0.2).setThrottleRate(0.05).setResetRate(0.05);
+
+    	 RestfulAppender appender = new RestfulAppender();
+    	 appender.setName("flakyServiceTest");
+    	 appender.setTrustedMessages(true);
+    	 appender.setBufferSize(8192);
+    	 appender.setFullBufferPolicy("block");
+    	 appender.setBatchSize(20);
+    	 appender.setBatchMaxAge(50);
+    	 appender.setMaxRetries(10);
+    	 appender.setRetryBackoff(1);
+    	 //every request fails now and then, which must not open the breaker
+    	 appender.setCircuitBreakerThreshold(100);
+    	 appender.setTimeout(5000);
+
+    	 LoadGenerator.Result result = new LoadGenerator(appender, stub).setThreads(4).setRate(2000).setDuration(1000).run();
+    	 assertTrue(result.generated > 0);
+    	 assertEquals(result.toString(), 0, result.getLost());
+    	 assertTrue(stub.getStatusCounts().containsKey(503));
+     }
+}
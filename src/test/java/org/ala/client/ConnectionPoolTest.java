@@ -0,0 +1,168 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.ala.client.util.ConnectionPoolConfig;
+import org.ala.client.util.ConnectionPoolStats;
+import org.ala.client.util.HttpClientTransport;
+import org.ala.client.util.NioTransport;
+import org.ala.client.util.RestfulClient;
+import org.ala.client.util.Transport;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectionPoolTest {
+
+    private HttpServer server;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                while (in.read() >= 0) {
+                    // drain
+                }
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    @Test
+    public void testNioRequestsWaitForTheOnlyConnection() throws Exception {
+        Transport transport = new NioTransport(5000, 5000, new ConnectionPoolConfig(1, 1, 60000));
+        RestfulClient client = new RestfulClient(transport);
+        try {
+            List<CompletableFuture<Object[]>> results = new ArrayList<CompletableFuture<Object[]>>();
+            for (int i = 0; i < 5; i++) {
+                results.add(client.restPostAsync(url(), "{\"eventTypeId\": " + i + "}", new HashMap<String, String>()));
+            }
+            for (CompletableFuture<Object[]> result : results) {
+                assertEquals(200, result.get(10, TimeUnit.SECONDS)[0]);
+            }
+
+            ConnectionPoolStats stats = client.getPoolStats();
+            // the connection may be returned to the pool just after the response is handed over
+            for (int i = 0; i < 100 && stats.getLeased() > 0; i++) {
+                Thread.sleep(10);
+                stats = client.getPoolStats();
+            }
+            assertEquals(0, stats.getLeased());
+            assertEquals(1, stats.getAvailable());
+            assertEquals(1, stats.getMax());
+            assertEquals(5, stats.getWaitCount());
+            // the last request waited for the four before it
+            assertTrue(stats.getMaxWaitMillis() >= 60);
+        } finally {
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testBlockingRequestsShareThePool() throws Exception {
+        final RestfulClient client = new RestfulClient(new HttpClientTransport(5000, 5000, new ConnectionPoolConfig(2, 2, 60000)));
+        ExecutorService callers = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Object[]>> results = new ArrayList<Future<Object[]>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(callers.submit(new Callable<Object[]>() {
+                    public Object[] call() throws Exception {
+                        return client.restPost(url(), "{\"eventTypeId\": 1}", new HashMap<String, String>());
+                    }
+                }));
+            }
+            for (Future<Object[]> result : results) {
+                assertEquals(200, result.get(10, TimeUnit.SECONDS)[0]);
+            }
+
+            ConnectionPoolStats stats = client.getPoolStats();
+            assertEquals(0, stats.getLeased());
+            assertEquals(0, stats.getPending());
+            assertEquals(2, stats.getAvailable());
+            assertEquals(8, stats.getWaitCount());
+        } finally {
+            callers.shutdown();
+            client.shutdown();
+        }
+    }
+
+    @Test
+    public void testAbandonedClientsAreNotKeptReachable() throws Exception {
+        List<WeakReference<Object>> abandoned = new ArrayList<WeakReference<Object>>();
+        for (int i = 0; i < 3; i++) {
+            RestfulClient legacy = new RestfulClient(5000, 5000);
+            assertEquals(200, legacy.restPost(url(), "{\"eventTypeId\": 1}", new HashMap<String, String>())[0]);
+            abandoned.add(new WeakReference<Object>(legacy));
+            abandoned.add(new WeakReference<Object>(legacy.getTransport()));
+            // a pool of its own with idle connection checks, never shut down either
+            abandoned.add(new WeakReference<Object>(new HttpClientTransport(5000, 5000, new ConnectionPoolConfig(2, 2, 1000))));
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline && !allCleared(abandoned)) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        assertTrue(allCleared(abandoned));
+    }
+
+    private static boolean allCleared(List<WeakReference<Object>> references) {
+        for (WeakReference<Object> reference : references) {
+            if (reference.get() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,116 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import org.ala.client.appender.DiskSpool;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DiskSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String EVENT = "{\"eventTypeId\": 1000,\"comment\": \"%d\",\"recordCounts\" : {\"dr143\": 22}}";
+
+    @Test
+    public void testSpooledEventsSurviveReopenAndReplayInOrder() throws Exception {
+        File dir = folder.newFolder("spool");
+        DiskSpool spool = new DiskSpool(dir, 4096, 1024 * 1024);
+        List<String> expected = new ArrayList<String>();
+        // enough events to roll over into several segments
+        for (int i = 0; i < 200; i++) {
+            String event = String.format(EVENT, i);
+            expected.add(event);
+            assertTrue(spool.append(event, i < 100 ? "agent-a" : "agent-b"));
+        }
+        assertFalse(spool.isEmpty());
+        spool.close();
+
+        spool = new DiskSpool(dir, 4096, 1024 * 1024);
+        final List<String> replayed = new CopyOnWriteArrayList<String>();
+        final List<String> agents = new CopyOnWriteArrayList<String>();
+        spool.startReplayer("test", 50, new DiskSpool.ReplaySender() {
+            public boolean send(List<String> events, String userAgent) {
+                replayed.addAll(events);
+                for (int i = 0; i < events.size(); i++) {
+                    agents.add(userAgent);
+                }
+                return true;
+            }
+        });
+        waitUntilEmpty(spool);
+        spool.close();
+
+        assertEquals(expected, replayed);
+        assertEquals("agent-a", agents.get(99));
+        assertEquals("agent-b", agents.get(100));
+        // replayed segments are deleted, leaving the offset file and the current segment
+        assertEquals(2, dir.list().length);
+    }
+
+    @Test
+    public void testFailedReplayIsRetried() throws Exception {
+        DiskSpool spool = new DiskSpool(folder.newFolder("spool"), 4096, 1024 * 1024);
+        spool.append(String.format(EVENT, 1), "agent");
+
+        final AtomicBoolean available = new AtomicBoolean(false);
+        final List<String> replayed = new CopyOnWriteArrayList<String>();
+        spool.startReplayer("test", 10, new DiskSpool.ReplaySender() {
+            public boolean send(List<String> events, String userAgent) {
+                if (!available.getAndSet(true)) {
+                    return false;
+                }
+                replayed.addAll(events);
+                return true;
+            }
+        });
+        waitUntilEmpty(spool);
+        spool.close();
+
+        assertEquals(1, replayed.size());
+    }
+
+    @Test
+    public void testAppendFailsWhenSpoolIsFull() throws Exception {
+        DiskSpool spool = new DiskSpool(folder.newFolder("spool"), 4096, 4096);
+        int appended = 0;
+        while (spool.append(String.format(EVENT, appended), "agent")) {
+            appended++;
+        }
+        assertTrue(appended > 0);
+        assertEquals(1, spool.getDroppedCount());
+        spool.close();
+    }
+
+    private static void waitUntilEmpty(DiskSpool spool) throws InterruptedException {
+        for (int i = 0; i < 100 && !spool.isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(spool.isEmpty());
+    }
+}
@@ -0,0 +1,134 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import org.ala.client.appender.RestfulAppender;
+import org.ala.client.util.EndpointSelector;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EndpointSelectorTest {
+
+    private static final String EVENT = "{\"eventTypeId\": 1000, \"recordCounts\": {\"dr1\": 1}}";
+
+    @Test
+    public void testLeastOutstandingAndEjection() {
+        EndpointSelector selector = new EndpointSelector("test", "http://a/, http://b/\nhttp://c/", 2, 60000, 0, 1000);
+        assertEquals(3, selector.size());
+        List<EndpointSelector.Endpoint> nodes = selector.getEndpoints();
+
+        // each of three requests in flight goes to a different node
+        EndpointSelector.Endpoint first = selector.select(0);
+        EndpointSelector.Endpoint second = selector.select(0);
+        EndpointSelector.Endpoint third = selector.select(0);
+        assertEquals(3, first.getOutstanding() + second.getOutstanding() + third.getOutstanding());
+        assertTrue(first != second && second != third && first != third);
+        selector.onSuccess(first, 1000000);
+        selector.onSuccess(second, 1000000);
+        selector.onSuccess(third, 1000000);
+
+        // excluded nodes are skipped
+        long tried = EndpointSelector.mask(nodes.get(0)) | EndpointSelector.mask(nodes.get(1));
+        EndpointSelector.Endpoint last = selector.select(tried);
+        assertSame(nodes.get(2), last);
+        selector.release(last);
+        assertNull(selector.select(tried | EndpointSelector.mask(nodes.get(2))));
+
+        // two failures in a row eject a node
+        for (int i = 0; i < 2; i++) {
+            selector.onFailure(selector.select(EndpointSelector.mask(nodes.get(0)) | EndpointSelector.mask(nodes.get(2))));
+        }
+        assertFalse(nodes.get(1).isHealthy());
+        for (int i = 0; i < 20; i++) {
+            EndpointSelector.Endpoint endpoint = selector.select(0);
+            assertTrue(endpoint != nodes.get(1));
+            selector.release(endpoint);
+        }
+
+        // with every node ejected, the one due back first is used, and reinstated when it answers
+        for (EndpointSelector.Endpoint node : new EndpointSelector.Endpoint[]{nodes.get(0), nodes.get(2)}) {
+            for (int i = 0; i < 2; i++) {
+                selector.onFailure(selector.select(~EndpointSelector.mask(node)));
+            }
+        }
+        EndpointSelector.Endpoint fallback = selector.select(0);
+        assertSame(nodes.get(1), fallback);
+        selector.onSuccess(fallback, 1000000);
+        assertTrue(nodes.get(1).isHealthy());
+        selector.close();
+    }
+
+    @Test
+    public void testAppenderFailsOverAndReinstatesANode() throws Exception {
+        LoggerServiceStub healthy = new LoggerServiceStub().start(2);
+        LoggerServiceStub failing = new LoggerServiceStub().start(2);
+        failing.setUnavailableRate(1.0);
+        RestfulAppender appender = new RestfulAppender();
+        appender.setName("failoverTest");
+        appender.setUrlTemplate(healthy.getUrl() + "," + failing.getUrl());
+        appender.setCircuitBreakerThreshold(0);
+        appender.setHealthCheckInterval(100);
+        appender.activateOptions();
+        Logger logger = Logger.getLogger(EndpointSelectorTest.class);
+        try {
+            for (int i = 0; i < 20; i++) {
+                appender.doAppend(event(logger, EVENT));
+            }
+            assertEquals(20, healthy.getEventCount());
+            assertEquals(0, appender.getMetrics().getFailedCount());
+            EndpointSelector.Endpoint failingNode = appender.getEndpoints().get(1);
+            assertEquals(failing.getUrl(), failingNode.getUrl());
+            assertFalse(failingNode.isHealthy());
+
+            // the health check brings it back once it answers again
+            failing.setUnavailableRate(0);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!failingNode.isHealthy() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertTrue(failingNode.isHealthy());
+            for (int i = 0; i < 20; i++) {
+                appender.doAppend(event(logger, EVENT));
+            }
+            assertTrue(failing.getEventCount() > 0);
+            assertEquals(40, healthy.getEventCount() + failing.getEventCount());
+        } finally {
+            appender.close();
+            healthy.stop();
+            failing.stop();
+        }
+    }
+
+    private static LoggingEvent event(Logger logger, final Object message) {
+        // the log4j 1.2 bridge does not keep the message of a LoggingEvent it did not create
+        return new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message, null) {
+            @Override
+            public Object getMessage() {
+                return message;
+            }
+        };
+    }
+}
@@ -0,0 +1,74 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import org.ala.client.appender.EventBatcher;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class EventBatcherTest {
+
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+
+    private final EventBatcher.BatchSender sender = new EventBatcher.BatchSender() {
+        public void send(List<Object> events, String userAgent) {
+            sent.add(userAgent + events);
+        }
+    };
+
+    @Test
+    public void testInterleavedUserAgentsFillTheirOwnBatches() {
+        EventBatcher batcher = new EventBatcher("test", 3, 60000, sender);
+        try {
+            for (int i = 0; i < 7; i++) {
+                batcher.add(i, i % 2 == 0 ? "a" : "b");
+            }
+            assertEquals("[a[0, 2, 4], b[1, 3, 5]]", sent.toString());
+            assertEquals(1, batcher.getPendingCount());
+            assertEquals(1, batcher.getPartitionCount());
+
+            batcher.flush();
+            assertEquals("[a[0, 2, 4], b[1, 3, 5], a[6]]", sent.toString());
+            assertEquals(0, batcher.getPendingCount());
+        } finally {
+            batcher.close();
+        }
+    }
+
+    @Test
+    public void testPartitionsExpireInTheOrderTheyOpened() throws Exception {
+        EventBatcher batcher = new EventBatcher("test", 100, 50, sender);
+        try {
+            batcher.add("1", "a");
+            Thread.sleep(30);
+            batcher.add("2", "b");
+            batcher.add("3", "a");
+            long deadline = System.currentTimeMillis() + 5000;
+            while (sent.size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals("[a[1, 3], b[2]]", sent.toString());
+            assertEquals(0, batcher.getPartitionCount());
+        } finally {
+            batcher.close();
+        }
+    }
+}
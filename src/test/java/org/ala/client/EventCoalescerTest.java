@@ -0,0 +1,100 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import org.ala.client.appender.EventCoalescer;
+import org.ala.client.model.LogEventVO;
+import org.ala.client.util.LogEventEncoder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventCoalescerTest {
+
+    private final List<LogEventVO> sent = new ArrayList<LogEventVO>();
+    private EventCoalescer coalescer;
+
+    @Before
+    public void createCoalescer() {
+        coalescer = new EventCoalescer("test", Collections.singleton(1000), EventCoalescer.DEFAULT_KEY, 60000, new EventCoalescer.Sender() {
+            public void send(LogEventVO event, String userAgent) {
+                sent.add(event);
+            }
+        });
+    }
+
+    @After
+    public void closeCoalescer() {
+        coalescer.close();
+    }
+
+    private static LogEventVO event(int eventTypeId, String userIP, String uid, int count) {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        counts.put(uid, count);
+        return new LogEventVO(eventTypeId, null, null, "", "", userIP, "agent", null, counts);
+    }
+
+    @Test
+    public void testRecordCountsOfMatchingEventsAreSummed() {
+        LogEventVO first = event(1000, "1.1.1.1", "dr1", 10);
+        assertTrue(coalescer.add(first, "agent"));
+        assertTrue(coalescer.add(event(1000, "1.1.1.1", "dr1", 5), "agent"));
+        assertTrue(coalescer.add(event(1000, "1.1.1.1", "dr2", 3), "agent"));
+        assertTrue(coalescer.add(event(1000, "2.2.2.2", "dr1", 1), "agent"));
+        coalescer.flush();
+
+        assertEquals(2, sent.size());
+        assertEquals(Integer.valueOf(15), sent.get(0).getRecordCounts().get("dr1"));
+        assertEquals(Integer.valueOf(3), sent.get(0).getRecordCounts().get("dr2"));
+        assertEquals("2.2.2.2", sent.get(1).getUserIP());
+        assertEquals(2, coalescer.getMergedCount());
+        // the caller's event is left as it was
+        assertEquals(1, first.getRecordCounts().size());
+        assertEquals(Integer.valueOf(10), first.getRecordCounts().get("dr1"));
+    }
+
+    @Test
+    public void testMergedEventsKeepTheirNullProperties() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            LogEventVO event = event(1000, "1.1.1.1", "dr1", 5);
+            event.setComment(null);
+            event.setUserEmail(null);
+            event.setMonth(null);
+            assertTrue(coalescer.add(event, "agent"));
+        }
+        coalescer.flush();
+
+        assertEquals(1, sent.size());
+        assertEquals("{\"eventTypeId\":1000,\"userIP\":\"1.1.1.1\",\"userAgent\":\"agent\",\"recordCounts\":{\"dr1\":10}}",
+                LogEventEncoder.toJson(sent.get(0)));
+    }
+
+    @Test
+    public void testOtherEventTypesAreNotHeld() {
+        assertFalse(coalescer.add(event(1002, "1.1.1.1", "dr1", 10), "agent"));
+        assertEquals(0, coalescer.getPendingCount());
+    }
+}
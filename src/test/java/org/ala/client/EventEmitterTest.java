@@ -0,0 +1,74 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import org.ala.client.appender.RestfulAppender;
+import org.ala.client.model.LogEventVO;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EventEmitterTest {
+
+    @Test
+    public void testEmitsThroughTheNamedAppender() throws Exception {
+        LoggerServiceStub stub = new LoggerServiceStub().start(2);
+        RestfulAppender appender = new RestfulAppender();
+        appender.setName("emitterTest");
+        appender.setUrlTemplate(stub.getUrl());
+        appender.setBufferSize(64);
+        appender.setRateLimits("1001:0.01/2");
+        appender.setWatchConfig(false);
+        appender.activateOptions();
+        try {
+            EventEmitter emitter = EventEmitter.forAppender("emitterTest");
+            assertSame(appender, emitter.getAppender());
+            for (int i = 0; i < 5; i++) {
+                assertTrue(emitter.emit(event(1000)));
+            }
+            // the burst of two lets the first offers through, the rest are shed
+            assertTrue(emitter.offer(event(1001), "emitter-test"));
+            assertTrue(emitter.offer(event(1001)));
+            assertFalse(emitter.offer(event(1001)));
+            assertFalse(emitter.emit(null));
+
+            assertTrue(emitter.flush(5000));
+            assertEquals(5, stub.getEventCount(1000));
+            assertEquals(2, stub.getEventCount(1001));
+            assertEquals(1, appender.getShedCount());
+        } finally {
+            appender.close();
+            stub.stop();
+        }
+        try {
+            EventEmitter.forAppender("emitterTest");
+            fail("A closed appender is not active");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private static LogEventVO event(int eventTypeId) {
+        return new LogEventVO(eventTypeId, null, null, "test@ala.org.au", "emitter", "127.0.0.1", null,
+                Collections.singletonMap("dr1", 1));
+    }
+}
@@ -0,0 +1,135 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import org.ala.client.appender.EventRateLimiter;
+import org.ala.client.appender.RateLimitMode;
+import org.ala.client.appender.RestfulAppender;
+import org.ala.client.model.LogEventVO;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EventRateLimiterTest {
+
+    private static final String IMAGE_VIEWED = "{\"eventTypeId\": 2000, \"comment\": \"image\", \"recordCounts\": {\"dr1\": 10}}";
+
+    @Test
+    public void testTokenBucketShedsBeyondTheBurst() {
+        EventRateLimiter limiter = new EventRateLimiter(RateLimitMode.DROP);
+        limiter.setLimits(Collections.singletonMap(2000, 1.0), Collections.singletonMap(2000, 5));
+        int kept = 0;
+        for (int i = 0; i < 100; i++) {
+            if (limiter.limit(IMAGE_VIEWED) != null) {
+                kept++;
+            }
+        }
+        assertEquals(5, kept);
+        LogEventVO other = new LogEventVO(1000, null, null, "", "", "", Collections.singletonMap("dr1", 1));
+        assertSame(other, limiter.limit(other));
+        assertEquals(Collections.singletonMap(2000, 95L), limiter.getShedCounts());
+
+        // a limit that is removed keeps its count
+        limiter.setLimits(Collections.<Integer, Double>emptyMap(), Collections.<Integer, Integer>emptyMap());
+        assertSame(IMAGE_VIEWED, limiter.limit(IMAGE_VIEWED));
+        assertEquals(95, limiter.getShedCount());
+    }
+
+    @Test
+    public void testSampledRecordCountsStayUnbiased() throws Exception {
+        EventRateLimiter limiter = new EventRateLimiter(RateLimitMode.SAMPLE);
+        limiter.setLimits(Collections.singletonMap(2000, 100.0), Collections.<Integer, Integer>emptyMap());
+        // the first second sets the probability for the next
+        for (int i = 0; i < 5000; i++) {
+            limiter.limit(IMAGE_VIEWED);
+        }
+        Thread.sleep(1000);
+
+        ObjectMapper mapper = new ObjectMapper();
+        long total = 0;
+        int kept = 0;
+        for (int i = 0; i < 5000; i++) {
+            Object message = i % 2 == 0 ? IMAGE_VIEWED : new LogEventVO(2000, null, null, "", "", "", Collections.singletonMap("dr1", 10));
+            Object limited = limiter.limit(message);
+            if (limited instanceof String) {
+                JsonNode json = mapper.readTree((String) limited);
+                assertEquals("image", json.get("comment").getTextValue());
+                total += json.get("recordCounts").get("dr1").getIntValue();
+                kept++;
+            } else if (limited != null) {
+                total += ((LogEventVO) limited).getRecordCounts().get("dr1");
+                kept++;
+            }
+        }
+        assertTrue("kept " + kept, kept > 50 && kept < 250);
+        assertTrue("total " + total, Math.abs(total - 50000) < 15000);
+        assertEquals(5000 - kept, limiter.getShedCount());
+    }
+
+    @Test
+    public void testAppenderLimitsCanChangeAtRuntime() throws Exception {
+        LoggerServiceStub stub = new LoggerServiceStub().start(2);
+        RestfulAppender appender = new RestfulAppender();
+        appender.setName("rateLimitTest");
+        appender.setUrlTemplate(stub.getUrl());
+        appender.setMaxRetries(0);
+        appender.setRateLimits("IMAGE_VIEWED:1/3, 1001:1000");
+        appender.activateOptions();
+        try {
+            Logger logger = Logger.getLogger(EventRateLimiterTest.class);
+            for (int i = 0; i < 10; i++) {
+                appender.doAppend(event(logger, IMAGE_VIEWED));
+            }
+            assertEquals(3, stub.getEventCount());
+            assertEquals(7, appender.getShedCount());
+
+            appender.setRateLimits(null);
+            for (int i = 0; i < 4; i++) {
+                appender.doAppend(event(logger, IMAGE_VIEWED));
+            }
+            assertEquals(7, stub.getEventCount());
+            Map<Integer, Long> expected = new HashMap<Integer, Long>();
+            expected.put(1001, 0L);
+            expected.put(2000, 7L);
+            assertEquals(expected, appender.getShedCounts());
+            assertEquals("1001=0, 2000=7", appender.getMetrics().getShedCounts());
+        } finally {
+            appender.close();
+            stub.stop();
+        }
+    }
+
+    private static LoggingEvent event(Logger logger, final Object message) {
+        // the log4j 1.2 bridge does not keep the message of a LoggingEvent it did not create
+        return new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message, null) {
+            @Override
+            public Object getMessage() {
+                return message;
+            }
+        };
+    }
+}
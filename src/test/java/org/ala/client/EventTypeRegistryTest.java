@@ -0,0 +1,194 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.ala.client.appender.RestfulAppender;
+import org.ala.client.model.EventTypeRegistry;
+import org.ala.client.model.LogEventVO;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class EventTypeRegistryTest {
+
+    @Test
+    public void testLookups() {
+        EventTypeRegistry registry = new EventTypeRegistry();
+        assertEquals("OCCURRENCE_RECORDS_DOWNLOADED", registry.get(1002).getName());
+        assertEquals(1002, registry.get(" occurrence_records_Downloaded ").getId());
+        assertNull(registry.get(1003));
+        assertNull(registry.get(Integer.MIN_VALUE));
+        assertNull(registry.get("OCCURRENCE_RECORDS"));
+        assertNull(registry.get((String) null));
+
+        // ids far apart are looked up through the sparse table
+        registry.register(7, "SEVEN");
+        registry.register(1000000, "MILLION");
+        assertEquals("SEVEN", registry.get(7).getName());
+        assertEquals(1000000, registry.get("million").getId());
+        assertEquals(1000, registry.get("OCCURRENCE_RECORDS_VIEWED").getId());
+        assertFalse(registry.contains(8));
+        assertEquals(6, registry.getTypes().size());
+        assertEquals(7, registry.getTypes().get(0).getId());
+    }
+
+    @Test
+    public void testLoadFromFile() throws Exception {
+        File file = File.createTempFile("event-types", ".json");
+        try {
+            write(file, "[{\"id\": 1003, \"name\": \"SPECIES_LIST_VIEWED\"}, {\"id\": 3000, \"name\": \"DOI_MINTED\", \"other\": 1}]");
+            EventTypeRegistry registry = new EventTypeRegistry(file.getPath(), 0);
+            assertTrue(registry.awaitLoad(5000));
+            assertEquals(1003, registry.get("species_list_viewed").getId());
+            assertEquals("IMAGE_VIEWED", registry.get(2000).getName());
+            assertFalse(registry.refresh());
+
+            write(file, "[{\"id\": 3000, \"name\": \"DOI_MINTED\"}]");
+            file.setLastModified(file.lastModified() + 2000);
+            assertTrue(registry.refresh());
+            assertNull(registry.get(1003));
+            assertEquals(3000, registry.get("DOI_MINTED").getId());
+
+            // a broken listing keeps the types already loaded
+            write(file, "{\"id\": 4000}");
+            file.setLastModified(file.lastModified() + 2000);
+            assertFalse(registry.refresh());
+            assertEquals(3000, registry.get("DOI_MINTED").getId());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testLoadFromServiceOnlyWhenChanged() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/service/logger/events", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                if ("v1".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                } else {
+                    byte[] body = "[{\"id\": 1003, \"name\": \"SPECIES_LIST_VIEWED\"}]".getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("ETag", "v1");
+                    exchange.sendResponseHeaders(200, body.length);
+                    exchange.getResponseBody().write(body);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            EventTypeRegistry registry = new EventTypeRegistry(
+                    "http://127.0.0.1:" + server.getAddress().getPort() + "/service/logger/events", 0);
+            assertTrue(registry.awaitLoad(5000));
+            assertEquals(1003, registry.get("SPECIES_LIST_VIEWED").getId());
+            assertFalse(registry.refresh());
+            assertEquals(2, requests.get());
+            assertEquals(1003, registry.get("SPECIES_LIST_VIEWED").getId());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testSlowServiceDoesNotHoldUpTheRegistry() throws Exception {
+        final CountDownLatch answer = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/service/logger/events", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    answer.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                byte[] body = "[{\"id\": 1003, \"name\": \"SPECIES_LIST_VIEWED\"}]".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            EventTypeRegistry registry = new EventTypeRegistry(
+                    "http://127.0.0.1:" + server.getAddress().getPort() + "/service/logger/events", 0);
+            // the built in types answer while the listing is loading
+            assertEquals(1002, registry.get("OCCURRENCE_RECORDS_DOWNLOADED").getId());
+            assertNull(registry.get(1003));
+            assertFalse(registry.awaitLoad(100));
+
+            answer.countDown();
+            assertTrue(registry.awaitLoad(5000));
+            assertEquals(1003, registry.get("SPECIES_LIST_VIEWED").getId());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testAppenderLooksUpLoadedNamesAgain() throws Exception {
+        File file = File.createTempFile("event-types", ".json");
+        LoggerServiceStub stub = new LoggerServiceStub().start(1);
+        RestfulAppender appender = new RestfulAppender();
+        try {
+            write(file, "[{\"id\": 1003, \"name\": \"SPECIES_LIST_VIEWED\"}]");
+            appender.setName("eventTypesTest");
+            appender.setUrlTemplate(stub.getUrl());
+            appender.setEventTypesUrl(file.getPath());
+            appender.setCoalesceEventTypes("SPECIES_LIST_VIEWED");
+            appender.setCoalesceWindow(60000);
+            appender.activateOptions();
+            assertTrue(appender.getEventTypeRegistry().awaitLoad(5000));
+
+            // the name is looked up again on the loading thread once the listing is in
+            long deadline = System.currentTimeMillis() + 5000;
+            while (appender.getCoalescedCount() == 0 && System.currentTimeMillis() < deadline) {
+                appender.append(new LogEventVO(1003, null, null, "", "", "1.1.1.1", "agent", null, new HashMap<String, Integer>()), "agent");
+                Thread.sleep(20);
+            }
+            assertTrue(appender.getCoalescedCount() > 0);
+        } finally {
+            appender.close();
+            stub.stop();
+            file.delete();
+        }
+    }
+
+    private static void write(File file, String json) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(json.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import org.ala.client.appender.AppenderMetrics;
+import org.ala.client.appender.RestfulAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives many threads through log4j into a {@link RestfulAppender} posting to a
+ * {@link LoggerServiceStub}, and reports the sustained event rate, the time callers spent in the
+ * logging call and how many events did not reach the stub.
+ * <p>
+ * Run {@link #main} with system properties to choose the load, the faults and the appender
+ * configuration, eg:
+ * <pre>
+ * -Dthreads=32 -Drate=5000 -Dduration=30 -Dlatency=200 -DunavailableRate=0.05 -DbufferSize=8192 -DbatchSize=50
+ * </pre>
+ */
+public class LoadGenerator {
+
+    //caller-side latencies kept per thread, the oldest are overwritten once full
+    private static final int SAMPLES_PER_THREAD = 1 << 18;
+
+    private final RestfulAppender appender;
+    private final LoggerServiceStub stub;
+    private int threads = 8;
+    private long duration = 10000;
+    //events per second over all threads, 0 is as fast as the appender takes them
+    private double rate = 0;
+
+    /**
+     * @param appender configured, but not yet activated, appender
+     * @param stub     the running stub the appender posts to
+     */
+    public LoadGenerator(RestfulAppender appender, LoggerServiceStub stub) {
+        this.appender = appender;
+        this.stub = stub;
+    }
+
+    public LoadGenerator setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param duration milliseconds the threads keep logging
+     */
+    public LoadGenerator setDuration(long duration) {
+        this.duration = duration;
+        return this;
+    }
+
+    /**
+     * @param rate events per second over all threads, 0 is as fast as the appender takes them
+     */
+    public LoadGenerator setRate(double rate) {
+        this.rate = rate;
+        return this;
+    }
+
+    /**
+     * Logs events until the duration has passed, then closes the appender so that pending events
+     * are sent before the stub is counted.
+     */
+    public Result run() throws InterruptedException {
+        appender.setUrlTemplate(stub.getUrl());
+        appender.activateOptions();
+        final Logger logger = Logger.getLogger("org.ala.client.load." + appender.getName());
+        logger.setAdditivity(false);
+        logger.setLevel(Level.INFO);
+        logger.addAppender(appender);
+
+        final long[][] samples = new long[threads][SAMPLES_PER_THREAD];
+        final long[] counts = new long[threads];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        final long[] end = new long[1];
+        final long interval = rate > 0 ? (long) (1e9 * threads / rate) : 0;
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread("load-" + t) {
+                public void run() {
+                    long[] mine = samples[id];
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long n = 0;
+                    long next = System.nanoTime();
+                    while (System.nanoTime() < end[0]) {
+                        if (interval > 0) {
+                            //paced from the schedule rather than the last call, so slow calls are not hidden
+                            next += interval;
+                            LockSupport.parkNanos(next - System.nanoTime());
+                        }
+                        String message = event(id, n);
+                        long begin = System.nanoTime();
+                        logger.info(message);
+                        mine[(int) (n % SAMPLES_PER_THREAD)] = System.nanoTime() - begin;
+                        n++;
+                    }
+                    counts[id] = n;
+                }
+            };
+            workers[t].start();
+        }
+
+        long begin = System.nanoTime();
+        end[0] = begin + TimeUnit.MILLISECONDS.toNanos(duration);
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        logger.removeAppender(appender);
+        appender.close();
+
+        long generated = 0;
+        int kept = 0;
+        for (int t = 0; t < threads; t++) {
+            generated += counts[t];
+            kept += (int) Math.min(counts[t], SAMPLES_PER_THREAD);
+        }
+        long[] latencies = new long[kept];
+        int i = 0;
+        for (int t = 0; t < threads; t++) {
+            int n = (int) Math.min(counts[t], SAMPLES_PER_THREAD);
+            System.arraycopy(samples[t], 0, latencies, i, n);
+            i += n;
+        }
+        Arrays.sort(latencies);
+        return new Result(generated, elapsed, latencies, stub.getEventCount(), appender.getMetrics());
+    }
+
+    private static String event(int thread, long n) {
+        return "{\"eventTypeId\": 1002, \"comment\": \"load test\", \"userIP\": \"127.0.0.1\", "
+                + "\"recordCounts\": {\"dr" + thread + "\": " + (n % 100 + 1) + "}}";
+    }
+
+    public static class Result {
+        public final long generated;
+        public final long elapsedNanos;
+        public final long received;
+        public final long sent;
+        public final long failed;
+        public final long spooled;
+        public final long dropped;
+        private final long[] latencies;
+
+        Result(long generated, long elapsedNanos, long[] latencies, long received, AppenderMetrics metrics) {
+            this.generated = generated;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+            this.received = received;
+            this.sent = metrics.getSentCount();
+            this.failed = metrics.getFailedCount();
+            this.spooled = metrics.getSpooledCount();
+            this.dropped = metrics.getDroppedCount();
+        }
+
+        public double getEventsPerSecond() {
+            return generated * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @return the caller-side latency at quantile q, in microseconds
+         */
+        public double getLatencyMicros(double q) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.min(latencies.length - 1, Math.ceil(q * latencies.length) - 1);
+            return latencies[Math.max(0, index)] / 1000.0;
+        }
+
+        /**
+         * @return events logged that the stub did not accept
+         */
+        public long getLost() {
+            return generated - received;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d events in %.1f s: %.0f events/s%n"
+                            + "caller latency p50 %.1f us, p99 %.1f us, p999 %.1f us, max %.1f us%n"
+                            + "received %d, lost %d (sent %d, failed %d, spooled %d, dropped %d)",
+                    generated, elapsedNanos / 1e9, getEventsPerSecond(),
+                    getLatencyMicros(0.5), getLatencyMicros(0.99), getLatencyMicros(0.999), getLatencyMicros(1),
+                    received, getLost(), sent, failed, spooled, dropped);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoggerServiceStub stub = new LoggerServiceStub().start(Integer.getInteger("stubThreads", 16));
+        stub.setLatency(Long.getLong("latency", 0), Long.getLong("latencyJitter", 0))
+                .setErrorRate(rate("errorRate"))
+                .setThrottleRate(rate("throttleRate"))
+                .setUnavailableRate(rate("unavailableRate"))
+                .setResetRate(rate("resetRate"));
+
+        RestfulAppender appender = new RestfulAppender();
+        appender.setName("load");
+        appender.setTimeout(Integer.getInteger("timeout", 5000));
+        appender.setConnectTimeout(Integer.getInteger("connectTimeout", 1000));
+        appender.setMaxRetries(Integer.getInteger("maxRetries", 3));
+        appender.setCircuitBreakerThreshold(Integer.getInteger("circuitBreakerThreshold", 5));
+        appender.setBufferSize(Integer.getInteger("bufferSize", 8192));
+        appender.setBatchSize(Integer.getInteger("batchSize", 1));
+        appender.setFullBufferPolicy(System.getProperty("fullBufferPolicy", "drop"));
+        appender.setTransport(System.getProperty("transport", RestfulAppender.HTTPCLIENT_TRANSPORT));
+        appender.setSpoolDirectory(System.getProperty("spoolDirectory"));
+        //the generated messages are valid
+        appender.setTrustedMessages(true);
+
+        try {
+            LoadGenerator generator = new LoadGenerator(appender, stub)
+                    .setThreads(Integer.getInteger("threads", 8))
+                    .setDuration(TimeUnit.SECONDS.toMillis(Long.getLong("duration", 10)))
+                    .setRate(Double.parseDouble(System.getProperty("rate", "0")));
+            System.out.println(generator.run());
+            System.out.println("stub responses " + stub.getStatusCounts() + ", connections dropped " + stub.getResetCount());
+        } finally {
+            stub.stop();
+        }
+    }
+
+    private static double rate(String property) {
+        return Double.parseDouble(System.getProperty(property, "0"));
+    }
+}
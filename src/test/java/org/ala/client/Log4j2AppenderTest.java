@@ -0,0 +1,73 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import org.ala.client.appender.Log4j2RestfulAppender;
+import org.ala.client.model.LogEventVO;
+import org.ala.client.util.Constants;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.ThreadContext;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.ConfigurationSource;
+import org.apache.logging.log4j.core.config.xml.XmlConfiguration;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class Log4j2AppenderTest {
+
+    @Test
+    public void testConfiguredFromXml() throws Exception {
+        LoggerServiceStub stub = new LoggerServiceStub().start(2);
+        System.setProperty("ala.logger.test.url", stub.getUrl());
+        // a context of its own, so the configuration of the other tests is left alone
+        LoggerContext context = new LoggerContext("restfulTest");
+        context.start(new XmlConfiguration(context,
+                ConfigurationSource.fromResource("log4j2-restful-test.xml", getClass().getClassLoader())));
+        try {
+            Log4j2RestfulAppender appender = context.getConfiguration().getAppender("ALA_LOGGER");
+            assertNotNull(appender);
+            assertEquals(1, appender.getRestfulAppender().getBatchSize());
+
+            Logger logger = context.getLogger(Log4j2AppenderTest.class.getName());
+            ThreadContext.put(Constants.USER_AGENT_PARAM, "log4j2-test");
+            try {
+                // the messages and events of log4j 2 are reused by the next call on the thread
+                for (int i = 0; i < 5; i++) {
+                    logger.info(new LogEventVO(1000, null, null, "test@ala.org.au", "log4j2", "127.0.0.1",
+                            null, Collections.singletonMap("dr1", i + 1)));
+                    logger.info("{\"eventTypeId\": 1001, \"recordCounts\": {\"dr2\": 1}}");
+                    logger.debug("{\"eventTypeId\": 1002, \"recordCounts\": {\"dr3\": 1}}");
+                }
+            } finally {
+                ThreadContext.remove(Constants.USER_AGENT_PARAM);
+            }
+            assertTrue(appender.getRestfulAppender().flush(5000));
+            assertEquals(5, stub.getEventCount(1000));
+            assertEquals(1, stub.getEventCount(1001));
+            assertEquals(0, stub.getEventCount(1002));
+            assertEquals(4, appender.getRestfulAppender().getShedCount());
+        } finally {
+            context.stop();
+            System.clearProperty("ala.logger.test.url");
+            stub.stop();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import org.ala.client.model.LogEventVO;
+import org.ala.client.util.LogEventEncoder;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LogEventEncoderTest {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    {
+        mapper.getSerializationConfig().setSerializationInclusion(JsonSerialize.Inclusion.NON_NULL);
+    }
+
+    @Test
+    public void testSameJsonAsObjectMapper() throws Exception {
+        Map<String, Integer> recordCounts = new LinkedHashMap<String, Integer>();
+        recordCounts.put("dr1", 3);
+        recordCounts.put("dr2", Integer.MIN_VALUE);
+        recordCounts.put("dr3", -12);
+        recordCounts.put("q\"uote\\d \u00e9\u4e2d\ud83d\ude00\u007f\u2028", null);
+        LogEventVO full = new LogEventVO(1002, 10, 2, "someone@example.org",
+                "tab\t new\n cr\r bs\b ff\f ctl\u0001\u001f </script>", "1.2.3.4", "Mozilla/5.0", "202610",
+                recordCounts, "http://example.org/?q=a&b=c");
+        assertSameJson(full);
+
+        LogEventVO defaults = new LogEventVO();
+        assertSameJson(defaults);
+
+        LogEventVO nulls = new LogEventVO(Integer.MAX_VALUE, null, 7, null, null, null, Collections.<String, Integer>emptyMap());
+        nulls.setComment(null);
+        nulls.setUserAgent(null);
+        nulls.setMonth(null);
+        nulls.setRecordCount(null);
+        assertSameJson(nulls);
+    }
+
+    @Test
+    public void testLargeEventsAndArrays() throws Exception {
+        Map<String, Integer> recordCounts = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < 20000; i++) {
+            recordCounts.put("dr" + i, i);
+        }
+        LogEventVO large = new LogEventVO(1000, null, null, "", "", "", recordCounts);
+        assertSameJson(large);
+
+        LogEventVO small = new LogEventVO(1001, null, null, "", "comment", "", Collections.singletonMap("dr1", 1));
+        String prebuilt = "{\"eventTypeId\": 2000, \"comment\": \"\u00e9\"}";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LogEventEncoder.writeArray(Arrays.asList(small, large, prebuilt, small), out);
+        assertEquals("[" + mapper.writeValueAsString(small) + "," + mapper.writeValueAsString(large) + ","
+                + prebuilt + "," + mapper.writeValueAsString(small) + "]", out.toString("UTF-8"));
+
+        // the buffer shrinks back after a large event and is reused
+        assertSameJson(small);
+    }
+
+    @Test
+    public void testSubclassesAreLeftToTheMapper() throws Exception {
+        LogEventVO subclass = new LogEventVO() {
+            public String getExtra() {
+                return "extra";
+            }
+        };
+        assertFalse(LogEventEncoder.canEncode(subclass));
+        assertTrue(LogEventEncoder.canEncode(new LogEventVO()));
+        assertTrue(LogEventEncoder.toJson(subclass).contains("\"extra\":\"extra\""));
+    }
+
+    private void assertSameJson(LogEventVO event) throws Exception {
+        String expected = mapper.writeValueAsString(event);
+        assertEquals(expected, LogEventEncoder.toJson(event));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LogEventEncoder.write(event, out);
+        assertEquals(Arrays.toString(expected.getBytes("UTF-8")), Arrays.toString(out.toByteArray()));
+    }
+}
@@ -0,0 +1,43 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import org.ala.client.util.LogEventJsonValidator;
+import org.codehaus.jackson.JsonParseException;
+import org.junit.Test;
+
+public class LogEventJsonValidatorTest {
+
+    @Test
+    public void testValidMessageIsAccepted() throws Exception {
+        LogEventJsonValidator.validate("{\"eventTypeId\": 1,\"comment\": \"For doing some research with..\",\"userEmail\" : \"waiman.mok@csiro.au\",\"userIP\" : \"123.11.01.112\",\"recordCounts\" : {\"dp123\": 32,\"dr143\": 22,\"ins322\": 55 }, \"unknown\": [1, {\"a\": 2}] }");
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testNonNumericRecordCountIsRejected() throws Exception {
+        LogEventJsonValidator.validate("{\"eventTypeId\": 1,\"recordCounts\" : {\"dp123\": \"many\"} }");
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testMalformedJsonIsRejected() throws Exception {
+        LogEventJsonValidator.validate("{\"eventTypeId\": 1,\"recordCounts\" : {\"dp123\": 32 }");
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testArrayIsRejected() throws Exception {
+        LogEventJsonValidator.validate("[{\"eventTypeId\": 1}]");
+    }
+}
@@ -0,0 +1,222 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import org.ala.client.appender.DiskSpool;
+import org.ala.client.appender.LoggerClientConfig;
+import org.ala.client.appender.RestfulAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LoggerClientConfigTest {
+
+    private static final String EVENT = "{\"eventTypeId\": 1000, \"recordCounts\": {\"dr1\": 1}}";
+
+    @Test
+    public void testChangesApplyWithoutARestart() throws Exception {
+        LoggerServiceStub first = new LoggerServiceStub().start(1);
+        LoggerServiceStub second = new LoggerServiceStub().start(1);
+        File directory = Files.createTempDirectory("logger-client").toFile();
+        File file = new File(directory, "logger-client.properties");
+        Properties properties = new Properties();
+        properties.setProperty(LoggerClientConfig.LOGGER_URL, first.getUrl());
+        write(file, properties);
+
+        RestfulAppender appender = new RestfulAppender();
+        appender.setName("reloadTest");
+        appender.setConfigFile(file.getPath());
+        appender.setUrlTemplate("http://127.0.0.1:1/unused");
+        appender.setBatchSize(1);
+        appender.activateOptions();
+        Logger logger = Logger.getLogger(LoggerClientConfigTest.class);
+        try {
+            appender.doAppend(event(logger, EVENT));
+            assertEquals(1, first.getEventCount());
+
+            properties.setProperty(LoggerClientConfig.LOGGER_URL, second.getUrl());
+            properties.setProperty(LoggerClientConfig.BATCH_SIZE, "3");
+            properties.setProperty(LoggerClientConfig.BATCH_MAX_AGE, "60000");
+            properties.setProperty(LoggerClientConfig.TIMEOUT, "7000");
+            properties.setProperty(LoggerClientConfig.RATE_LIMITS, "1000:1/2");
+            write(file, properties);
+            long deadline = System.currentTimeMillis() + 20000;
+            while (!second.getUrl().equals(appender.getClientConfig().get(LoggerClientConfig.LOGGER_URL))
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(3, appender.getBatchSize());
+            assertEquals(7000, appender.getTimeout());
+            assertEquals("1000:1/2", appender.getRateLimits());
+
+            for (int i = 0; i < 5; i++) {
+                appender.doAppend(event(logger, EVENT));
+            }
+            // two are let through the rate limit, and wait in a batch
+            assertEquals(3, appender.getShedCount());
+            assertEquals(0, second.getEventCount());
+            assertTrue(appender.flush(5000));
+            assertEquals(2, second.getEventCount());
+            assertEquals(1, first.getEventCount());
+        } finally {
+            appender.close();
+            first.stop();
+            second.stop();
+            file.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testRemovedPropertiesRevertToTheLog4jSettings() throws Exception {
+        LoggerServiceStub configured = new LoggerServiceStub().start(1);
+        LoggerServiceStub override = new LoggerServiceStub().start(1);
+        File directory = Files.createTempDirectory("logger-client").toFile();
+        File file = new File(directory, "logger-client.properties");
+        Properties properties = new Properties();
+        properties.setProperty(LoggerClientConfig.LOGGER_URL, override.getUrl());
+        properties.setProperty(LoggerClientConfig.TIMEOUT, "7000");
+        properties.setProperty(LoggerClientConfig.RATE_LIMITS, "1000:1/1");
+        write(file, properties);
+
+        RestfulAppender appender = new RestfulAppender();
+        appender.setName("revertTest");
+        appender.setConfigFile(file.getPath());
+        appender.setUrlTemplate(configured.getUrl());
+        appender.setTimeout(5000);
+        appender.activateOptions();
+        Logger logger = Logger.getLogger(LoggerClientConfigTest.class);
+        try {
+            assertEquals(7000, appender.getTimeout());
+            appender.doAppend(event(logger, EVENT));
+            assertEquals(1, override.getEventCount());
+
+            properties.clear();
+            write(file, properties);
+            long deadline = System.currentTimeMillis() + 20000;
+            while (!appender.getClientConfig().isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(5000, appender.getTimeout());
+            assertEquals(null, appender.getRateLimits());
+            for (int i = 0; i < 3; i++) {
+                appender.doAppend(event(logger, EVENT));
+            }
+            assertEquals(3, configured.getEventCount());
+            assertEquals(0, appender.getShedCount());
+        } finally {
+            appender.close();
+            configured.stop();
+            override.stop();
+            file.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testSpooledEventsAreAllSentAfterBatchingIsTurnedOff() throws Exception {
+        LoggerServiceStub stub = new LoggerServiceStub().start(1).setUnavailableRate(1);
+        File directory = Files.createTempDirectory("logger-client").toFile();
+        File file = new File(directory, "logger-client.properties");
+        File spoolDirectory = new File(directory, "spool");
+        Properties properties = new Properties();
+        write(file, properties);
+        DiskSpool spool = new DiskSpool(spoolDirectory, 4096, 1024 * 1024);
+        for (int i = 0; i < 5; i++) {
+            spool.append(EVENT, "agent");
+        }
+        spool.close();
+
+        RestfulAppender appender = new RestfulAppender();
+        appender.setName("spoolReloadTest");
+        appender.setConfigFile(file.getPath());
+        appender.setUrlTemplate(stub.getUrl());
+        appender.setBatchSize(5);
+        appender.setMaxRetries(0);
+        appender.setCircuitBreakerThreshold(0);
+        appender.setSpoolDirectory(spoolDirectory.getPath());
+        appender.activateOptions();
+        try {
+            // the replayer reads the five spooled events at once, which the service turns down
+            long deadline = System.currentTimeMillis() + 20000;
+            while (stub.getRequestCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            properties.setProperty(LoggerClientConfig.BATCH_SIZE, "1");
+            write(file, properties);
+            while (appender.getBatchSize() != 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, appender.getBatchSize());
+            stub.setUnavailableRate(0);
+            while (stub.getEventCount() < 5 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(5, stub.getEventCount());
+        } finally {
+            appender.close();
+            stub.stop();
+            file.delete();
+            for (File segment : spoolDirectory.listFiles()) {
+                segment.delete();
+            }
+            spoolDirectory.delete();
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testUnparsableValuesAreIgnored() {
+        Properties properties = new Properties();
+        properties.setProperty(LoggerClientConfig.TIMEOUT, " 5000 ");
+        properties.setProperty(LoggerClientConfig.BATCH_SIZE, "many");
+        properties.setProperty(LoggerClientConfig.RATE_LIMITS, " ");
+        LoggerClientConfig config = new LoggerClientConfig(properties);
+        assertEquals(5000, config.getInt(LoggerClientConfig.TIMEOUT, 0));
+        assertEquals(1, config.getInt(LoggerClientConfig.BATCH_SIZE, 1));
+        assertEquals(null, config.get(LoggerClientConfig.RATE_LIMITS));
+        assertEquals(config, new LoggerClientConfig(properties));
+    }
+
+    private static void write(File file, Properties properties) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            properties.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static LoggingEvent event(Logger logger, final Object message) {
+        // the log4j 1.2 bridge does not keep the message of a LoggingEvent it did not create
+        return new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message, null) {
+            @Override
+            public Object getMessage() {
+                return message;
+            }
+        };
+    }
+}
@@ -0,0 +1,261 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Stand-in for the logger service on the JDK's built-in HTTP server, so that the appender can be
+ * exercised offline and against a slow or failing backend.
+ * <p>
+ * {@code POST /service/logger/} accepts a JSON event or a JSON array of events, gzip compressed or
+ * not, and counts them. {@code GET /service/logger/get.json} answers with the number of events
+ * received per eventTypeId. Faults are drawn independently for each POST and can be changed while
+ * the stub is running.
+ */
+public class LoggerServiceStub {
+    public static final String LOGGER_PATH = "/service/logger/";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    //milliseconds each POST is held before it is answered, plus up to latencyJitter more.
+    private volatile long latency;
+    private volatile long latencyJitter;
+    //share of POSTs answered with 500, 429, 503, or by closing the connection without a response.
+    private volatile double errorRate;
+    private volatile double throttleRate;
+    private volatile double unavailableRate;
+    private volatile double resetRate;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder events = new LongAdder();
+    private final AtomicLong resets = new AtomicLong();
+    private final ConcurrentMap<Integer, LongAdder> statusCounts = new ConcurrentHashMap<Integer, LongAdder>();
+    private final ConcurrentMap<Integer, LongAdder> eventTypeCounts = new ConcurrentHashMap<Integer, LongAdder>();
+
+    /**
+     * Starts the stub on an ephemeral port of the loopback interface.
+     *
+     * @param threads requests handled concurrently, which bounds the throughput when latency is set
+     */
+    public LoggerServiceStub start(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext(LOGGER_PATH, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+                        handlePost(exchange);
+                    } else {
+                        handleGet(exchange);
+                    }
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the URL to configure as the appender's urlTemplate
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + LOGGER_PATH;
+    }
+
+    public LoggerServiceStub setLatency(long latency, long latencyJitter) {
+        this.latency = latency;
+        this.latencyJitter = latencyJitter;
+        return this;
+    }
+
+    public LoggerServiceStub setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    public LoggerServiceStub setThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+        return this;
+    }
+
+    public LoggerServiceStub setUnavailableRate(double unavailableRate) {
+        this.unavailableRate = unavailableRate;
+        return this;
+    }
+
+    public LoggerServiceStub setResetRate(double resetRate) {
+        this.resetRate = resetRate;
+        return this;
+    }
+
+    /**
+     * @return POST requests received, whatever they were answered with
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * @return events in POST requests answered with 200
+     */
+    public long getEventCount() {
+        return events.sum();
+    }
+
+    /**
+     * @return events of a type in POST requests answered with 200
+     */
+    public long getEventCount(int eventTypeId) {
+        LongAdder count = eventTypeCounts.get(eventTypeId);
+        return count != null ? count.sum() : 0;
+    }
+
+    /**
+     * @return POST requests whose connection was closed without a response
+     */
+    public long getResetCount() {
+        return resets.get();
+    }
+
+    public SortedMap<Integer, Long> getStatusCounts() {
+        SortedMap<Integer, Long> counts = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, LongAdder> entry : statusCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    private void handlePost(HttpExchange exchange) throws IOException {
+        requests.increment();
+        InputStream in = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+        JsonNode body;
+        try {
+            body = mapper.readTree(in);
+        } catch (IOException e) {
+            respond(exchange, 400, null);
+            return;
+        }
+        sleep();
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double roll = random.nextDouble();
+        if ((roll -= resetRate) < 0) {
+            resets.incrementAndGet();
+            //closing the exchange without a response drops the connection
+            return;
+        }
+        if ((roll -= errorRate) < 0) {
+            respond(exchange, 500, null);
+        } else if ((roll -= throttleRate) < 0) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 429, null);
+        } else if ((roll -= unavailableRate) < 0) {
+            respond(exchange, 503, null);
+        } else {
+            Iterable<JsonNode> received = body.isArray() ? body : Collections.singletonList(body);
+            for (JsonNode event : received) {
+                events.increment();
+                increment(eventTypeCounts, event.path("eventTypeId").getIntValue());
+            }
+            respond(exchange, 200, null);
+        }
+    }
+
+    private void handleGet(HttpExchange exchange) throws IOException {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<Integer, LongAdder> entry : new TreeMap<Integer, LongAdder>(eventTypeCounts).entrySet()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append('"').append(entry.getKey()).append("\":").append(entry.getValue().sum());
+        }
+        json.append('}');
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        respond(exchange, 200, json.toString());
+    }
+
+    private void respond(HttpExchange exchange, int status, String body) throws IOException {
+        increment(statusCounts, status);
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private void sleep() {
+        long millis = latency + (latencyJitter > 0 ? ThreadLocalRandom.current().nextLong(latencyJitter + 1) : 0);
+        if (millis > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void increment(ConcurrentMap<Integer, LongAdder> counts, int key) {
+        LongAdder count = counts.get(key);
+        if (count == null) {
+            LongAdder created = new LongAdder();
+            count = counts.putIfAbsent(key, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.increment();
+    }
+}
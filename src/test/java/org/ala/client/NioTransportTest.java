@@ -0,0 +1,102 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.ala.client.util.NioTransport;
+import org.ala.client.util.RestfulClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NioTransportTest {
+
+    private HttpServer server;
+    private final List<String> received = new CopyOnWriteArrayList<String>();
+    private RestfulClient client;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                byte[] buf = new byte[4096];
+                for (int n; (n = in.read(buf)) > 0; ) {
+                    body.write(buf, 0, n);
+                }
+                received.add(body.toString("UTF-8"));
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+        client = new RestfulClient(new NioTransport(5000, 5000));
+    }
+
+    @After
+    public void stopServer() {
+        client.shutdown();
+        server.stop(0);
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    @Test
+    public void testManyRequestsInFlightFromOneThread() throws Exception {
+        client.setMaxInFlight(16);
+        List<CompletableFuture<Object[]>> results = new ArrayList<CompletableFuture<Object[]>>();
+        for (int i = 0; i < 100; i++) {
+            results.add(client.restPostAsync(url(), "{\"eventTypeId\": " + i + "}", new HashMap<String, String>()));
+        }
+        for (CompletableFuture<Object[]> result : results) {
+            assertEquals(200, result.get(10, TimeUnit.SECONDS)[0]);
+        }
+        assertTrue(client.awaitInFlight(1000));
+        assertEquals(100, received.size());
+        assertTrue(received.contains("{\"eventTypeId\": 99}"));
+    }
+
+    @Test
+    public void testBlockingPostThroughNonBlockingTransport() throws Exception {
+        Object[] result = client.restPostBatch(url(), Collections.singletonList("{\"eventTypeId\": 1}"), new HashMap<String, String>());
+
+        assertEquals(200, result[0]);
+        assertEquals("[{\"eventTypeId\": 1}]", received.get(0));
+    }
+}
@@ -0,0 +1,114 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import org.ala.client.appender.RestfulAppender;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelDrainTest {
+
+    private static final String EVENT = "{\"eventTypeId\": 1000, \"recordCounts\": {\"dr1\": 1}}";
+
+    @Test
+    public void testCloseSendsBufferedEventsInParallel() throws Exception {
+        LoggerServiceStub stub = new LoggerServiceStub().start(8);
+        stub.setLatency(200, 0);
+        RestfulAppender appender = appender("drainTest", stub);
+        appender.setDrainThreads(8);
+        appender.activateOptions();
+        Logger logger = Logger.getLogger(ParallelDrainTest.class);
+        for (int i = 0; i < 40; i++) {
+            appender.doAppend(event(logger, EVENT));
+        }
+        long start = System.currentTimeMillis();
+        appender.close();
+        long took = System.currentTimeMillis() - start;
+        stub.stop();
+
+        assertEquals(40, stub.getEventCount());
+        // one at a time, the sender thread would take 8 seconds
+        assertTrue("close took " + took + "ms", took < 4000);
+        assertEquals(0, appender.getDroppedCount());
+    }
+
+    @Test
+    public void testCloseGivesUpAtTheDeadline() throws Exception {
+        LoggerServiceStub stub = new LoggerServiceStub().start(2);
+        stub.setLatency(1000, 0);
+        RestfulAppender appender = appender("deadlineTest", stub);
+        appender.setDrainThreads(2);
+        appender.setShutdownTimeout(500);
+        appender.activateOptions();
+        Logger logger = Logger.getLogger(ParallelDrainTest.class);
+        for (int i = 0; i < 20; i++) {
+            appender.doAppend(event(logger, EVENT));
+        }
+        long start = System.currentTimeMillis();
+        appender.close();
+        long took = System.currentTimeMillis() - start;
+        stub.stop();
+
+        assertTrue("close took " + took + "ms", took < 1500);
+        // the sender thread and the two drain threads had one event each in flight
+        assertTrue(appender.getMetrics().getFailedCount() >= 17);
+    }
+
+    @Test
+    public void testFlushSendsPendingBatches() throws Exception {
+        LoggerServiceStub stub = new LoggerServiceStub().start(1);
+        RestfulAppender appender = appender("flushTest", stub);
+        appender.setBatchSize(10);
+        appender.setBatchMaxAge(60000);
+        appender.activateOptions();
+        Logger logger = Logger.getLogger(ParallelDrainTest.class);
+        try {
+            for (int i = 0; i < 3; i++) {
+                appender.doAppend(event(logger, EVENT));
+            }
+            assertTrue(appender.flush(5000));
+            assertEquals(3, stub.getEventCount());
+            assertEquals(0, appender.getPendingCount());
+        } finally {
+            appender.close();
+            stub.stop();
+        }
+    }
+
+    private static RestfulAppender appender(String name, LoggerServiceStub stub) {
+        RestfulAppender appender = new RestfulAppender();
+        appender.setName(name);
+        appender.setUrlTemplate(stub.getUrl());
+        appender.setBufferSize(64);
+        appender.setMaxRetries(0);
+        return appender;
+    }
+
+    private static LoggingEvent event(Logger logger, final Object message) {
+        // the log4j 1.2 bridge does not keep the message of a LoggingEvent it did not create
+        return new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message, null) {
+            @Override
+            public Object getMessage() {
+                return message;
+            }
+        };
+    }
+}
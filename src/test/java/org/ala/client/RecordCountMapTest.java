@@ -0,0 +1,152 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import org.ala.client.model.LogEventVO;
+import org.ala.client.model.RecordCountMap;
+import org.ala.client.util.LogEventEncoder;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RecordCountMapTest {
+
+    @Test
+    public void testBehavesLikeAHashMap() {
+        RecordCountMap counts = new RecordCountMap();
+        Map<String, Integer> expected = new HashMap<String, Integer>();
+        // crosses the size from which lookups go through the index
+        for (int i = 0; i < 100; i++) {
+            counts.putInt("dr" + i, i);
+            expected.put("dr" + i, i);
+            assertEquals(expected, counts);
+        }
+        assertEquals(expected.hashCode(), counts.hashCode());
+        assertEquals(Integer.valueOf(42), counts.get("dr42"));
+        assertNull(counts.get("dr100"));
+        assertEquals(-1, counts.getInt("dr100", -1));
+
+        assertEquals(50, counts.add("dr42", 8));
+        assertEquals(5, counts.add("dr100", 5));
+        expected.put("dr42", 50);
+        expected.put("dr100", 5);
+        assertEquals(expected, counts);
+
+        for (int i = 0; i < 100; i += 2) {
+            assertEquals(expected.remove("dr" + i), counts.remove("dr" + i));
+            assertEquals(expected, counts);
+        }
+        for (int i = 1; i < 100; i += 2) {
+            assertEquals(Integer.valueOf(i), counts.get("dr" + i));
+        }
+
+        counts.clear();
+        assertTrue(counts.isEmpty());
+        assertFalse(counts.containsKey("dr1"));
+        counts.putInt("dr1", 1);
+        assertEquals(1, counts.getInt("dr1", 0));
+    }
+
+    @Test
+    public void testInsertionOrderAndNullCounts() {
+        RecordCountMap counts = new RecordCountMap();
+        counts.put("dr3", 3);
+        counts.put("dr1", null);
+        counts.put("dr2", 2);
+        assertEquals("{dr3=3, dr1=null, dr2=2}", counts.toString());
+        assertTrue(counts.containsKey("dr1"));
+        assertTrue(counts.isNullAt(1));
+        assertEquals(0, counts.getInt("dr1", 0));
+        assertEquals(4, counts.add("dr1", 4));
+        assertFalse(counts.isNullAt(1));
+
+        // the entry view writes through
+        Iterator<Map.Entry<String, Integer>> it = counts.entrySet().iterator();
+        it.next().setValue(null);
+        it.next();
+        it.remove();
+        List<String> keys = new ArrayList<String>(counts.keySet());
+        assertEquals("[dr3, dr2]", keys.toString());
+        assertNull(counts.get("dr3"));
+        assertTrue(counts.containsKey("dr3"));
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        RecordCountMap counts = new RecordCountMap();
+        for (int i = 0; i < 20; i++) {
+            counts.putInt("dr" + i, i);
+        }
+        counts.put("dr20", null);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(counts);
+        out.close();
+        RecordCountMap copy = (RecordCountMap) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(counts, copy);
+        assertEquals(19, copy.getInt("dr19", -1));
+        copy.putInt("dr21", 21);
+        assertEquals(21, copy.getInt("dr21", -1));
+    }
+
+    @Test
+    public void testLogEventVO() throws Exception {
+        ConcurrentHashMap<String, AtomicInteger> concurrentCounts = new ConcurrentHashMap<String, AtomicInteger>();
+        concurrentCounts.put("dr1", new AtomicInteger(5));
+        LogEventVO event = new LogEventVO(1002, 10, 1, "", "", "", "", "", concurrentCounts);
+        assertTrue(event.getRecordCounts() instanceof RecordCountMap);
+        assertEquals(5, ((RecordCountMap) event.getRecordCounts()).getInt("dr1", 0));
+
+        String json = "{\"eventTypeId\":1002,\"recordCounts\":{\"dr1\":5,\"dr2\":null}}";
+        LogEventVO read = new ObjectMapper().readValue(json, LogEventVO.class);
+        assertTrue(read.getRecordCounts() instanceof RecordCountMap);
+        String written = LogEventEncoder.toJson(read);
+        assertEquals(LogEventEncoder.getMapper().writeValueAsString(read), written);
+        assertTrue(written.contains("\"recordCounts\":{\"dr1\":5,\"dr2\":null}"));
+    }
+
+    @Test
+    public void testLogEventVOKeepsTheMapOfTheCaller() throws Exception {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        counts.put("dr1", 5);
+        LogEventVO event = new LogEventVO(1002, null, null, "", "", "", counts);
+        // counts added once the event is built are sent with it
+        counts.put("dr2", 3);
+        assertSame(counts, event.getRecordCounts());
+        assertTrue(LogEventEncoder.toJson(event).contains("\"dr2\":3"));
+
+        event.setRecordCount(counts);
+        assertSame(counts, event.getRecordCounts());
+    }
+}
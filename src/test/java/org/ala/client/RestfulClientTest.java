@@ -2,35 +2,56 @@ package org.ala.client;
 
 import org.ala.client.appender.RestfulAppender;
 import org.ala.client.model.LogEventVO;
+import org.ala.client.util.CircuitBreaker;
+import org.ala.client.util.CircuitOpenException;
+import org.ala.client.util.ConnectionPoolStats;
 import org.ala.client.util.Constants;
+import org.ala.client.util.HttpClientTransport;
+import org.ala.client.util.JsonStreamRequestEntity;
 import org.ala.client.util.RestfulClient;
+import org.ala.client.util.Transport;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
 import org.apache.commons.httpclient.params.HttpClientParams;
+import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.spi.LoggingEvent;
 import org.codehaus.jackson.map.DeserializationConfig;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.SerializationConfig;
+import org.codehaus.jackson.map.annotate.JsonSerialize;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.whenNew;
 
 @RunWith(PowerMockRunner.class)
-@PrepareForTest({RestfulClient.class, RestfulAppender.class})
+@PrepareForTest({RestfulClient.class, HttpClientTransport.class, RestfulAppender.class})
 public class RestfulClientTest {
 
     @Test
@@ -113,5 +134,173 @@ public class RestfulClientTest {
         assertEquals("myUserAgent", sentValue);
     }
 
+    @Test
+    public void testBatchedEventsArePostedAsOneArray() throws Exception {
+        HttpClient mockHttpClient = mock(HttpClient.class);
+        when(mockHttpClient.getParams()).thenReturn(mock(HttpClientParams.class));
+        whenNew(HttpClient.class).withAnyArguments().thenReturn(mockHttpClient);
+
+        String message = "{\"eventTypeId\": 1,\"comment\": \"For doing some research with..\",\"userEmail\" : \"waiman.mok@csiro.au\",\"userIP\" : \"123.11.01.112\",\"recordCounts\" : {\"dp123\": 32,\"dr143\": 22,\"ins322\": 55 } }";
+
+        RestfulAppender appender = new RestfulAppender();
+        appender.setUrlTemplate("someurl");
+        appender.setBatchSize(3);
+        appender.setBatchMaxAge(60000);
+        appender.activateOptions();
+        LoggingEvent event = mock(LoggingEvent.class);
+        when(event.getMessage()).thenReturn(message);
+        for (int i = 0; i < 3; i++) {
+            appender.doAppend(event);
+        }
+
+        ArgumentCaptor<HttpMethod> captor = ArgumentCaptor.forClass(HttpMethod.class);
+        verify(mockHttpClient, times(1)).executeMethod(captor.capture());
+
+        RequestEntity entity = ((EntityEnclosingMethod) captor.getValue()).getRequestEntity();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        entity.writeRequest(body);
+        assertEquals("[" + message + "," + message + "," + message + "]", body.toString("UTF-8"));
+        appender.close();
+    }
+
+    @Test
+    public void testPostIsRetriedOnServiceUnavailable() throws Exception {
+        HttpClient mockHttpClient = mock(HttpClient.class);
+        when(mockHttpClient.getParams()).thenReturn(mock(HttpClientParams.class));
+        when(mockHttpClient.executeMethod(any(HttpMethod.class))).thenReturn(503, 200);
+        whenNew(HttpClient.class).withAnyArguments().thenReturn(mockHttpClient);
+
+        RestfulClient client = new RestfulClient(1000, 1000);
+        client.setRetryPolicy(2, 1, 1);
+        Object[] result = client.restPost("http://localhost/", "{}", new HashMap<String, String>());
+
+        assertEquals(200, result[0]);
+        verify(mockHttpClient, times(2)).executeMethod(any(HttpMethod.class));
+    }
+
+    @Test
+    public void testOpenCircuitBreakerFailsFast() throws Exception {
+        HttpClient mockHttpClient = mock(HttpClient.class);
+        when(mockHttpClient.getParams()).thenReturn(mock(HttpClientParams.class));
+        when(mockHttpClient.executeMethod(any(HttpMethod.class))).thenReturn(503);
+        whenNew(HttpClient.class).withAnyArguments().thenReturn(mockHttpClient);
+
+        RestfulClient client = new RestfulClient(1000, 1000);
+        client.setCircuitBreaker(new CircuitBreaker("test", 1, 60000));
+        assertEquals(503, client.restPost("http://localhost/", "{}", new HashMap<String, String>())[0]);
+        try {
+            client.restPost("http://localhost/", "{}", new HashMap<String, String>());
+            fail("Expected the open circuit breaker to reject the request");
+        } catch (CircuitOpenException e) {
+            // expected
+        }
+        verify(mockHttpClient, times(1)).executeMethod(any(HttpMethod.class));
+    }
 
+    @Test
+    public void testRuntimeExceptionOfAProbeReopensTheBreaker() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(4);
+        Transport transport = new Transport() {
+            public CompletableFuture<Object[]> post(String url, RequestEntity entity, Map<String, String> headers, long timeout) {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IllegalArgumentException("Malformed URL " + url);
+                }
+                return CompletableFuture.completedFuture(new Object[]{200, null});
+            }
+
+            public Object[] get(String url, Map<String, String> headers) {
+                return new Object[]{200, null};
+            }
+
+            public boolean isBlocking() {
+                return true;
+            }
+
+            public ConnectionPoolStats getPoolStats() {
+                return null;
+            }
+
+            public void shutdown() {
+            }
+        };
+        RestfulClient client = new RestfulClient(transport);
+        CircuitBreaker breaker = new CircuitBreaker("test", 1, 10);
+        client.setCircuitBreaker(breaker);
+
+        for (int i = 0; i < 2; i++) {
+            // the first failure opens the breaker, the second is the half-open probe
+            try {
+                client.restPost("http://localhost/", "{}", new HashMap<String, String>());
+                fail("Expected the transport to throw");
+            } catch (IllegalArgumentException e) {
+                assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+            }
+            Thread.sleep(20);
+        }
+        for (int i = 0; i < 2; i++) {
+            try {
+                client.restPostAsync("http://localhost/", "{}", new HashMap<String, String>()).get();
+                fail("Expected the transport to throw");
+            } catch (ExecutionException e) {
+                assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+            }
+            Thread.sleep(20);
+        }
+        assertEquals(200, client.restPost("http://localhost/", "{}", new HashMap<String, String>())[0]);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testStreamedBatchMatchesRenderedJson() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.getSerializationConfig().setSerializationInclusion(JsonSerialize.Inclusion.NON_NULL);
+        LogEventVO logEventVO = new LogEventVO(1000, null, 1, "userEmail", "comment", "123.11.01.112", "myUserAgent", new HashMap<String, Integer>() {{
+            put("dp123", 32);
+            put("dr143", 22);
+        }});
+        String prebuilt = "{\"eventTypeId\": 2000}";
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        JsonStreamRequestEntity.forArray(mapper, Arrays.asList(logEventVO, prebuilt)).writeRequest(body);
+
+        assertEquals("[" + mapper.writeValueAsString(logEventVO) + "," + prebuilt + "]", body.toString("UTF-8"));
+    }
+
+    @Test
+    public void testOnlyBodiesAboveThresholdAreCompressed() throws Exception {
+        HttpClient mockHttpClient = mock(HttpClient.class);
+        when(mockHttpClient.getParams()).thenReturn(mock(HttpClientParams.class));
+        whenNew(HttpClient.class).withAnyArguments().thenReturn(mockHttpClient);
+
+        String small = "{\"eventTypeId\": 1}";
+        String large = "{\"eventTypeId\": 1,\"comment\": \"" + StringUtils.repeat("x", 2000) + "\"}";
+
+        RestfulClient client = new RestfulClient(1000, 1000);
+        client.setCompressionThreshold(1024);
+        client.restPostBatch("http://localhost/", Arrays.asList(small), new HashMap<String, String>());
+        client.restPostBatch("http://localhost/", Arrays.asList(large), new HashMap<String, String>());
+
+        ArgumentCaptor<HttpMethod> captor = ArgumentCaptor.forClass(HttpMethod.class);
+        verify(mockHttpClient, times(2)).executeMethod(captor.capture());
+
+        EntityEnclosingMethod smallPost = (EntityEnclosingMethod) captor.getAllValues().get(0);
+        assertNull(smallPost.getRequestHeader("Content-Encoding"));
+        assertEquals("[" + small + "]", new String(write(smallPost.getRequestEntity()), "UTF-8"));
+
+        EntityEnclosingMethod largePost = (EntityEnclosingMethod) captor.getAllValues().get(1);
+        assertEquals("gzip", largePost.getRequestHeader("Content-Encoding").getValue());
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(write(largePost.getRequestEntity())));
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n; (n = in.read(buf)) > 0; ) {
+            body.write(buf, 0, n);
+        }
+        assertEquals("[" + large + "]", body.toString("UTF-8"));
+    }
+
+    private static byte[] write(RequestEntity entity) throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        entity.writeRequest(body);
+        return body.toByteArray();
+    }
 }
@@ -0,0 +1,226 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import org.ala.client.appender.FullBufferPolicy;
+import org.ala.client.appender.RestfulAppender;
+import org.ala.client.appender.RingBufferDispatcher;
+import org.ala.client.model.LogEventVO;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RingBufferDispatcherTest {
+
+    /**
+     * Handler that holds the sender thread on the first event until released, so the ring fills up.
+     */
+    private static class BlockingHandler implements RingBufferDispatcher.EventHandler {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Object> received = new CopyOnWriteArrayList<Object>();
+
+        public void onEvent(Object message, String userAgent) {
+            received.add(message);
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Test
+    public void testDropNewestKeepsBufferedEvents() throws Exception {
+        BlockingHandler handler = new BlockingHandler();
+        RingBufferDispatcher dispatcher = new RingBufferDispatcher("test", 2, FullBufferPolicy.DROP_NEWEST, 0, handler);
+
+        assertTrue(dispatcher.offer("0", "agent"));
+        assertTrue(handler.started.await(10, TimeUnit.SECONDS));
+        assertTrue(dispatcher.offer("1", "agent"));
+        assertTrue(dispatcher.offer("2", "agent"));
+        assertFalse(dispatcher.offer("3", "agent"));
+        assertEquals(1, dispatcher.getDroppedCount());
+
+        handler.release.countDown();
+        dispatcher.close(10000);
+        assertEquals("[0, 1, 2]", handler.received.toString());
+    }
+
+    @Test
+    public void testDropOldestMakesRoomForNewEvents() throws Exception {
+        BlockingHandler handler = new BlockingHandler();
+        RingBufferDispatcher dispatcher = new RingBufferDispatcher("test", 2, FullBufferPolicy.DROP_OLDEST, 0, handler);
+
+        assertTrue(dispatcher.offer("0", "agent"));
+        assertTrue(handler.started.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(dispatcher.offer(String.valueOf(i), "agent"));
+        }
+        assertEquals(2, dispatcher.getDroppedCount());
+
+        handler.release.countDown();
+        dispatcher.close(10000);
+        assertEquals("[0, 3, 4]", handler.received.toString());
+    }
+
+    @Test
+    public void testTryOfferDoesNotWaitForABlockedBuffer() throws Exception {
+        BlockingHandler handler = new BlockingHandler();
+        RingBufferDispatcher dispatcher = new RingBufferDispatcher("test", 2, FullBufferPolicy.BLOCK, 10000, handler);
+
+        assertTrue(dispatcher.tryOffer(0, "0", "agent"));
+        assertTrue(handler.started.await(10, TimeUnit.SECONDS));
+        assertTrue(dispatcher.tryOffer(0, "1", "agent"));
+        assertTrue(dispatcher.tryOffer(0, "2", "agent"));
+        long start = System.nanoTime();
+        assertFalse(dispatcher.tryOffer(0, "3", "agent"));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(1, dispatcher.getDroppedCount());
+
+        handler.release.countDown();
+        dispatcher.close(10000);
+        assertEquals("[0, 1, 2]", handler.received.toString());
+    }
+
+    @Test
+    public void testEveryAcceptedEventIsHandledWhenClosingUnderLoad() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            final AtomicLong handled = new AtomicLong();
+            RingBufferDispatcher.EventHandler counter = new RingBufferDispatcher.EventHandler() {
+                public void onEvent(Object message, String userAgent) {
+                    handled.incrementAndGet();
+                }
+            };
+            final RingBufferDispatcher dispatcher = new RingBufferDispatcher("test", 1024, FullBufferPolicy.DROP_NEWEST, 0, counter);
+            final AtomicLong accepted = new AtomicLong();
+            final AtomicLong offered = new AtomicLong();
+            Thread[] producers = new Thread[4];
+            for (int i = 0; i < producers.length; i++) {
+                producers[i] = new Thread(new Runnable() {
+                    public void run() {
+                        for (int n = 0; n < 20000; n++) {
+                            offered.incrementAndGet();
+                            if (dispatcher.offer("event", "agent")) {
+                                accepted.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+                producers[i].start();
+            }
+            Thread.sleep(2);
+            dispatcher.close(10000, counter);
+            for (Thread producer : producers) {
+                producer.join();
+            }
+            assertEquals(accepted.get(), handled.get());
+            assertEquals(offered.get(), accepted.get() + dispatcher.getDroppedCount());
+        }
+    }
+
+    @Test
+    public void testCloseDropsEventsTheSenderDidNotReach() throws Exception {
+        BlockingHandler handler = new BlockingHandler();
+        RingBufferDispatcher dispatcher = new RingBufferDispatcher("test", 4, FullBufferPolicy.DROP_NEWEST, 0, handler);
+
+        assertTrue(dispatcher.offer("0", "agent"));
+        assertTrue(handler.started.await(10, TimeUnit.SECONDS));
+        assertTrue(dispatcher.offer("1", "agent"));
+        assertTrue(dispatcher.offer("2", "agent"));
+        dispatcher.close(100);
+        assertEquals(2, dispatcher.getDroppedCount());
+        assertEquals(0, dispatcher.getQueueDepth());
+
+        // nothing is handed on once close() has returned
+        handler.release.countDown();
+        Thread.sleep(100);
+        assertEquals("[0]", handler.received.toString());
+    }
+
+    @Test
+    public void testHigherPriorityLanesDrainFirst() throws Exception {
+        BlockingHandler handler = new BlockingHandler();
+        RingBufferDispatcher dispatcher = new RingBufferDispatcher("test", Arrays.asList(
+                new RingBufferDispatcher.Lane(4, FullBufferPolicy.DROP_NEWEST, 2),
+                new RingBufferDispatcher.Lane(4, FullBufferPolicy.DROP_NEWEST, 1)), 0, handler);
+
+        assertTrue(dispatcher.offer(1, "low0", "agent"));
+        assertTrue(handler.started.await(10, TimeUnit.SECONDS));
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(dispatcher.offer(0, "high" + i, "agent"));
+        }
+        assertFalse(dispatcher.offer(0, "high5", "agent"));
+        for (int i = 1; i <= 3; i++) {
+            assertTrue(dispatcher.offer(1, "low" + i, "agent"));
+        }
+        assertEquals(1, dispatcher.getDroppedCount(0));
+        assertEquals(0, dispatcher.getDroppedCount(1));
+        assertEquals(7, dispatcher.getQueueDepth());
+
+        handler.release.countDown();
+        dispatcher.close(10000);
+        assertEquals("[low0, high1, high2, low1, high3, high4, low2, low3]", handler.received.toString());
+    }
+
+    @Test
+    public void testAppenderKeepsDownloadsWhenViewsOverflow() throws Exception {
+        LoggerServiceStub stub = new LoggerServiceStub().start(1);
+        stub.setLatency(20, 0);
+        RestfulAppender appender = new RestfulAppender();
+        appender.setName("laneTest");
+        appender.setUrlTemplate(stub.getUrl());
+        appender.setLanes("OCCURRENCE_RECORDS_DOWNLOADED:64:BLOCK:8; *:2:DROP_NEWEST:1");
+        appender.activateOptions();
+        Logger logger = Logger.getLogger(RingBufferDispatcherTest.class);
+        try {
+            for (int i = 0; i < 20; i++) {
+                appender.doAppend(event(logger, "{\"eventTypeId\": 2000}"));
+                appender.doAppend(event(logger, new LogEventVO(1002, null, null, "", "", "", Collections.singletonMap("dr1", 1))));
+            }
+        } finally {
+            appender.close();
+            stub.stop();
+        }
+        assertEquals(20, stub.getEventCount(1002));
+        assertTrue(appender.getDroppedCount() > 0);
+        assertEquals(20 - appender.getDroppedCount(), stub.getEventCount(2000));
+    }
+
+    private static LoggingEvent event(Logger logger, final Object message) {
+        // the log4j 1.2 bridge does not keep the message of a LoggingEvent it did not create
+        return new LoggingEvent(Logger.class.getName(), logger, Level.INFO, message, null) {
+            @Override
+            public Object getMessage() {
+                return message;
+            }
+        };
+    }
+}
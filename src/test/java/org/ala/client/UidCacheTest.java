@@ -0,0 +1,77 @@
+/**************************************************************************
+ *  Copyright (C) 2010 Atlas of Living Australia
+ *  All Rights Reserved.
+ *
+ *  The contents of this file are subject to the Mozilla Public
+ *  License Version 1.1 (the "License"); you may not use this file
+ *  except in compliance with the License. You may obtain a copy of
+ *  the License at http://www.mozilla.org/MPL/
+ *
+ *  Software distributed under the License is distributed on an "AS
+ *  IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ *  implied. See the License for the specific language governing
+ *  rights and limitations under the License.
+ ***************************************************************************/
+
+package org.ala.client;
+
+import org.ala.client.model.LogEventVO;
+import org.ala.client.model.RecordCountMap;
+import org.ala.client.model.UidCache;
+import org.ala.client.util.LogEventEncoder;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class UidCacheTest {
+
+    @Test
+    public void testEventsShareUidStrings() throws Exception {
+        String uid = UidCache.intern(new String("dr143"));
+        assertSame(uid, UidCache.intern(new String("dr143")));
+        assertEquals("\"dr143\":", new String(UidCache.getJsonName("dr143"), "UTF-8"));
+
+        LogEventVO built = new LogEventVO(1002, null, null, "", "", "", new RecordCountMap(Collections.singletonMap(new String("dr143"), 1)));
+        assertSame(uid, ((RecordCountMap) built.getRecordCounts()).keyAt(0));
+
+        LogEventVO parsed = new ObjectMapper().readValue("{\"eventTypeId\":1002,\"recordCounts\":{\"dr143\":5}}", LogEventVO.class);
+        assertSame(uid, ((RecordCountMap) parsed.getRecordCounts()).keyAt(0));
+        assertEquals(LogEventEncoder.getMapper().writeValueAsString(parsed), LogEventEncoder.toJson(parsed));
+    }
+
+    @Test
+    public void testOnlyPlainUidsAreCached() {
+        String quoted = new String("dr\"1");
+        assertSame(quoted, UidCache.intern(quoted));
+        assertNull(UidCache.getJsonName(quoted));
+        String accented = new String("dr\u00e9");
+        assertSame(accented, UidCache.intern(accented));
+        StringBuilder longKey = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            longKey.append('x');
+        }
+        assertNull(UidCache.getJsonName(UidCache.intern(longKey.toString())));
+    }
+
+    @Test
+    public void testBounded() {
+        int maxSize = UidCache.getMaxSize();
+        try {
+            UidCache.setMaxSize(UidCache.getSize() + 1);
+            String first = UidCache.intern(new String("ins-bounded-1"));
+            assertSame(first, UidCache.intern(new String("ins-bounded-1")));
+            String second = new String("ins-bounded-2");
+            assertSame(second, UidCache.intern(second));
+            assertNotSame(second, UidCache.intern(new String("ins-bounded-2")));
+            assertNull(UidCache.getJsonName("ins-bounded-2"));
+        } finally {
+            UidCache.setMaxSize(maxSize);
+        }
+    }
+}